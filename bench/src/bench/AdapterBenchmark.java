@@ -0,0 +1,101 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import parser.TptpAdapter;
+import parser.TraceRecordParser;
+import parser.record.ActionRecord;
+import parser.record.RecordDecoder;
+
+/**
+ * TptpAdapter.addMethodAction() 的基准: 记录预先解码，事件交给 DiscardingHandler
+ *
+ * 每次调用完整地回放一遍记录，各线程的调用都已补齐，调用栈回到空栈
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class AdapterBenchmark {
+
+	private static final int RECORDS = 1 << 20;
+
+	@Param("8")
+	public int threads;
+
+	@Param("2000")
+	public int methods;
+
+	@Param("32")
+	public int depth;
+
+	private TptpAdapter adapter;
+	private DiscardingHandler handler;
+
+	private int[] threadIds;
+	private long[] methodAddrs;
+	private int[] methodActions;
+	private long[] deltaTimes;
+	private long[] cpuTimes;
+
+	@Setup
+	public void setup() {
+		Logger.getLogger("").setLevel(Level.WARNING);
+		final TraceGenerator g = new TraceGenerator();
+		g.setThreads(threads);
+		g.setMethods(methods);
+		g.setDepth(depth);
+		g.setRecords(RECORDS);
+
+		handler = new DiscardingHandler();
+		adapter = new TptpAdapter(handler);
+		final TraceRecordParser parser = new TraceRecordParser(adapter);
+		g.inputHeader(parser);
+
+		final RecordDecoder decoder = parser.getRecordDecoder();
+		final ByteBuffer buf = ByteBuffer.wrap(g.records()).order(ByteOrder.LITTLE_ENDIAN);
+		final ActionRecord r = new ActionRecord();
+		final int n = g.getRecords();
+		threadIds = new int[n];
+		methodAddrs = new long[n];
+		methodActions = new int[n];
+		deltaTimes = new long[n];
+		cpuTimes = new long[n];
+		for (int i = 0; i < n; ++i) {
+			decoder.decode(buf, i * decoder.getRecordSize(), r);
+			threadIds[i] = r.getThreadId();
+			methodAddrs[i] = r.getMethodAddr();
+			methodActions[i] = r.getMethodActionCode();
+			deltaTimes[i] = r.getDeltaTime();
+			cpuTimes[i] = r.getCpuTime();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public long addMethodAction() {
+		final TptpAdapter a = adapter;
+		for (int i = 0; i < RECORDS; ++i)
+			a.addMethodAction(threadIds[i], methodAddrs[i], methodActions[i], deltaTimes[i], cpuTimes[i]);
+		return handler.events;
+	}
+}
@@ -0,0 +1,22 @@
+package bench;
+
+import parser.TptpHandlerBase;
+
+/**
+ * 丢弃所有事件的 ITptpHandler，用于测量 TptpAdapter 及其之前的阶段
+ */
+public class DiscardingHandler extends TptpHandlerBase {
+
+	/** 方法事件的累加值，避免调用被优化掉 */
+	public long events = 0;
+
+	public void handleMethodEntry(final int tid, final int cid, final long mid, final long timeUTCSec,
+			final long timeUTCNsec, final int ticket, final int stackDepth, final long threadCpuTime) {
+		events += mid;
+	}
+
+	public void handleMethodExit(final int tid, final int cid, final long mid, final long timeUTCSec,
+			final long timeUTCNsec, final int ticket, final long threadCpuTime) {
+		events += mid;
+	}
+}
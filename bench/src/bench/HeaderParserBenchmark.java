@@ -0,0 +1,203 @@
+package bench;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import parser.TptpAdapter;
+import parser.TraceRecordParser;
+
+/**
+ * 文本头部解析的基准: 原先每行编译正则表达式的实现与 TraceRecordParser.inputLine() 的对比
+ *
+ * 两者都把解析结果交给 TptpAdapter，原实现中 addMethod() 对方法名的正则检查也一并计入。
+ * 另外比较文件扫描时的原始字节输入，及延迟解析方法定义时只取出方法地址的情形
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class HeaderParserBenchmark {
+
+	@Param("200")
+	public int threads;
+
+	@Param("60000")
+	public int methods;
+
+	private List<String> lines;
+	/** 各行的 UTF-8 字节及其在文本中的位置 */
+	private byte[][] lineBytes;
+	private long[] lineOffsets;
+
+	/**
+	 * 原先的实现，每一行都调用 Pattern.compile()
+	 */
+	private static final class LegacyHeaderParser {
+		private int state = 0;
+		private final TptpAdapter tptpAdapter;
+
+		LegacyHeaderParser(final TptpAdapter adapter) {
+			tptpAdapter = adapter;
+		}
+
+		int inputLine(final String s) {
+			Pattern p;
+			Matcher m;
+			switch (state) {
+			case 0:
+				if (!Pattern.matches("\\s*" + "\\*" + "\\s*" + "(version)" + "\\s*", s))
+					throw new IllegalArgumentException("unknown format : " + s);
+				state = 1;
+				return 0;
+
+			case 1:
+				p = Pattern.compile("\\s*" + "(\\d+)" + "\\s*");
+				m = p.matcher(s);
+				if (!m.matches())
+					throw new IllegalArgumentException("unknown format : " + s);
+				tptpAdapter.addKeyFileVersion(Integer.valueOf(m.group(1)));
+				state = 2;
+				return 0;
+
+			case 2:
+				p = Pattern.compile("\\s*" + "([\\w\\-]+)" + "\\s*=\\s*" + "([\\w\\-]+)" + "\\s*");
+				m = p.matcher(s);
+				if (m.matches())
+					return 0;
+				if (Pattern.matches("\\s*" + "\\*" + "\\s*" + "threads" + "\\s*", s)) {
+					state = 3;
+					return 0;
+				}
+				throw new IllegalArgumentException("unknown format : " + s);
+
+			case 3:
+				p = Pattern.compile("\\s*" + "(\\d+)" + "(\\s+" + "([^\\s](.*[^\\s])?))?" + "\\s*");
+				m = p.matcher(s);
+				if (m.matches()) {
+					tptpAdapter.addThread(Integer.valueOf(m.group(1)), m.group(2) != null ? m.group(3) : "");
+					return 0;
+				}
+				p = Pattern.compile("\\s*" + "\\*" + "\\s*" + "methods" + "\\s*");
+				m = p.matcher(s);
+				if (m.matches()) {
+					state = 4;
+					return 0;
+				}
+				throw new IllegalArgumentException("unknown format : " + s);
+
+			default:
+				p = Pattern.compile("\\s*" + "0x([\\da-f]{8})" + "\\s+" + "([^\\s]+)" + "\\s+" + "([^\\s]+)" + "\\s+"
+						+ "([^\\s]+)" + "\\s*");
+				m = p.matcher(s);
+				if (m.matches()) {
+					addMethod(Long.valueOf(m.group(1), 16), m.group(2), m.group(3), m.group(4), null, -1);
+					return 0;
+				}
+				p = Pattern.compile("\\s*" + "0x([\\da-f]{8})" + "\\s+" + "([^\\s]+)" + "\\s+" + "([^\\s]+)" + "\\s+"
+						+ "([^\\s]+)" + "\\s+" + "([^\\s]+)" + "\\s+" + "(\\-?\\d+)" + "\\s*");
+				m = p.matcher(s);
+				if (m.matches()) {
+					addMethod(Long.valueOf(m.group(1), 16), m.group(2), m.group(3), m.group(4), m.group(5), Integer
+							.valueOf(m.group(6)));
+					return 0;
+				}
+				p = Pattern.compile("\\s*" + "\\*" + "\\s*" + "end" + "\\s*");
+				m = p.matcher(s);
+				if (m.matches())
+					return 16;
+				throw new IllegalArgumentException("unknown format : " + s);
+			}
+		}
+
+		private void addMethod(final long methodAddress, final String className, final String methodName,
+				final String signature, final String sourceFile, final int sourceLine) {
+			if (!methodName.equals("<init>") && !methodName.equals("<clinit>")
+					&& !Pattern.matches("[\\w$]+", methodName))
+				throw new IllegalArgumentException("unknow method name : " + methodName);
+			tptpAdapter.addMethod(methodAddress, className, methodName, signature, sourceFile, sourceLine);
+		}
+	}
+
+	@Setup
+	public void setup() {
+		Logger.getLogger("").setLevel(Level.WARNING);
+		final TraceGenerator g = new TraceGenerator();
+		g.setThreads(threads);
+		g.setMethods(methods);
+		lines = g.header();
+
+		final Charset utf8 = Charset.forName("UTF-8");
+		lineBytes = new byte[lines.size()][];
+		lineOffsets = new long[lines.size()];
+		long off = 0;
+		for (int i = 0; i < lines.size(); ++i) {
+			lineBytes[i] = lines.get(i).getBytes(utf8);
+			lineOffsets[i] = off;
+			off += lineBytes[i].length + 1;
+		}
+	}
+
+	private static TptpAdapter newAdapter() {
+		return new TptpAdapter(new DiscardingHandler());
+	}
+
+	/** 每行编译正则表达式 */
+	@Benchmark
+	public TptpAdapter compilePerLine() {
+		final TptpAdapter adapter = newAdapter();
+		final LegacyHeaderParser lp = new LegacyHeaderParser(adapter);
+		for (int i = 0; i < lines.size(); ++i)
+			lp.inputLine(lines.get(i));
+		return adapter;
+	}
+
+	/** TraceRecordParser.inputLine() */
+	@Benchmark
+	public TptpAdapter precompiled() {
+		final TptpAdapter adapter = newAdapter();
+		final TraceRecordParser p = new TraceRecordParser(adapter);
+		for (int i = 0; i < lines.size(); ++i)
+			p.inputLine(lines.get(i));
+		return adapter;
+	}
+
+	/** TraceRecordParser.inputLine(byte[], int, long)，与扫描文件时相同 */
+	@Benchmark
+	public TptpAdapter rawLines() {
+		return parseRawLines(false);
+	}
+
+	/** 延迟解析方法定义，方法行只取出地址 */
+	@Benchmark
+	public TptpAdapter lazySymbols() {
+		return parseRawLines(true);
+	}
+
+	private TptpAdapter parseRawLines(final boolean lazy) {
+		final TptpAdapter adapter = newAdapter();
+		adapter.setLazySymbols(lazy);
+		final TraceRecordParser p = new TraceRecordParser(adapter);
+		for (int i = 0; i < lineBytes.length; ++i)
+			p.inputLine(lineBytes[i], lineBytes[i].length, lineOffsets[i]);
+		return adapter;
+	}
+}
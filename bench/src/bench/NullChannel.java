@@ -0,0 +1,27 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 丢弃写入内容的通道，用于测量输出格式化而不计入 I/O
+ */
+public class NullChannel implements WritableByteChannel {
+
+	/** 已写入的字节数 */
+	public long written = 0;
+
+	public int write(final ByteBuffer src) {
+		final int n = src.remaining();
+		src.position(src.limit());
+		written += n;
+		return n;
+	}
+
+	public boolean isOpen() {
+		return true;
+	}
+
+	public void close() {
+	}
+}
@@ -0,0 +1,95 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import parser.record.ActionRecord;
+import parser.record.RecordDecoder;
+
+/**
+ * 方法记录解码的基准: 各文件版本的 RecordDecoder 将记录解码到重用的 ActionRecord 中
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RecordDecodeBenchmark {
+
+	private static final int RECORDS = 1 << 20;
+
+	/** 文件版本 */
+	@Param({ "1", "2", "3" })
+	public int version;
+
+	/** 记录是否在直接缓冲区(与映射读取相同)中 */
+	@Param({ "false", "true" })
+	public boolean direct;
+
+	private ByteBuffer buf;
+	private byte[] array;
+	private RecordDecoder decoder;
+	private final ActionRecord record = new ActionRecord();
+
+	@Setup
+	public void setup() {
+		final TraceGenerator g = new TraceGenerator();
+		g.setRecords(RECORDS);
+		g.setVersion(version);
+		final byte[] records = g.records();
+		array = records;
+		buf = direct ? ByteBuffer.allocateDirect(records.length) : ByteBuffer.allocate(records.length);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.put(records);
+		decoder = RecordDecoder.forVersion(version, g.getRecordSize(), version == 3 ? RecordDecoder.Clock.DUAL
+				: RecordDecoder.Clock.WALL);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public long decode() {
+		final ByteBuffer b = buf;
+		final RecordDecoder d = decoder;
+		final ActionRecord r = record;
+		final int size = d.getRecordSize();
+		long check = 0;
+		for (int off = 0; off < RECORDS * size; off += size) {
+			d.decode(b, off, r);
+			check += r.getThreadId() + r.getMethodAddr() + r.getMethodActionCode() + r.getDeltaTime()
+					+ r.getCpuTime();
+		}
+		return check;
+	}
+
+	/** 从 byte[] 解码，TraceRecordParser.inputRecord(byte[]) 的路径 */
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public long decodeArray() {
+		final byte[] b = array;
+		final RecordDecoder d = decoder;
+		final ActionRecord r = record;
+		final int size = d.getRecordSize();
+		long check = 0;
+		for (int off = 0; off < RECORDS * size; off += size) {
+			d.decode(b, off, r);
+			check += r.getThreadId() + r.getMethodAddr() + r.getMethodActionCode() + r.getDeltaTime()
+					+ r.getCpuTime();
+		}
+		return check;
+	}
+}
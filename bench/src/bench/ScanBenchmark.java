@@ -0,0 +1,103 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import parser.ITptpHandler;
+import parser.TptpAdapter;
+import parser.TptpXmlFileWriter;
+import parser.TraceFileScaner;
+import parser.TraceRecordParser;
+
+/**
+ * 端到端的基准: TraceFileScaner.process() 转换整个合成 trace 文件
+ *
+ * 除每秒转换的文件数外，辅助计数器 bytes 和 records 给出每秒处理的字节数和记录数
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark {
+
+	@Param("2000000")
+	public int records;
+
+	@Param("3")
+	public int version;
+
+	@Param({ "STREAM", "MAPPED" })
+	public TraceFileScaner.ReadMode readMode;
+
+	/** none: 丢弃事件; xml: 格式化为 XML 后丢弃 */
+	@Param({ "none", "xml" })
+	public String output;
+
+	private File trace;
+
+	/**
+	 * 每秒处理的字节数和记录数
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long bytes;
+		public long records;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+			records = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		Logger.getLogger("").setLevel(java.util.logging.Level.WARNING);
+		final TraceGenerator g = new TraceGenerator();
+		g.setRecords(records);
+		g.setVersion(version);
+		trace = File.createTempFile("bench", ".trace");
+		g.write(trace);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		trace.delete();
+	}
+
+	@Benchmark
+	public void process(final Counters counters) throws IOException {
+		final TptpXmlFileWriter writer = output.equals("xml") ? new TptpXmlFileWriter(new NullChannel(), 1 << 20)
+				: null;
+		final ITptpHandler handler = writer != null ? writer : new DiscardingHandler();
+		final TraceRecordParser parser = new TraceRecordParser(new TptpAdapter(handler));
+		final TraceFileScaner scaner = new TraceFileScaner(trace, parser);
+		scaner.setReadMode(readMode);
+		scaner.process();
+		if (writer != null)
+			writer.close();
+
+		counters.bytes += trace.length();
+		counters.records += records;
+	}
+}
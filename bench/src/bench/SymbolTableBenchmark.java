@@ -0,0 +1,130 @@
+package bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import parser.items.MethodItem;
+import parser.items.ThreadItem;
+import parser.util.IntObjectHashMap;
+import parser.util.LongObjectHashMap;
+
+/**
+ * TptpAdapter 符号表查找的微基准: 装箱 HashMap 与原生类型开放寻址表、稠密索引的对比
+ *
+ * 每个事件查找一次线程和一次方法，与 TptpAdapter.addMethodAction() 的热路径一致
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SymbolTableBenchmark {
+
+	private static final int METHODS = 60000;
+	private static final int THREADS = 40;
+	private static final int EVENTS = 1000000;
+
+	private static final long BASE = TraceGenerator.BASE_ADDRESS;
+
+	private long[] eventMethods;
+	private int[] eventThreads;
+
+	private Map<Integer, ThreadItem> boxedThreads;
+	private Map<Long, MethodItem> boxedMethods;
+	private IntObjectHashMap<ThreadItem> threads;
+	private LongObjectHashMap<MethodItem> methods;
+	private MethodItem[] methodIndex;
+
+	@Setup
+	public void setup() {
+		final Random rand = new Random(1);
+
+		// 方法地址: 4 字节对齐，间隔 16 字节(稠密索引可用)
+		final long[] addresses = new long[METHODS];
+		for (int i = 0; i < METHODS; ++i)
+			addresses[i] = BASE + i * 16L;
+		final int[] tids = new int[THREADS];
+		for (int i = 0; i < THREADS; ++i)
+			tids[i] = i == 0 ? 1 : 1000 + i * 7;
+
+		// 事件序列: 方法访问有明显的热点
+		eventMethods = new long[EVENTS];
+		eventThreads = new int[EVENTS];
+		for (int i = 0; i < EVENTS; ++i) {
+			final double d = rand.nextDouble();
+			eventMethods[i] = addresses[(int) (d * d * d * METHODS)];
+			eventThreads[i] = tids[rand.nextInt(THREADS)];
+		}
+
+		boxedThreads = new HashMap<Integer, ThreadItem>();
+		boxedMethods = new HashMap<Long, MethodItem>();
+		threads = new IntObjectHashMap<ThreadItem>();
+		methods = new LongObjectHashMap<MethodItem>();
+		methodIndex = new MethodItem[(int) ((addresses[METHODS - 1] - BASE) >> 2) + 1];
+		for (int i = 0; i < THREADS; ++i) {
+			final ThreadItem ti = new ThreadItem(tids[i], "thread-" + i);
+			boxedThreads.put(Integer.valueOf(tids[i]), ti);
+			threads.put(tids[i], ti);
+		}
+		for (int i = 0; i < METHODS; ++i) {
+			final MethodItem mi = new MethodItem(i + 1, addresses[i], "m" + i, "()V", i % 500 + 1);
+			boxedMethods.put(Long.valueOf(addresses[i]), mi);
+			methods.put(addresses[i], mi);
+			methodIndex[(int) ((addresses[i] - BASE) >> 2)] = mi;
+		}
+	}
+
+	/** 装箱 HashMap */
+	@Benchmark
+	@OperationsPerInvocation(EVENTS)
+	public long boxed() {
+		long check = 0;
+		for (int i = 0; i < EVENTS; ++i) {
+			final ThreadItem ti = boxedThreads.get(Integer.valueOf(eventThreads[i]));
+			final MethodItem mi = boxedMethods.get(Long.valueOf(eventMethods[i]));
+			check += mi.getClassId() + ti.getDepthOfCallStack();
+		}
+		return check;
+	}
+
+	/** 原生类型开放寻址表 */
+	@Benchmark
+	@OperationsPerInvocation(EVENTS)
+	public long primitive() {
+		long check = 0;
+		for (int i = 0; i < EVENTS; ++i) {
+			final ThreadItem ti = threads.get(eventThreads[i]);
+			final MethodItem mi = methods.get(eventMethods[i]);
+			check += mi.getClassId() + ti.getDepthOfCallStack();
+		}
+		return check;
+	}
+
+	/** 稠密方法索引 */
+	@Benchmark
+	@OperationsPerInvocation(EVENTS)
+	public long dense() {
+		long check = 0;
+		for (int i = 0; i < EVENTS; ++i) {
+			final ThreadItem ti = threads.get(eventThreads[i]);
+			final MethodItem mi = methodIndex[(int) ((eventMethods[i] - BASE) >> 2)];
+			check += mi.getClassId() + ti.getDepthOfCallStack();
+		}
+		return check;
+	}
+}
@@ -0,0 +1,265 @@
+package bench;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import parser.TraceRecordParser;
+
+/**
+ * 生成合成的 Android Trace 文件，供基准使用
+ *
+ * 线程数、方法数、最大调用深度、记录数及文件版本可配置。各线程的调用严格嵌套，结尾处补齐所有未退出的调用；
+ * 方法的访问有明显的热点。参数与种子相同时生成的文件总是相同
+ */
+public class TraceGenerator {
+
+	/** 第一个方法的地址，之后每个方法间隔 16 字节 */
+	public static final long BASE_ADDRESS = 0x70000000L;
+
+	/** 二进制头部魔术数字 0x574f4c53 ('SLOW') */
+	private static final int BINARY_MAGIC = 0x574f4c53;
+	/** 版本 3 的二进制头部长度 */
+	private static final int V3_HEADER_SIZE = 32;
+	/** trace 起始时间(in usec) */
+	private static final long START_TIME = 1400000000123456L;
+
+	private static final Charset TEXT_CHARSET = Charset.forName("UTF-8");
+
+	private int threads = 8;
+	private int methods = 2000;
+	private int depth = 32;
+	private int records = 1000000;
+	private int version = 3;
+	private long seed = 1;
+
+	/** 线程数，版本 1 中线程 id 只有一个字节，因此不超过 255 */
+	public void setThreads(final int n) {
+		if (n <= 0 || n > 255)
+			throw new IllegalArgumentException();
+		threads = n;
+	}
+
+	public void setMethods(final int n) {
+		if (n <= 0)
+			throw new IllegalArgumentException();
+		methods = n;
+	}
+
+	/** 每个线程的最大调用深度 */
+	public void setDepth(final int n) {
+		if (n <= 0)
+			throw new IllegalArgumentException();
+		depth = n;
+	}
+
+	/** 记录数，奇数时减一(进入与退出成对) */
+	public void setRecords(final int n) {
+		if (n < 0)
+			throw new IllegalArgumentException();
+		records = n & ~1;
+	}
+
+	/** 文件版本 1-3，版本 3 为双时钟 */
+	public void setVersion(final int v) {
+		if (v < 1 || v > 3)
+			throw new IllegalArgumentException("unsupported version : " + v);
+		version = v;
+	}
+
+	public void setSeed(final long s) {
+		seed = s;
+	}
+
+	public int getRecords() {
+		return records;
+	}
+
+	/** 每条记录的长度 */
+	public int getRecordSize() {
+		return version == 1 ? 9 : version == 2 ? 10 : 14;
+	}
+
+	/** 线程 id，从 1 开始 */
+	public static int threadId(final int index) {
+		return index + 1;
+	}
+
+	/**
+	 * 文本头部，每个元素为一行(不含换行)，最后一行为 "*end"
+	 */
+	public List<String> header() {
+		final Random rand = new Random(seed);
+		final List<String> lines = new ArrayList<String>(threads + methods + 16);
+		lines.add("*version");
+		lines.add(String.valueOf(version));
+		lines.add("data-file-overflow=false");
+		lines.add(version == 3 ? "clock=dual" : "clock=wall");
+		lines.add("elapsed-time-usec=" + records * 2L);
+		lines.add("num-method-calls=" + records / 2);
+		lines.add("vm=dalvik");
+		lines.add("*threads");
+		for (int i = 0; i < threads; ++i)
+			lines.add(threadId(i) + "\t" + (i == 0 ? "main" : "Thread-" + i));
+		lines.add("*methods");
+		final int classes = methods / 20 + 1;
+		for (int i = 0; i < methods; ++i) {
+			final int cls = rand.nextInt(classes);
+			final String addr = String.format("0x%08x", BASE_ADDRESS + i * 16L);
+			final String name = i % 17 == 0 ? "<init>" : "method" + i;
+			if (i % 4 == 0)
+				lines.add(addr + "\tcom/example/pkg" + cls % 50 + "/Class" + cls + "\t" + name + "\t(ILjava/lang/String;)V");
+			else
+				lines.add(addr + "\tcom/example/pkg" + cls % 50 + "/Class" + cls + "\t" + name
+						+ "\t(ILjava/lang/String;)V\tClass" + cls + ".java\t" + (i % 900 + 1));
+		}
+		lines.add("*end");
+		return lines;
+	}
+
+	/**
+	 * 二进制头部，版本 3 中带有记录长度
+	 */
+	public byte[] binaryHeader() {
+		final int size = version == 3 ? V3_HEADER_SIZE : 16;
+		final ByteBuffer b = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(BINARY_MAGIC);
+		b.putShort((short) version);
+		b.putShort((short) size);
+		b.putLong(START_TIME);
+		if (version == 3)
+			b.putShort((short) getRecordSize());
+		return b.array();
+	}
+
+	/**
+	 * 将文本头部和二进制头部输入 p，之后 p 可以直接输入方法记录
+	 */
+	public void inputHeader(final TraceRecordParser p) {
+		final List<String> lines = header();
+		int bytesToRead = 0;
+		for (int i = 0; i < lines.size(); ++i)
+			bytesToRead = p.inputLine(lines.get(i));
+		final byte[] bin = binaryHeader();
+		int off = 0;
+		while (!p.isParsingRecords()) {
+			final int len = bytesToRead;
+			bytesToRead = p.inputRecord(Arrays.copyOfRange(bin, off, off + len));
+			off += len;
+		}
+	}
+
+	/**
+	 * 写入全部方法记录
+	 */
+	public void writeRecords(final OutputStream os) throws IOException {
+		final Random rand = new Random(seed + 1);
+		final int[][] stacks = new int[threads][depth];
+		final int[] sp = new int[threads];
+		final long[] cpu = new long[threads];
+		long wall = 0;
+		int open = 0;
+
+		final ByteBuffer rec = ByteBuffer.allocate(getRecordSize()).order(ByteOrder.LITTLE_ENDIAN);
+		for (int n = 0; n < records; ++n) {
+			int t;
+			boolean enter;
+			if (open >= records - n) {
+				// 只剩下补齐退出的记录
+				t = 0;
+				while (sp[t] == 0)
+					++t;
+				enter = false;
+			} else {
+				t = rand.nextInt(threads);
+				enter = sp[t] == 0 || (sp[t] < depth && rand.nextBoolean());
+			}
+
+			final int method;
+			if (enter) {
+				final double d = rand.nextDouble();
+				method = (int) (d * d * d * methods);
+				stacks[t][sp[t]++] = method;
+				++open;
+			} else {
+				method = stacks[t][--sp[t]];
+				--open;
+			}
+			final int methodWord = (int) (BASE_ADDRESS + method * 16L) | (enter ? 0 : 1);
+			wall += 1 + rand.nextInt(3);
+			cpu[t] += 1 + rand.nextInt(2);
+
+			rec.clear();
+			if (version == 1)
+				rec.put((byte) threadId(t));
+			else
+				rec.putShort((short) threadId(t));
+			rec.putInt(methodWord);
+			if (version == 3)
+				rec.putInt((int) cpu[t]);
+			rec.putInt((int) wall);
+			os.write(rec.array(), 0, rec.position());
+		}
+	}
+
+	/**
+	 * 全部方法记录
+	 */
+	public byte[] records() {
+		final ByteArrayOutputStream os = new ByteArrayOutputStream(records * getRecordSize());
+		try {
+			writeRecords(os);
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		return os.toByteArray();
+	}
+
+	/**
+	 * 写入完整的 trace 文件
+	 */
+	public void write(final File f) throws IOException {
+		final OutputStream os = new BufferedOutputStream(new FileOutputStream(f), 1 << 16);
+		try {
+			final List<String> lines = header();
+			for (int i = 0; i < lines.size(); ++i)
+				os.write((lines.get(i) + "\n").getBytes(TEXT_CHARSET));
+			os.write(binaryHeader());
+			writeRecords(os);
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * usage: TraceGenerator out.trace [records [threads [methods [depth [version]]]]]
+	 */
+	public static void main(final String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: TraceGenerator out.trace [records [threads [methods [depth [version]]]]]");
+			System.exit(1);
+		}
+		final TraceGenerator g = new TraceGenerator();
+		if (args.length > 1)
+			g.setRecords(Integer.parseInt(args[1]));
+		if (args.length > 2)
+			g.setThreads(Integer.parseInt(args[2]));
+		if (args.length > 3)
+			g.setMethods(Integer.parseInt(args[3]));
+		if (args.length > 4)
+			g.setDepth(Integer.parseInt(args[4]));
+		if (args.length > 5)
+			g.setVersion(Integer.parseInt(args[5]));
+		g.write(new File(args[0]));
+	}
+}
@@ -0,0 +1,107 @@
+package bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import parser.ITptpHandler;
+import parser.MethodEventBatch;
+import parser.TptpXmlFileWriter;
+
+/**
+ * TptpXmlFileWriter 格式化 methodEntry/methodExit 的基准，输出到 NullChannel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class XmlWriterBenchmark {
+
+	/** 每次调用的事件数(进入与退出各一半) */
+	private static final int EVENTS = 1 << 18;
+
+	/** 是否带有线程 CPU 时间 */
+	@Param({ "false", "true" })
+	public boolean cpuTime;
+
+	private TptpXmlFileWriter writer;
+	private NullChannel channel;
+
+	private int[] tids;
+	private int[] cids;
+	private long[] mids;
+	private long[] times;
+	private MethodEventBatch batch;
+
+	@Setup
+	public void setup() {
+		channel = new NullChannel();
+		writer = new TptpXmlFileWriter(channel, 1 << 20);
+		final Random rand = new Random(1);
+		tids = new int[EVENTS / 2];
+		cids = new int[EVENTS / 2];
+		mids = new long[EVENTS / 2];
+		times = new long[EVENTS / 2];
+		long time = 1400000000123456L;
+		for (int i = 0; i < EVENTS / 2; ++i) {
+			tids[i] = TraceGenerator.threadId(rand.nextInt(8));
+			mids[i] = 1 + rand.nextInt(2000);
+			cids[i] = (int) (mids[i] / 20);
+			time += 1 + rand.nextInt(3);
+			times[i] = time;
+		}
+		batch = new MethodEventBatch();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		writer.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(EVENTS)
+	public long formatMethodEvents() {
+		final TptpXmlFileWriter w = writer;
+		for (int i = 0; i < EVENTS / 2; ++i) {
+			final long t = times[i];
+			final long cpu = cpuTime ? t & 0xFFFFFFL : ITptpHandler.NO_CPU_TIME;
+			w.handleMethodEntry(tids[i], cids[i], mids[i], t / 1000000, t % 1000000 * 1000, i, 1 + (i & 15), cpu);
+			w.handleMethodExit(tids[i], cids[i], mids[i], t / 1000000, t % 1000000 * 1000 + 500, i, cpu);
+		}
+		return channel.written;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(EVENTS)
+	public long formatMethodEventBatches() {
+		final TptpXmlFileWriter w = writer;
+		final MethodEventBatch b = batch;
+		for (int i = 0; i < EVENTS / 2; ++i) {
+			final long t = times[i] * 1000;
+			final long cpu = cpuTime ? times[i] & 0xFFFFFFL : ITptpHandler.NO_CPU_TIME;
+			b.addMethodEntry(tids[i], cids[i], mids[i], t, i, 1 + (i & 15), cpu);
+			b.addMethodExit(tids[i], cids[i], mids[i], t + 500, i, cpu);
+			if (b.isFull()) {
+				w.handleMethodEvents(b);
+				b.clear();
+			}
+		}
+		return channel.written;
+	}
+}
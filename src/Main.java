@@ -1,7 +1,13 @@
 import java.io.*;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.*;
 
 import parser.*;
+import parser.compress.*;
+import parser.pipeline.PipelinedTraceConverter;
+import parser.util.ArgumentParser;
 
 public class Main {
 
@@ -21,67 +27,295 @@ public class Main {
 			hs[i].setFormatter(fmt);
 	}
 
+	/** 命令行选项 */
+	private static ArgumentParser createArgumentParser() {
+		return new ArgumentParser("convert Android trace file to TPTP xml trace file or other formats\n"
+				+ "\t./convert [options] sourcefile [destfile]\n"
+				+ "\t./convert [-format xml|folded|-profile csv|json|-calltree] compactfile.ctrace [destfile]\n"
+				+ "\t./convert -merge [-output destfile] [options] sourcefile...\n"
+				+ "\t./convert -batch [-jobs n] [-output dir] [options] dir|glob|sourcefile...\n"
+				+ "\t./convert -watch dir [-poll sec] [-jobs n] [-output dir] [options]")
+				.flag("-mmap", "read the source file through a memory mapping")
+				.flag("-pipeline", "read, decode, adapt and write in separate threads")
+				.flag("-parallel", "format threads in parallel (xml output only)")
+				.option("-buffer", "KB", "output buffer size")
+				.option("-format", "xml|compact|folded", "output format, default xml; compact is our own binary format (.ctrace)")
+				.option("-profile", "csv|json", "write per-method statistics instead of a trace")
+				.flag("-calltree", "write the merged call tree in folded format")
+				.option("-compress", "gzip|gzip-fast", "compress the output")
+				.option("-from", "usec", "drop records before this time")
+				.option("-to", "usec", "drop records after this time")
+				.option("-thread", "id|name", "keep only these threads, repeatable")
+				.option("-exclude-thread", "id|name", "drop these threads, repeatable")
+				.option("-include", "class[:method]", "keep only these methods, repeatable")
+				.option("-exclude", "class[:method]", "drop these methods, repeatable")
+				.flag("-index", "seek to the time window through the checkpoint index")
+				.option("-thread-idle", "usec", "end threads idle this long with an empty stack and release them")
+				.flag("-lazy-symbols", "decode method definitions when first called instead of the whole header")
+				.option("-event-batch", "n", "hand method events to the writer n at a time, default 0 (one by one)")
+				.flag("-merge", "merge the traces of several processes into one timeline")
+				.flag("-batch", "convert every source file separately")
+				.option("-watch", "dir", "convert new trace files appearing in dir until killed")
+				.option("-jobs", "n", "files converted at the same time, default number of processors")
+				.option("-poll", "sec", "scan interval of -watch, default 5")
+				.option("-output", "file|dir", "destination file, or directory with -batch/-watch");
+	}
+
 	/**
 	 * android 性能跟踪文件是 .trace 文件
-	 * TPTP(eclipse 的性能分析插件)性能文件是 .trcbin .trcxml 文件(分别对应二进制和xml格式)
+	 * TPTP(eclipse 的性能分析插件)性能文件是 .trcxml 文件(xml格式)
+	 * .ctrace 是本工具自己的紧凑二进制格式，可再转换为其他格式
 	 *
 	 * 关于 android trace 文件结构，参见
 	 * http://developer.android.com/tools/debugging/debugging-tracing.html
 	 */
-	public static void main(final String[] args) throws IOException {
+	public static void main(final String[] args) throws IOException, InterruptedException {
 
 		setUpLogger();
 
-		String source = null, dest = null;
+		final ArgumentParser ap = createArgumentParser();
+		final ArgumentParser.Arguments a;
+		try {
+			a = ap.parse(args);
+		} catch (final IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.out.print(ap.usage());
+			return;
+		}
+		final List<String> files = a.getPositional();
+		if (files.isEmpty() && !a.has("-watch")) {
+			System.out.print(ap.usage());
+			return;
+		}
+
+		// 选项
+		final TraceFileScaner.ReadMode readMode = a.has("-mmap") ? TraceFileScaner.ReadMode.MAPPED
+				: TraceFileScaner.ReadMode.STREAM;
+		final int bufferSize = a.getInt("-buffer", Utf8ChannelWriter.DEFAULT_BUFFER_SIZE / 1024) * 1024;
+		final ICompressionCodec codec = a.has("-compress") ? CompressionCodecs.forName(a.get("-compress", null)) : null;
+		final boolean pipelined = a.has("-pipeline");
+		final boolean parallel = a.has("-parallel");
+		final boolean useIndex = a.has("-index");
+		final long threadIdleTimeout = a.getLong("-thread-idle", 0);
+		final boolean lazySymbols = a.has("-lazy-symbols");
+		final int eventBatch = a.getInt("-event-batch", 0);
+		final boolean merge = a.has("-merge");
+		final boolean batch = a.has("-batch") || a.has("-watch");
+		String dest = a.get("-output", null);
 
-		// for debug
-		source = "E:\\data\\application\\win7_64\\developer\\android_sdk_windows_rev21\\platform-tools\\t.trace";
-//		dest = "./output.trcxml";
+		OutputFormat format = OutputFormat.forName(a.get("-format", "xml"));
+		if (format == OutputFormat.CSV || format == OutputFormat.JSON || format == OutputFormat.CALLTREE)
+			throw new IllegalArgumentException("unknown format : " + a.get("-format", null));
+		if (a.has("-profile")) {
+			// 只输出统计汇总
+			format = OutputFormat.forName(a.get("-profile", null));
+			if (format != OutputFormat.CSV && format != OutputFormat.JSON)
+				throw new IllegalArgumentException("unknown profile format : " + a.get("-profile", null));
+		} else if (a.has("-calltree")) {
+			// 调用树，以 folded 格式输出
+			format = OutputFormat.CALLTREE;
+		}
 
-		// get source
-		if (source == null) {
-			if (args.length >= 1) {
-				source = args[0];
-			} else {
-				System.out.println("usage: convert Android trace file to TPTP xml trace file\n"
-					+ "command: \n\t./convert sourcefile [destfile]");
+		// 过滤规则，按命令行中的顺序
+		TraceFilter filter = null;
+		final MethodFilter methodFilter = new MethodFilter();
+		for (int i = 0; i < a.size(); ++i) {
+			final String name = a.getName(i);
+			final String t = a.getValue(i);
+			if (name.equals("-thread") || name.equals("-exclude-thread")) {
+				if (filter == null)
+					filter = new TraceFilter();
+				final boolean include = name.equals("-thread");
+				if (t.matches("\\d+")) {
+					if (include)
+						filter.includeThread(Integer.parseInt(t));
+					else
+						filter.excludeThread(Integer.parseInt(t));
+				} else {
+					if (include)
+						filter.includeThreadName(t);
+					else
+						filter.excludeThreadName(t);
+				}
+			} else if (name.equals("-include"))
+				methodFilter.add(t, MethodFilter.Mode.INCLUDE);
+			else if (name.equals("-exclude"))
+				methodFilter.add(t, MethodFilter.Mode.EXCLUDE);
+		}
+		final long windowStart = a.getLong("-from", 0), windowEnd = a.getLong("-to", Long.MAX_VALUE);
+		if (windowStart != 0 || windowEnd != Long.MAX_VALUE) {
+			if (filter == null)
+				filter = new TraceFilter();
+			filter.setTimeWindow(windowStart, windowEnd);
+		}
+
+		if (filter != null && (pipelined || parallel))
+			throw new IllegalArgumentException("-from/-to/-thread filters are not supported with -pipeline/-parallel");
+		if (!methodFilter.isEmpty() && (pipelined || parallel))
+			throw new IllegalArgumentException("-include/-exclude filters are not supported with -pipeline/-parallel");
+		if (useIndex && (pipelined || parallel))
+			throw new IllegalArgumentException("-index is not supported with -pipeline/-parallel");
+		if (threadIdleTimeout != 0 && (pipelined || parallel))
+			throw new IllegalArgumentException("-thread-idle is not supported with -pipeline/-parallel");
+		if (lazySymbols && (pipelined || parallel || merge))
+			throw new IllegalArgumentException("-lazy-symbols is not supported with -pipeline/-parallel/-merge");
+		if (eventBatch < 0)
+			throw new IllegalArgumentException("invalid -event-batch : " + eventBatch);
+		if (eventBatch != 0 && (pipelined || parallel || merge || batch))
+			throw new IllegalArgumentException("-event-batch is not supported with -pipeline/-parallel/-merge/-batch/-watch");
+		if (merge && (pipelined || parallel || filter != null || useIndex))
+			throw new IllegalArgumentException(
+					"-pipeline/-parallel/-from/-to/-thread/-index are not supported with -merge");
+		if (batch && (merge || pipelined || parallel || filter != null || useIndex))
+			throw new IllegalArgumentException(
+					"-merge/-pipeline/-parallel/-from/-to/-thread/-index are not supported with -batch/-watch");
+		if (parallel && format != OutputFormat.XML)
+			throw new IllegalArgumentException("-parallel only supports xml output");
+
+		if (batch) {
+			// 多个文件分别转换，输出到 -output 目录或源文件所在的目录
+			final BatchConverter bc = new BatchConverter(format, a.getInt("-jobs", Runtime.getRuntime()
+					.availableProcessors()));
+			if (dest != null) {
+				final File dir = new File(dest);
+				if (!dir.isDirectory() && !dir.mkdirs())
+					throw new IllegalArgumentException("can not create output directory : " + dest);
+				bc.setOutputDirectory(dir);
+			}
+			bc.setCompressionCodec(codec);
+			bc.setReadMode(readMode);
+			bc.setMethodFilter(methodFilter);
+			bc.setThreadIdleTimeout(threadIdleTimeout);
+			bc.setLazySymbols(lazySymbols);
+			bc.setBufferSize(bufferSize);
+			if (a.has("-watch")) {
+				bc.watch(new File(a.get("-watch", null)), a.getLong("-poll", 5) * 1000);
 				return;
 			}
+			final List<File> sources = new ArrayList<File>();
+			for (final String s : files)
+				sources.addAll(BatchConverter.listSources(s));
+			int failed = 0;
+			for (final BatchConverter.Result r : bc.convert(sources)) {
+				if (r.error != null)
+					++failed;
+			}
+			if (failed > 0)
+				throw new RuntimeException(failed + " of " + sources.size() + " files failed to convert");
+			return;
 		}
 
+		final String source = files.get(0);
+		// 本工具的紧凑格式中的记录已经过适配，只能再转换为其他输出格式
+		final boolean compactSource = source.toLowerCase().endsWith(".ctrace");
+		if (compactSource && (format == OutputFormat.COMPACT || merge || pipelined || parallel || filter != null
+				|| !methodFilter.isEmpty() || useIndex || threadIdleTimeout != 0 || lazySymbols || eventBatch != 0))
+			throw new IllegalArgumentException(
+					"only -format xml|folded, -profile, -calltree, -compress and -buffer are supported with a .ctrace source");
 		if (dest == null) {
-			if (args.length >= 2) {
-				dest = args[1];
+			String ext = format.getFileExtension();
+			if (codec != null)
+				ext += "." + codec.getFileExtension();
+			if (merge) {
+				if (source.toLowerCase().endsWith(".trace"))
+					dest = source.substring(0, source.length() - 6) + "-merged." + ext;
+				else
+					dest = source + "-merged." + ext;
+			} else if (files.size() >= 2) {
+				dest = files.get(1);
 			} else if (source.toLowerCase().endsWith(".trace")) {
-				dest = source.substring(0, source.length() - 5) + "trcxml";
+				dest = source.substring(0, source.length() - 5) + ext;
+			} else if (compactSource) {
+				dest = source.substring(0, source.length() - 6) + ext;
 			} else {
-				dest = source + ".trcxml";
+				dest = source + "." + ext;
 			}
 		}
 
 		// 文件写入器
-		final FileWriter fw = new FileWriter(dest);
+		final FileOutputStream fos = new FileOutputStream(dest);
+		final WritableByteChannel channel;
+		if (codec != null)
+			channel = new AsyncCompressionChannel(fos, codec); // 在独立线程中压缩
+		else
+			channel = fos.getChannel();
 
 		// TPTP Trace 文件写入器
-		final TptpXmlFileWriter tfw = new TptpXmlFileWriter(fw);
+		final OutputFormat.Sink sink = format.open(channel, bufferSize);
+		final ITptpHandler handler = sink.handler;
+		final Closeable output = sink.output;
 
-		// TPTP 适配器
-		final TptpAdapter ta = new TptpAdapter(tfw);
+		if (merge) {
+			// 多个进程的 trace 按时间合并
+			final List<File> sources = new ArrayList<File>();
+			for (int i = 0; i < files.size(); ++i)
+				sources.add(new File(files.get(i)));
+			final TraceMerger merger = new TraceMerger(sources, handler);
+			merger.setMethodFilter(methodFilter);
+			merger.setThreadIdleTimeout(threadIdleTimeout);
+			try {
+				merger.process();
+			} finally {
+				output.close();
+			}
+			return;
+		}
 
-		// Android Trace 记录解析器
-		final TraceRecordParser trp = new TraceRecordParser(ta);
+		if (compactSource) {
+			// 紧凑格式转换为其他格式
+			try {
+				new CompactTraceReader(new File(source), handler).process();
+			} finally {
+				output.close();
+			}
+			return;
+		}
 
 		// android trace 文件
 		final File tracefile = new File(source);
 
+		if (pipelined) {
+			// 读取、解码、适配、写入分别在独立线程中进行
+			try {
+				new PipelinedTraceConverter(tracefile, handler).process();
+			} finally {
+				output.close();
+			}
+			return;
+		}
+
+		if (parallel) {
+			// 按线程分片并行格式化，只支持 xml 输出
+			try {
+				new ParallelTraceConverter(tracefile, (TptpXmlFileWriter) handler).process();
+			} finally {
+				output.close();
+			}
+			return;
+		}
+
+		// TPTP 适配器
+		final TptpAdapter ta = new TptpAdapter(handler, eventBatch);
+		ta.setMethodFilter(methodFilter);
+		ta.setThreadIdleTimeout(threadIdleTimeout);
+		ta.setLazySymbols(lazySymbols);
+
+		// Android Trace 记录解析器
+		final TraceRecordParser trp = new TraceRecordParser(ta);
+		trp.setFilter(filter);
+
 		// Android Trace 文件流转换为记录流
 		final TraceFileScaner tfs = new TraceFileScaner(tracefile, trp);
+		tfs.setReadMode(readMode);
 
-		// 开始处理
+		// 开始处理，使用索引时从时间窗口之前最近的检查点开始
 		try {
-			tfs.process();
+			if (useIndex)
+				tfs.process(TraceIndex.open(tracefile));
+			else
+				tfs.process();
 		} finally {
-			fw.close();
+			output.close();
 		}
 	}
 }
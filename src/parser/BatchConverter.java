@@ -0,0 +1,357 @@
+package parser;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import parser.compress.AsyncCompressionChannel;
+import parser.compress.ICompressionCodec;
+
+/**
+ * 批量转换: 以固定大小的线程池并行转换多个 Android Trace 文件，或者监视目录，转换其中新出现的文件
+ *
+ * 所有文件在同一个 JVM 中转换，JIT 编译的结果对后续文件都有效；解析器、适配器、处理者保存的是单个文件的状态，
+ * 每个文件新建，读取和输出缓冲区则放在池中由各文件复用。每个文件转换后记录其吞吐量
+ */
+public class BatchConverter {
+
+	private static final Logger logger = Logger.getLogger(BatchConverter.class.getCanonicalName());
+
+	/**
+	 * 一个文件的转换结果
+	 */
+	public static final class Result {
+		public final File source;
+		public final File dest;
+		/** 源文件大小(字节) */
+		public final long bytes;
+		/** 用时(ms) */
+		public final long millis;
+		/** 失败的原因，成功为 null */
+		public final Throwable error;
+
+		Result(final File source, final File dest, final long bytes, final long millis, final Throwable error) {
+			this.source = source;
+			this.dest = dest;
+			this.bytes = bytes;
+			this.millis = millis;
+			this.error = error;
+		}
+
+		/** 吞吐量(MB/s) */
+		public double getThroughput() {
+			return bytes / 1048576.0 * 1000 / Math.max(1, millis);
+		}
+	}
+
+	/**
+	 * 一个文件转换时使用的缓冲区
+	 */
+	private static final class Buffers {
+		final ByteBuffer read = ByteBuffer.allocate(TraceFileScaner.READ_BUFFER_SIZE);
+		final ByteBuffer write;
+
+		Buffers(final int writeSize) {
+			write = ByteBuffer.allocateDirect(writeSize);
+		}
+	}
+
+	private final OutputFormat format;
+	private final int jobs;
+	private File outputDir = null;
+	private ICompressionCodec codec = null;
+	private TraceFileScaner.ReadMode readMode = TraceFileScaner.ReadMode.STREAM;
+	private MethodFilter methodFilter = null;
+	private long threadIdleTimeout = 0;
+	private boolean lazySymbols = false;
+	private int bufferSize = Utf8ChannelWriter.DEFAULT_BUFFER_SIZE;
+
+	/** 空闲的缓冲区，同时转换的文件不超过 jobs 个，缓冲区也不超过 jobs 组 */
+	private final ConcurrentLinkedQueue<Buffers> bufferPool = new ConcurrentLinkedQueue<Buffers>();
+
+	/**
+	 * @param jobs
+	 *            同时转换的文件数
+	 */
+	public BatchConverter(final OutputFormat format, final int jobs) {
+		if (format == null || jobs <= 0)
+			throw new IllegalArgumentException();
+		this.format = format;
+		this.jobs = jobs;
+	}
+
+	/** 输出目录，null 则输出到源文件所在的目录 */
+	public void setOutputDirectory(final File dir) {
+		outputDir = dir;
+	}
+
+	/** 输出的压缩算法，null 则不压缩 */
+	public void setCompressionCodec(final ICompressionCodec codec) {
+		this.codec = codec;
+	}
+
+	public void setReadMode(final TraceFileScaner.ReadMode mode) {
+		readMode = mode;
+	}
+
+	/** 方法过滤规则，用于所有文件 */
+	public void setMethodFilter(final MethodFilter filter) {
+		methodFilter = filter;
+	}
+
+	/** 空闲线程的超时(in usec)，参见 TptpAdapter.setThreadIdleTimeout() */
+	public void setThreadIdleTimeout(final long timeout) {
+		threadIdleTimeout = timeout;
+	}
+
+	/** 是否延迟解析方法定义，参见 TptpAdapter.setLazySymbols() */
+	public void setLazySymbols(final boolean lazy) {
+		lazySymbols = lazy;
+	}
+
+	/** 输出缓冲区大小(字节)，须在转换开始前设置 */
+	public void setBufferSize(final int size) {
+		bufferSize = size;
+	}
+
+	/**
+	 * 输出文件: 源文件名去掉 .trace 后加上输出格式的扩展名
+	 */
+	public File getDestination(final File source) {
+		String ext = format.getFileExtension();
+		if (codec != null)
+			ext += "." + codec.getFileExtension();
+		final String name = source.getName();
+		final String base = name.toLowerCase().endsWith(".trace") ? name.substring(0, name.length() - 6) : name;
+		return new File(outputDir != null ? outputDir : source.getAbsoluteFile().getParentFile(), base + "." + ext);
+	}
+
+	/**
+	 * 转换所有文件，转换失败的文件记录日志后继续转换其他文件
+	 *
+	 * @return 各文件的转换结果，与 sources 顺序相同
+	 */
+	public List<Result> convert(final List<File> sources) throws InterruptedException {
+		final long t0 = System.nanoTime();
+		final ExecutorService pool = Executors.newFixedThreadPool(jobs);
+		final List<Result> ret = new ArrayList<Result>();
+		try {
+			final List<Future<Result>> futures = new ArrayList<Future<Result>>();
+			for (final File f : sources) {
+				futures.add(pool.submit(new Callable<Result>() {
+					public Result call() {
+						return convert(f);
+					}
+				}));
+			}
+			for (final Future<Result> f : futures) {
+				try {
+					ret.add(f.get());
+				} catch (final ExecutionException e) {
+					// convert(File) 不抛出异常
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		long bytes = 0;
+		int failed = 0;
+		for (final Result r : ret) {
+			bytes += r.bytes;
+			if (r.error != null)
+				++failed;
+		}
+		final Result total = new Result(null, null, bytes, (System.nanoTime() - t0) / 1000000, null);
+		logger.info(String.format("converted %d files (%d failed) with %d jobs : %.1f MB in %d ms (%.1f MB/s)",
+				ret.size(), failed, jobs, bytes / 1048576.0, total.millis, total.getThroughput()));
+		return ret;
+	}
+
+	/**
+	 * 监视目录，转换其中新出现的 .trace 文件，直到线程被中断
+	 *
+	 * 两次扫描之间大小不变的文件才认为已写完；输出文件已存在且不早于源文件的，认为已经转换过
+	 *
+	 * @param pollMillis
+	 *            扫描间隔(ms)
+	 */
+	public void watch(final File dir, final long pollMillis) throws InterruptedException {
+		if (!dir.isDirectory())
+			throw new IllegalArgumentException("not a directory : " + dir);
+		if (pollMillis <= 0)
+			throw new IllegalArgumentException();
+
+		logger.info(String.format("watching %s every %d ms with %d jobs", dir, pollMillis, jobs));
+		final ExecutorService pool = Executors.newFixedThreadPool(jobs);
+		// 上次扫描时的文件大小
+		final Map<File, Long> sizes = new HashMap<File, Long>();
+		// 已经转换或正在转换的文件，从目录中删除后移除
+		final Set<File> seen = new HashSet<File>();
+		try {
+			while (true) {
+				final List<File> present = listTraceFiles(dir);
+				for (final File f : present) {
+					if (seen.contains(f))
+						continue;
+					final File dest = getDestination(f);
+					if (dest.exists() && dest.lastModified() >= f.lastModified()) {
+						seen.add(f);
+						continue;
+					}
+					final long size = f.length();
+					final Long last = sizes.put(f, size);
+					if (last != null && last.longValue() == size) {
+						sizes.remove(f);
+						seen.add(f);
+						pool.submit(new Runnable() {
+							public void run() {
+								convert(f);
+							}
+						});
+					}
+				}
+				seen.retainAll(present);
+				sizes.keySet().retainAll(present);
+				Thread.sleep(pollMillis);
+			}
+		} finally {
+			// 等待正在转换的文件完成
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * 转换一个文件，失败时删除不完整的输出
+	 */
+	Result convert(final File source) {
+		final File dest = getDestination(source);
+		final long bytes = source.length();
+		final long t0 = System.nanoTime();
+		Buffers b = bufferPool.poll();
+		if (b == null)
+			b = new Buffers(bufferSize);
+		try {
+			final FileOutputStream fos = new FileOutputStream(dest);
+			final OutputFormat.Sink sink;
+			try {
+				final WritableByteChannel ch = codec != null ? new AsyncCompressionChannel(fos, codec) : fos
+						.getChannel();
+				sink = format.open(ch, b.write);
+			} catch (final IOException e) {
+				fos.close();
+				throw e;
+			}
+			try {
+				final TptpAdapter ta = new TptpAdapter(sink.handler);
+				ta.setMethodFilter(methodFilter);
+				ta.setThreadIdleTimeout(threadIdleTimeout);
+				ta.setLazySymbols(lazySymbols);
+				final TraceFileScaner tfs = new TraceFileScaner(source, new TraceRecordParser(ta));
+				tfs.setReadMode(readMode);
+				tfs.setReadBuffer(b.read);
+				tfs.process();
+			} finally {
+				sink.output.close();
+			}
+
+			final Result r = new Result(source, dest, bytes, (System.nanoTime() - t0) / 1000000, null);
+			logger.info(String.format("converted %s -> %s : %.1f MB in %d ms (%.1f MB/s)", source, dest,
+					bytes / 1048576.0, r.millis, r.getThroughput()));
+			return r;
+		} catch (final Exception e) {
+			logger.log(Level.SEVERE, "failed to convert " + source + " : " + e, e);
+			if (dest.exists() && !dest.delete())
+				logger.warning("can not delete " + dest);
+			return new Result(source, dest, bytes, (System.nanoTime() - t0) / 1000000, e);
+		} finally {
+			bufferPool.offer(b);
+		}
+	}
+
+	/**
+	 * 由命令行参数取得要转换的文件: 目录中的所有 .trace 文件，或者匹配通配符(glob)的文件，或者文件本身
+	 *
+	 * 通配符只出现在最后一级时只匹配该目录中的文件，否则匹配子目录中的文件，例如 "traces/**.trace"
+	 */
+	public static List<File> listSources(final String spec) {
+		int wildcard = -1;
+		for (int i = 0; i < spec.length() && wildcard < 0; ++i) {
+			if ("*?[{".indexOf(spec.charAt(i)) >= 0)
+				wildcard = i;
+		}
+
+		if (wildcard < 0) {
+			final File f = new File(spec);
+			if (f.isDirectory())
+				return listTraceFiles(f);
+			if (!f.isFile())
+				throw new IllegalArgumentException("no such file : " + spec);
+			return new ArrayList<File>(Arrays.asList(f));
+		}
+
+		// 通配符之前的目录
+		final int sep = Math.max(spec.lastIndexOf('/', wildcard), spec.lastIndexOf(File.separatorChar, wildcard));
+		final File dir = new File(sep < 0 ? "." : spec.substring(0, sep + 1));
+		final String pattern = spec.substring(sep + 1);
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+		final boolean recursive = pattern.indexOf('/') >= 0 || pattern.indexOf(File.separatorChar) >= 0
+				|| pattern.contains("**");
+		final List<File> ret = new ArrayList<File>();
+		collect(dir.toPath(), dir, matcher, recursive, ret);
+		if (ret.isEmpty())
+			throw new IllegalArgumentException("no file matches : " + spec);
+		return ret;
+	}
+
+	private static void collect(final Path root, final File dir, final PathMatcher matcher, final boolean recursive,
+			final List<File> ret) {
+		final File[] fs = dir.listFiles();
+		if (fs == null)
+			return;
+		Arrays.sort(fs);
+		for (final File f : fs) {
+			if (f.isFile() && matcher.matches(root.relativize(f.toPath())))
+				ret.add(f);
+			else if (recursive && f.isDirectory())
+				collect(root, f, matcher, recursive, ret);
+		}
+	}
+
+	/** 目录中的 .trace 文件，按文件名排序 */
+	private static List<File> listTraceFiles(final File dir) {
+		final List<File> ret = new ArrayList<File>();
+		final File[] fs = dir.listFiles();
+		if (fs == null)
+			return ret;
+		Arrays.sort(fs);
+		for (final File f : fs) {
+			if (f.isFile() && f.getName().toLowerCase().endsWith(".trace"))
+				ret.add(f);
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,109 @@
+package parser;
+
+/**
+ * 将只能逐个处理事件的 ITptpHandler 包装为 IBatchTptpHandler，成批的方法事件被逐个交给被包装的处理者
+ */
+public class BatchHandlerAdapter implements IBatchTptpHandler {
+
+	private final ITptpHandler target;
+
+	public BatchHandlerAdapter(final ITptpHandler target) {
+		if (target == null)
+			throw new IllegalArgumentException();
+		this.target = target;
+	}
+
+	/**
+	 * 若 h 已能成批处理事件则直接返回，否则包装
+	 */
+	public static IBatchTptpHandler adapt(final ITptpHandler h) {
+		if (h instanceof IBatchTptpHandler)
+			return (IBatchTptpHandler) h;
+		return new BatchHandlerAdapter(h);
+	}
+
+	public void handleMethodEvents(final MethodEventBatch batch) {
+		batch.replay(target);
+	}
+
+	public void handleStart() {
+		target.handleStart();
+	}
+
+	public void handleEnd() {
+		target.handleEnd();
+	}
+
+	public void handleNode(final String id, final String host, final String ip, final int timezone,
+			final long timeUTCSec, final long timeUTCNsec) {
+		target.handleNode(id, host, ip, timezone, timeUTCSec, timeUTCNsec);
+	}
+
+	public void handleProcessCreate(final String uuid, final int pid, final String nodeId, final long timeUTCSec,
+			final long timeUTCNsec) {
+		target.handleProcessCreate(uuid, pid, nodeId, timeUTCSec, timeUTCNsec);
+	}
+
+	public void handleAgentCreate(final String uuid, final String version, final String puuid, final String name,
+			final String type, final String parameters, final long timeUTCSec, final long timeUTCNsec) {
+		target.handleAgentCreate(uuid, version, puuid, name, type, parameters, timeUTCSec, timeUTCNsec);
+	}
+
+	public void handleAgentDestroy(final String uuid, final long timeUTCSec, final long timeUTCNsec) {
+		target.handleAgentDestroy(uuid, timeUTCSec, timeUTCNsec);
+	}
+
+	public void handleTraceStart(final String uuid, final String auuid, final long timeUTCSec, final long timeUTCNsec) {
+		target.handleTraceStart(uuid, auuid, timeUTCSec, timeUTCNsec);
+	}
+
+	public void handleRuntimeInitDone(final int tid, final long timeUTCSec, final long timeUTCNsec) {
+		target.handleRuntimeInitDone(tid, timeUTCSec, timeUTCNsec);
+	}
+
+	public void handleRuntimeShutdown(final long timeUTCSec, final long timeUTCNSec) {
+		target.handleRuntimeShutdown(timeUTCSec, timeUTCNSec);
+	}
+
+	public void handleFilter(final String pattern, final String mode, final String genericPattern,
+			final String methodPattern, final String methodMode, final String methodGenericPattern) {
+		target.handleFilter(pattern, mode, genericPattern, methodPattern, methodMode, methodGenericPattern);
+	}
+
+	public void handleOption(final String key, final String value) {
+		target.handleOption(key, value);
+	}
+
+	public void handleThreadStart(final int tid, final long timeUTCSec, final long timeUTCNsec, final String name,
+			final String group, final String parent) {
+		target.handleThreadStart(tid, timeUTCSec, timeUTCNsec, name, group, parent);
+	}
+
+	public void handleTraceEnd(final long timeUTCSec, final long timeUTCNsec) {
+		target.handleTraceEnd(timeUTCSec, timeUTCNsec);
+	}
+
+	public void handleThreadEnd(final int tid, final long timeUTCSec, final long timeUTCNsec) {
+		target.handleThreadEnd(tid, timeUTCSec, timeUTCNsec);
+	}
+
+	public void handleClassDef(final int cid, final String name, final String sourceFile, final long timeUTCSec,
+			final long timeUTCNsec) {
+		target.handleClassDef(cid, name, sourceFile, timeUTCSec, timeUTCNsec);
+	}
+
+	public void handleMethodDef(final long mid, final String name, final String signature, final int startLine,
+			final int endLine, final int classId) {
+		target.handleMethodDef(mid, name, signature, startLine, endLine, classId);
+	}
+
+	public void handleMethodEntry(final int tid, final int cid, final long mid, final long timeUTCSec,
+			final long timeUTCNsec, final int ticket, final int stackDepth, final long threadCpuTime) {
+		target.handleMethodEntry(tid, cid, mid, timeUTCSec, timeUTCNsec, ticket, stackDepth, threadCpuTime);
+	}
+
+	public void handleMethodExit(final int tid, final int cid, final long mid, final long timeUTCSec,
+			final long timeUTCNsec, final int ticket, final long threadCpuTime) {
+		target.handleMethodExit(tid, cid, mid, timeUTCSec, timeUTCNsec, ticket, threadCpuTime);
+	}
+}
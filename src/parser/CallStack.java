@@ -0,0 +1,89 @@
+package parser;
+
+import java.util.Arrays;
+
+/**
+ * 处理者中一个线程的调用栈，各层的值、ticket、开始时间和子调用时间存放在基本类型数组中
+ *
+ * 处理者只收到 methodEntry/methodExit 记录，看不到适配器中 ThreadItem 的调用栈(处理者可能在另一个线程中，
+ * 也可能处理合并或过滤后的记录)，因此按记录中的 ticket 重建调用栈: methodExit 对应 ticket 相同的调用，
+ * 其上未退出的调用一并结束，ticket 不在栈中的 methodExit 忽略
+ */
+final class CallStack {
+
+	private int depth = 0;
+	/** 各层的值，含义由处理者决定(methodId、调用树节点等) */
+	private int[] values = new int[64];
+	private int[] tickets = new int[64];
+	/** 开始时间(ns) */
+	private long[] starts = new long[64];
+	/** 已结束的下一层调用的时间之和(ns) */
+	private long[] children = new long[64];
+	/** 最后一次进入或结束调用的时间(ns) */
+	private long lastTime = 0;
+
+	int depth() {
+		return depth;
+	}
+
+	/** 第 level 层(0 为最外层)的值 */
+	int valueAt(final int level) {
+		return values[level];
+	}
+
+	int top() {
+		return values[depth - 1];
+	}
+
+	void push(final int value, final int ticket, final long time) {
+		if (depth == values.length) {
+			final int len = depth * 2;
+			values = Arrays.copyOf(values, len);
+			tickets = Arrays.copyOf(tickets, len);
+			starts = Arrays.copyOf(starts, len);
+			children = Arrays.copyOf(children, len);
+		}
+		values[depth] = value;
+		tickets[depth] = ticket;
+		starts[depth] = time;
+		children[depth] = 0;
+		++depth;
+		lastTime = time;
+	}
+
+	/**
+	 * methodExit 结束的层: ticket 对应的调用所在的层，该层及其上各层都应结束
+	 *
+	 * @return ticket 不在栈中则为 -1
+	 */
+	int levelOf(final int ticket) {
+		int d = depth - 1;
+		while (d >= 0 && tickets[d] != ticket)
+			--d;
+		return d;
+	}
+
+	/** 栈顶调用结束于 time 时的独占时间(ns)，即不含下一层调用的时间 */
+	long selfTime(final long time) {
+		return time - starts[depth - 1] - children[depth - 1];
+	}
+
+	/**
+	 * 结束栈顶的调用，其时间计入上一层的子调用时间
+	 *
+	 * @return 调用的时间(ns)
+	 */
+	long pop(final long time) {
+		--depth;
+		final long t = time - starts[depth];
+		if (depth > 0)
+			children[depth - 1] += t;
+		lastTime = time;
+		return t;
+	}
+
+	/** trace 或线程结束于 time 时，未退出的调用的结束时间: 不早于栈中最后一次进入或结束调用的时间 */
+	long closingTime(final long time) {
+		return Math.max(time, lastTime);
+	}
+}
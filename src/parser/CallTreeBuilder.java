@@ -0,0 +1,330 @@
+package parser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import parser.util.IntObjectHashMap;
+import parser.util.LongIntHashMap;
+
+/**
+ * 由方法记录建立各线程的调用上下文树(calling context tree)，结束时以 folded 格式输出，可直接用于生成火焰图
+ *
+ * 节点以数组形式存放(父节点、方法、第一个子节点、下一个兄弟节点、包含时间、调用次数)，节点下标即节点 id。
+ * 子节点通过 (父节点, methodId) 为键的哈希表查找。节点数只与不同的调用路径数有关，与记录数无关
+ */
+public class CallTreeBuilder extends TptpHandlerBase implements IBatchTptpHandler, Closeable {
+
+	/** 根节点的 methodId */
+	public static final int ROOT_METHOD = -1;
+
+	/** 不存在的节点 */
+	public static final int NO_NODE = -1;
+
+	// 节点
+	private int nodes = 0;
+	private int[] parent = new int[1024];
+	private int[] method = new int[1024];
+	private int[] firstChild = new int[1024];
+	private int[] nextSibling = new int[1024];
+	/** 包含时间(ns) */
+	private long[] inclusive = new long[1024];
+	private long[] count = new long[1024];
+
+	/** ((long) 父节点 << 32 | methodId) -> 子节点 */
+	private final LongIntHashMap children = new LongIntHashMap(1024);
+
+	/**
+	 * 一个线程的调用树及当前调用栈
+	 */
+	private static final class ThreadTree {
+		final int tid;
+		final int root;
+		String name = "";
+
+		/** 各层的值为调用树节点 */
+		final CallStack stack = new CallStack();
+
+		ThreadTree(final int tid, final int root) {
+			this.tid = tid;
+			this.root = root;
+		}
+	}
+
+	private final IntObjectHashMap<ThreadTree> threads = new IntObjectHashMap<ThreadTree>();
+	/** 按第一次出现的顺序 */
+	private final List<ThreadTree> threadList = new ArrayList<ThreadTree>();
+
+	// 以 classId/methodId 为下标
+	private String[] classNames = new String[64];
+	private String[] methodNames = new String[64];
+	private int[] methodClasses = new int[64];
+
+	private final Writer out;
+	private boolean reported = false;
+
+	/**
+	 * @param w
+	 *            close() 时向其中写入 folded 格式的调用树，之后关闭；为 null 则只建立调用树
+	 */
+	public CallTreeBuilder(final Writer w) {
+		out = w;
+	}
+
+	private int newNode(final int p, final int mid) {
+		final int n = nodes++;
+		if (n == parent.length) {
+			final int len = n * 2;
+			parent = Arrays.copyOf(parent, len);
+			method = Arrays.copyOf(method, len);
+			firstChild = Arrays.copyOf(firstChild, len);
+			nextSibling = Arrays.copyOf(nextSibling, len);
+			inclusive = Arrays.copyOf(inclusive, len);
+			count = Arrays.copyOf(count, len);
+		}
+		parent[n] = p;
+		method[n] = mid;
+		firstChild[n] = NO_NODE;
+		inclusive[n] = 0;
+		count[n] = 0;
+		if (p == NO_NODE) {
+			nextSibling[n] = NO_NODE;
+		} else {
+			nextSibling[n] = firstChild[p];
+			firstChild[p] = n;
+		}
+		return n;
+	}
+
+	private int child(final int p, final int mid) {
+		final long key = ((long) p << 32) | (mid & 0xFFFFFFFFL);
+		int n = children.get(key);
+		if (n == LongIntHashMap.NO_VALUE) {
+			n = newNode(p, mid);
+			children.put(key, n);
+		}
+		return n;
+	}
+
+	private ThreadTree thread(final int tid) {
+		ThreadTree tt = threads.get(tid);
+		if (tt == null) {
+			tt = new ThreadTree(tid, newNode(NO_NODE, ROOT_METHOD));
+			threads.put(tid, tt);
+			threadList.add(tt);
+		}
+		return tt;
+	}
+
+	private void pop(final ThreadTree tt, final long time) {
+		final int n = tt.stack.top();
+		inclusive[n] += tt.stack.pop(time);
+		++count[n];
+	}
+
+	// 查询
+
+	public int getNodeCount() {
+		return nodes;
+	}
+
+	/** 线程调用树的根节点，线程不存在则返回 NO_NODE */
+	public int getRoot(final int tid) {
+		final ThreadTree tt = threads.get(tid);
+		return tt == null ? NO_NODE : tt.root;
+	}
+
+	public int getParent(final int node) {
+		return parent[node];
+	}
+
+	public int getMethodId(final int node) {
+		return method[node];
+	}
+
+	public int getFirstChild(final int node) {
+		return firstChild[node];
+	}
+
+	public int getNextSibling(final int node) {
+		return nextSibling[node];
+	}
+
+	/** 包含时间(ns) */
+	public long getInclusiveTime(final int node) {
+		return inclusive[node];
+	}
+
+	public long getCallCount(final int node) {
+		return count[node];
+	}
+
+	// ITptpHandler
+
+	/** 结束所有未退出的调用 */
+	public void handleTraceEnd(final long timeUTCSec, final long timeUTCNsec) {
+		final long time = toNsec(timeUTCSec, timeUTCNsec);
+		for (int i = 0; i < threadList.size(); ++i) {
+			final ThreadTree tt = threadList.get(i);
+			final long end = tt.stack.closingTime(time);
+			while (tt.stack.depth() > 0)
+				pop(tt, end);
+		}
+	}
+
+	public void handleThreadStart(final int tid, final long timeUTCSec, final long timeUTCNsec, final String name,
+			final String group, final String parent) {
+		if (tid < 0 || name == null)
+			throw new IllegalArgumentException();
+		thread(tid).name = name;
+	}
+
+	public void handleClassDef(final int cid, final String name, final String sourceFile, final long timeUTCSec,
+			final long timeUTCNsec) {
+		if (cid < 0 || name == null)
+			throw new IllegalArgumentException();
+		if (cid >= classNames.length)
+			classNames = Arrays.copyOf(classNames, Math.max(cid + 1, classNames.length * 2));
+		classNames[cid] = name;
+	}
+
+	public void handleMethodDef(final long mid, final String name, final String signature, final int startLine,
+			final int endLine, final int classId) {
+		if (mid < 0 || mid > Integer.MAX_VALUE || name == null || classId < 0)
+			throw new IllegalArgumentException();
+		final int id = (int) mid;
+		if (id >= methodNames.length) {
+			final int len = Math.max(id + 1, methodNames.length * 2);
+			methodNames = Arrays.copyOf(methodNames, len);
+			methodClasses = Arrays.copyOf(methodClasses, len);
+		}
+		methodNames[id] = name;
+		methodClasses[id] = classId;
+	}
+
+	public void handleMethodEntry(final int tid, final int cid, final long mid, final long timeUTCSec,
+			final long timeUTCNsec, final int ticket, final int stackDepth, final long threadCpuTime) {
+		if (tid < 0 || mid < 0 || mid > Integer.MAX_VALUE)
+			throw new IllegalArgumentException();
+		enter(thread(tid), (int) mid, ticket, toNsec(timeUTCSec, timeUTCNsec));
+	}
+
+	public void handleMethodExit(final int tid, final int cid, final long mid, final long timeUTCSec,
+			final long timeUTCNsec, final int ticket, final long threadCpuTime) {
+		if (tid < 0 || mid < 0)
+			throw new IllegalArgumentException();
+		exit(thread(tid), ticket, toNsec(timeUTCSec, timeUTCNsec));
+	}
+
+	public void handleMethodEvents(final MethodEventBatch batch) {
+		int lastTid = -1;
+		ThreadTree tt = null;
+		for (int i = 0; i < batch.size(); ++i) {
+			final int tid = batch.tid[i];
+			final long mid = batch.mid[i];
+			if (tid < 0 || mid < 0 || batch.kind[i] == MethodEventBatch.METHOD_ENTRY && mid > Integer.MAX_VALUE)
+				throw new IllegalArgumentException();
+			if (tid != lastTid) {
+				tt = thread(tid);
+				lastTid = tid;
+			}
+			if (batch.kind[i] == MethodEventBatch.METHOD_ENTRY)
+				enter(tt, (int) mid, batch.ticket[i], batch.time[i]);
+			else
+				exit(tt, batch.ticket[i], batch.time[i]);
+		}
+	}
+
+	/**
+	 * @param time
+	 *            单位 ns
+	 */
+	private void enter(final ThreadTree tt, final int mid, final int ticket, final long time) {
+		final int p = tt.stack.depth() == 0 ? tt.root : tt.stack.top();
+		tt.stack.push(child(p, mid), ticket, time);
+	}
+
+	/**
+	 * @param time
+	 *            单位 ns
+	 */
+	private void exit(final ThreadTree tt, final int ticket, final long time) {
+		final int d = tt.stack.levelOf(ticket);
+		if (d < 0)
+			return;
+		while (tt.stack.depth() > d)
+			pop(tt, time);
+	}
+
+	// folded 格式输出
+
+	private void appendFrame(final XmlRecordBuilder b, final int mid) {
+		final String name = mid < methodNames.length ? methodNames[mid] : null;
+		if (name == null) {
+			b.append("method#").append(mid);
+			return;
+		}
+		final int cid = methodClasses[mid];
+		FoldedFrames.append(b, cid < classNames.length ? classNames[cid] : null, name);
+	}
+
+	/**
+	 * 以 folded 格式输出所有线程的调用树: 每条调用路径一行，"线程名;类.方法;...;类.方法 独占时间(us)"，
+	 * 独占时间为 0 的路径不输出
+	 */
+	public void writeFolded(final Writer w) throws IOException {
+		int[] stack = new int[64];
+		int[] pathLen = new int[64];
+		final XmlRecordBuilder path = new XmlRecordBuilder();
+		for (int i = 0; i < threadList.size(); ++i) {
+			final ThreadTree tt = threadList.get(i);
+			path.setLength(0);
+			FoldedFrames.append(path, tt.name.length() == 0 ? "thread-" + tt.tid : tt.name);
+
+			int sp = 0;
+			stack[sp] = tt.root;
+			pathLen[sp++] = path.length();
+			while (sp > 0) {
+				final int n = stack[--sp];
+				path.setLength(pathLen[sp]);
+				if (n != tt.root) {
+					path.append(';');
+					appendFrame(path, method[n]);
+				}
+
+				long self = inclusive[n];
+				final int len = path.length();
+				for (int c = firstChild[n]; c != NO_NODE; c = nextSibling[c]) {
+					self -= inclusive[c];
+					if (sp == stack.length) {
+						stack = Arrays.copyOf(stack, sp * 2);
+						pathLen = Arrays.copyOf(pathLen, sp * 2);
+					}
+					stack[sp] = c;
+					pathLen[sp++] = len;
+				}
+
+				if (n != tt.root && self / 1000 > 0) {
+					path.append(' ').append(self / 1000).append('\n');
+					path.writeTo(w);
+				}
+			}
+		}
+		w.flush();
+	}
+
+	/** 输出调用树并关闭 */
+	public void close() throws IOException {
+		if (out == null || reported)
+			return;
+		reported = true;
+		try {
+			writeFolded(out);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * 读取 CompactTraceWriter 写出的紧凑二进制 trace 文件(.ctrace)，将其中的记录按原来的顺序交给 ITptpHandler，
+ * 例如交给 TptpXmlFileWriter 即转换为 TPTP xml
+ */
+public class CompactTraceReader {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final ITptpHandler handler;
+
+	// 读取过程中有效
+	private TraceFileScaner.ChannelInput in;
+	private ByteBuffer buffer;
+	/** 上一条方法记录的时间(ns) */
+	private long lastTimeNsec;
+
+	/**
+	 * @param f
+	 *            CompactTraceWriter 写出的文件
+	 */
+	public CompactTraceReader(final File f, final ITptpHandler handler) {
+		if (f == null || handler == null)
+			throw new IllegalArgumentException();
+		file = f;
+		this.handler = handler;
+	}
+
+	/** 读取整个文件 */
+	public void process() throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			in = new TraceFileScaner.ChannelInput(raf.getChannel());
+			buffer = in.buffer;
+			lastTimeNsec = 0;
+
+			if (!in.fill(6))
+				throw new IllegalArgumentException("unexpected EOF");
+			if (buffer.getInt() != CompactTraceWriter.MAGIC)
+				throw new IllegalArgumentException("not a compact trace file : " + file);
+			final int version = buffer.getShort();
+			if (version != CompactTraceWriter.FORMAT_VERSION)
+				throw new IllegalArgumentException("unsupported format version : " + version);
+
+			while (in.fill(1))
+				record(buffer.get());
+		} finally {
+			in = null;
+			buffer = null;
+			raf.close();
+		}
+	}
+
+	private void record(final byte type) throws IOException {
+		switch (type) {
+		case CompactTraceWriter.START:
+			handler.handleStart();
+			break;
+
+		case CompactTraceWriter.END:
+			handler.handleEnd();
+			break;
+
+		case CompactTraceWriter.NODE: {
+			final String id = getString(), host = getString(), ip = getString();
+			final int timezone = (int) getLong();
+			final long t = getLong();
+			handler.handleNode(id, host, ip, timezone, sec(t), nsec(t));
+			break;
+		}
+
+		case CompactTraceWriter.PROCESS_CREATE: {
+			final String uuid = getString();
+			final int pid = (int) getLong();
+			final String nodeId = getString();
+			final long t = getLong();
+			handler.handleProcessCreate(uuid, pid, nodeId, sec(t), nsec(t));
+			break;
+		}
+
+		case CompactTraceWriter.AGENT_CREATE: {
+			final String uuid = getString(), version = getString(), puuid = getString(), name = getString();
+			final String agentType = getString(), parameters = getString();
+			final long t = getLong();
+			handler.handleAgentCreate(uuid, version, puuid, name, agentType, parameters, sec(t), nsec(t));
+			break;
+		}
+
+		case CompactTraceWriter.AGENT_DESTROY: {
+			final String uuid = getString();
+			final long t = getLong();
+			handler.handleAgentDestroy(uuid, sec(t), nsec(t));
+			break;
+		}
+
+		case CompactTraceWriter.TRACE_START: {
+			final String uuid = getString(), auuid = getString();
+			final long t = getLong();
+			handler.handleTraceStart(uuid, auuid, sec(t), nsec(t));
+			break;
+		}
+
+		case CompactTraceWriter.TRACE_END: {
+			final long t = getLong();
+			handler.handleTraceEnd(sec(t), nsec(t));
+			break;
+		}
+
+		case CompactTraceWriter.RUNTIME_INIT_DONE: {
+			final int tid = (int) getLong();
+			final long t = getLong();
+			handler.handleRuntimeInitDone(tid, sec(t), nsec(t));
+			break;
+		}
+
+		case CompactTraceWriter.RUNTIME_SHUTDOWN: {
+			final long t = getLong();
+			handler.handleRuntimeShutdown(sec(t), nsec(t));
+			break;
+		}
+
+		case CompactTraceWriter.FILTER: {
+			final String pattern = getString(), mode = getString(), genericPattern = getString();
+			final String methodPattern = getString(), methodMode = getString(), methodGenericPattern = getString();
+			handler.handleFilter(pattern, mode, genericPattern, methodPattern, methodMode, methodGenericPattern);
+			break;
+		}
+
+		case CompactTraceWriter.OPTION: {
+			final String key = getString(), value = getString();
+			handler.handleOption(key, value);
+			break;
+		}
+
+		case CompactTraceWriter.THREAD_START: {
+			final int tid = (int) getLong();
+			final long t = getLong();
+			final String name = getString(), group = getString(), parent = getString();
+			handler.handleThreadStart(tid, sec(t), nsec(t), name, group, parent);
+			break;
+		}
+
+		case CompactTraceWriter.THREAD_END: {
+			final int tid = (int) getLong();
+			final long t = getLong();
+			handler.handleThreadEnd(tid, sec(t), nsec(t));
+			break;
+		}
+
+		case CompactTraceWriter.CLASS_DEF: {
+			final String name = getString(), sourceFile = getString();
+			final int cid = (int) getLong();
+			final long t = getLong();
+			handler.handleClassDef(cid, name, sourceFile, sec(t), nsec(t));
+			break;
+		}
+
+		case CompactTraceWriter.METHOD_DEF: {
+			final String name = getString(), signature = getString();
+			final int startLine = (int) getLong(), endLine = (int) getLong();
+			final long mid = getLong();
+			final int classId = (int) getLong();
+			handler.handleMethodDef(mid, name, signature, startLine, endLine, classId);
+			break;
+		}
+
+		case CompactTraceWriter.METHOD_ENTRY: {
+			final int tid = (int) getVarint();
+			final long t = getDeltaTime();
+			final long mid = getVarint();
+			final int cid = (int) getVarint();
+			final int ticket = (int) getLong(), stackDepth = (int) getLong();
+			final long threadCpuTime = getLong();
+			handler.handleMethodEntry(tid, cid, mid, sec(t), nsec(t), ticket, stackDepth, threadCpuTime);
+			break;
+		}
+
+		case CompactTraceWriter.METHOD_EXIT: {
+			final int tid = (int) getVarint();
+			final long mid = getVarint();
+			final int cid = (int) getVarint();
+			final int ticket = (int) getLong();
+			final long t = getDeltaTime();
+			final long threadCpuTime = getLong();
+			handler.handleMethodExit(tid, cid, mid, sec(t), nsec(t), ticket, threadCpuTime);
+			break;
+		}
+
+		default:
+			throw new IllegalArgumentException("unknown record type " + type + " at offset " + (in.position() - 1));
+		}
+	}
+
+	private static long sec(final long timeNsec) {
+		return timeNsec / 1000000000L;
+	}
+
+	private static long nsec(final long timeNsec) {
+		return timeNsec % 1000000000L;
+	}
+
+	/** 无符号 varint */
+	private long getVarint() throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (!in.fill(1))
+				throw new IllegalArgumentException("unexpected EOF");
+			final byte b = buffer.get();
+			v |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return v;
+		}
+		throw new IllegalArgumentException("malformed varint at offset " + in.position());
+	}
+
+	/** zigzag 变换后的有符号数 */
+	private long getLong() throws IOException {
+		final long v = getVarint();
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/** 方法记录中相对上一条方法记录的时间 */
+	private long getDeltaTime() throws IOException {
+		lastTimeNsec += getLong();
+		return lastTimeNsec;
+	}
+
+	private String getString() throws IOException {
+		final long len = getVarint() - 1;
+		if (len < 0)
+			return null;
+		if (len > buffer.capacity())
+			throw new IllegalArgumentException("string too long at offset " + in.position());
+		if (!in.fill((int) len))
+			throw new IllegalArgumentException("unexpected EOF");
+		final byte[] bytes = new byte[(int) len];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+}
@@ -0,0 +1,367 @@
+package parser;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * 将 TPTP Trace 记录以本工具自己的紧凑二进制格式(.ctrace)写入文件
+ *
+ * 这不是 TPTP 的二进制格式，TPTP 不能直接打开；可用 CompactTraceReader 读回，再交给 TptpXmlFileWriter 等处理者转换。
+ *
+ * 文件结构(小端字节序):
+ * <ul>
+ * <li>文件头: 4 字节魔数 "TRCB"，2 字节格式版本</li>
+ * <li>之后是连续的记录，每条记录以 1 字节的记录类型开始，记录类型与 ITptpHandler 中的方法一一对应</li>
+ * </ul>
+ * 记录中的整数以 varint 编码(每字节 7 位，最高位表示后面还有字节)，有符号数先做 zigzag 变换；
+ * 字符串为 varint(UTF-8 字节数 + 1) 加 UTF-8 字节，null 编码为单字节 0；
+ * 时间为纳秒数，methodEntry/methodExit 中记录的是相对上一条记录时间的差值，其余记录中是绝对时间。
+ * 字段顺序与 TptpXmlFileWriter 输出的 XML 属性一致，methodEntry/methodExit 最后是线程 CPU 时间(ns，没有则为 -1)
+ */
+public class CompactTraceWriter implements IBatchTptpHandler, Closeable, Flushable {
+
+	/** 文件头魔数 "TRCB" */
+	public static final int MAGIC = 0x42435254;
+	/** 格式版本 */
+	public static final int FORMAT_VERSION = 2;
+
+	// 记录类型
+	public static final byte START = 1;
+	public static final byte END = 2;
+	public static final byte NODE = 3;
+	public static final byte PROCESS_CREATE = 4;
+	public static final byte AGENT_CREATE = 5;
+	public static final byte AGENT_DESTROY = 6;
+	public static final byte TRACE_START = 7;
+	public static final byte TRACE_END = 8;
+	public static final byte RUNTIME_INIT_DONE = 9;
+	public static final byte RUNTIME_SHUTDOWN = 10;
+	public static final byte FILTER = 11;
+	public static final byte OPTION = 12;
+	public static final byte THREAD_START = 13;
+	public static final byte THREAD_END = 14;
+	public static final byte CLASS_DEF = 15;
+	public static final byte METHOD_DEF = 16;
+	public static final byte METHOD_ENTRY = 17;
+	public static final byte METHOD_EXIT = 18;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+
+	/** 上一条方法记录的时间(ns)，用于时间差值编码 */
+	private long lastTimeNsec = 0;
+
+	public CompactTraceWriter(final OutputStream os) {
+		this(Channels.newChannel(os), Utf8ChannelWriter.DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param bufferSize
+	 *            输出缓冲区大小(字节)
+	 */
+	public CompactTraceWriter(final WritableByteChannel ch, final int bufferSize) {
+		this(ch, bufferSize < 80 ? null : ByteBuffer.allocateDirect(bufferSize));
+	}
+
+	/**
+	 * 使用调用者提供的缓冲区，关闭之后可重复用于其他输出
+	 *
+	 * @param buffer
+	 *            输出缓冲区，通常为直接缓冲区，至少 80 字节，原有内容被丢弃
+	 */
+	public CompactTraceWriter(final WritableByteChannel ch, final ByteBuffer buffer) {
+		if (ch == null || buffer == null || buffer.capacity() < 80)
+			throw new IllegalArgumentException();
+		channel = ch;
+		this.buffer = buffer;
+		buffer.clear();
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/** 保证缓冲区至少还有 n 字节空间 */
+	private void require(final int n) {
+		if (buffer.remaining() >= n)
+			return;
+		try {
+			drain();
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		if (buffer.remaining() < n)
+			throw new IllegalStateException("record too large : " + n);
+	}
+
+	private void drain() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	private void putType(final byte type) {
+		require(80);
+		buffer.put(type);
+	}
+
+	/** 无符号 varint，调用前须保证缓冲区有 10 字节空间 */
+	private void putVarint(long v) {
+		while ((v & ~0x7FL) != 0) {
+			buffer.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buffer.put((byte) v);
+	}
+
+	private void putLong(final long v) {
+		require(10);
+		putVarint(zigzag(v));
+	}
+
+	private void putString(final String s) {
+		if (s == null) {
+			require(1);
+			buffer.put((byte) 0);
+			return;
+		}
+		final byte[] bytes = s.getBytes(UTF8);
+		require(10 + bytes.length);
+		putVarint(bytes.length + 1L);
+		buffer.put(bytes);
+	}
+
+	private static long toNsec(final long timeUTCSec, final long timeUTCNsec) {
+		return timeUTCSec * 1000000000L + timeUTCNsec;
+	}
+
+	private void putTime(final long timeUTCSec, final long timeUTCNsec) {
+		putLong(toNsec(timeUTCSec, timeUTCNsec));
+	}
+
+	public void handleStart() {
+		require(6);
+		buffer.putInt(MAGIC);
+		buffer.putShort((short) FORMAT_VERSION);
+		putType(START);
+	}
+
+	public void handleEnd() {
+		putType(END);
+	}
+
+	public void handleNode(final String id, final String host, final String ip, final int timezone,
+			final long timeUTCSec, final long timeUTCNsec) {
+		putType(NODE);
+		putString(id);
+		putString(host);
+		putString(ip);
+		putLong(timezone);
+		putTime(timeUTCSec, timeUTCNsec);
+	}
+
+	public void handleProcessCreate(final String uuid, final int pid, final String nodeId, final long timeUTCSec,
+			final long timeUTCNsec) {
+		putType(PROCESS_CREATE);
+		putString(uuid);
+		putLong(pid);
+		putString(nodeId);
+		putTime(timeUTCSec, timeUTCNsec);
+	}
+
+	public void handleAgentCreate(final String uuid, final String version, final String puuid, final String name,
+			final String type, final String parameters, final long timeUTCSec, final long timeUTCNsec) {
+		putType(AGENT_CREATE);
+		putString(uuid);
+		putString(version);
+		putString(puuid);
+		putString(name);
+		putString(type);
+		putString(parameters);
+		putTime(timeUTCSec, timeUTCNsec);
+	}
+
+	public void handleAgentDestroy(final String uuid, final long timeUTCSec, final long timeUTCNsec) {
+		putType(AGENT_DESTROY);
+		putString(uuid);
+		putTime(timeUTCSec, timeUTCNsec);
+	}
+
+	public void handleTraceStart(final String uuid, final String auuid, final long timeUTCSec, final long timeUTCNsec) {
+		putType(TRACE_START);
+		putString(uuid);
+		putString(auuid);
+		putTime(timeUTCSec, timeUTCNsec);
+	}
+
+	public void handleTraceEnd(final long timeUTCSec, final long timeUTCNsec) {
+		putType(TRACE_END);
+		putTime(timeUTCSec, timeUTCNsec);
+	}
+
+	public void handleRuntimeInitDone(final int tid, final long timeUTCSec, final long timeUTCNsec) {
+		putType(RUNTIME_INIT_DONE);
+		putLong(tid);
+		putTime(timeUTCSec, timeUTCNsec);
+	}
+
+	public void handleRuntimeShutdown(final long timeUTCSec, final long timeUTCNSec) {
+		putType(RUNTIME_SHUTDOWN);
+		putTime(timeUTCSec, timeUTCNSec);
+	}
+
+	public void handleFilter(final String pattern, final String mode, final String genericPattern,
+			final String methodPattern, final String methodMode, final String methodGenericPattern) {
+		putType(FILTER);
+		putString(pattern);
+		putString(mode);
+		putString(genericPattern);
+		putString(methodPattern);
+		putString(methodMode);
+		putString(methodGenericPattern);
+	}
+
+	public void handleOption(final String key, final String value) {
+		putType(OPTION);
+		putString(key);
+		putString(value);
+	}
+
+	public void handleThreadStart(final int tid, final long timeUTCSec, final long timeUTCNsec, final String name,
+			final String group, final String parent) {
+		if (tid < 0 || timeUTCSec < 0 || timeUTCNsec < 0 || name == null)
+			throw new IllegalArgumentException();
+
+		putType(THREAD_START);
+		putLong(tid);
+		putTime(timeUTCSec, timeUTCNsec);
+		putString(name);
+		putString(group);
+		putString(parent);
+	}
+
+	public void handleThreadEnd(final int tid, final long timeUTCSec, final long timeUTCNsec) {
+		if (tid < 0 || timeUTCSec < 0 || timeUTCNsec < 0)
+			throw new IllegalArgumentException();
+
+		putType(THREAD_END);
+		putLong(tid);
+		putTime(timeUTCSec, timeUTCNsec);
+	}
+
+	public void handleClassDef(final int cid, final String name, final String sourceFile, final long timeUTCSec,
+			final long timeUTCNsec) {
+		if (cid < 0 || name == null || timeUTCSec < 0 || timeUTCNsec < 0)
+			throw new IllegalArgumentException();
+
+		putType(CLASS_DEF);
+		putString(name);
+		putString(sourceFile);
+		putLong(cid);
+		putTime(timeUTCSec, timeUTCNsec);
+	}
+
+	public void handleMethodDef(final long mid, final String name, final String signature, final int startLine,
+			final int endLine, final int classId) {
+		if (mid < 0 || name == null || signature == null || classId < 0)
+			throw new IllegalArgumentException();
+
+		putType(METHOD_DEF);
+		putString(name);
+		putString(signature);
+		putLong(startLine);
+		putLong(endLine);
+		putLong(mid);
+		putLong(classId);
+	}
+
+	public void handleMethodEntry(final int tid, final int cid, final long mid, final long timeUTCSec,
+			final long timeUTCNsec, final int ticket, final int stackDepth, final long threadCpuTime) {
+		if (timeUTCSec < 0 || timeUTCNsec < 0)
+			throw new IllegalArgumentException();
+		methodEntry(tid, cid, mid, toNsec(timeUTCSec, timeUTCNsec), ticket, stackDepth, threadCpuTime);
+	}
+
+	public void handleMethodExit(final int tid, final int cid, final long mid, final long timeUTCSec,
+			final long timeUTCNsec, final int ticket, final long threadCpuTime) {
+		if (timeUTCSec < 0 || timeUTCNsec < 0)
+			throw new IllegalArgumentException();
+		methodExit(tid, cid, mid, toNsec(timeUTCSec, timeUTCNsec), ticket, threadCpuTime);
+	}
+
+	public void handleMethodEvents(final MethodEventBatch batch) {
+		for (int i = 0; i < batch.size(); ++i) {
+			if (batch.kind[i] == MethodEventBatch.METHOD_ENTRY)
+				methodEntry(batch.tid[i], batch.cid[i], batch.mid[i], batch.time[i], batch.ticket[i],
+						batch.stackDepth[i], batch.threadCpuTime[i]);
+			else
+				methodExit(batch.tid[i], batch.cid[i], batch.mid[i], batch.time[i], batch.ticket[i],
+						batch.threadCpuTime[i]);
+		}
+	}
+
+	/**
+	 * @param timeNsec
+	 *            时间 单位 ns
+	 */
+	private void methodEntry(final int tid, final int cid, final long mid, final long timeNsec, final int ticket,
+			final int stackDepth, final long threadCpuTime) {
+		if (tid < 0 || cid < 0 || mid < 0 || timeNsec < 0)
+			throw new IllegalArgumentException();
+
+		// 类型和所有字段最多 1 + 7 * 10 字节，已由 putType() 保证
+		putType(METHOD_ENTRY);
+		putVarint(tid);
+		putDeltaTimeUnchecked(timeNsec);
+		putVarint(mid);
+		putVarint(cid);
+		putVarint(zigzag(ticket));
+		putVarint(zigzag(stackDepth));
+		putVarint(zigzag(threadCpuTime));
+	}
+
+	private void methodExit(final int tid, final int cid, final long mid, final long timeNsec, final int ticket,
+			final long threadCpuTime) {
+		if (tid < 0 || cid < 0 || mid < 0 || timeNsec < 0)
+			throw new IllegalArgumentException();
+
+		putType(METHOD_EXIT);
+		putVarint(tid);
+		putVarint(mid);
+		putVarint(cid);
+		putVarint(zigzag(ticket));
+		putDeltaTimeUnchecked(timeNsec);
+		putVarint(zigzag(threadCpuTime));
+	}
+
+	private static long zigzag(final long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	/** 方法记录中的时间，相对上一条方法记录。调用前须保证缓冲区有 10 字节空间 */
+	private void putDeltaTimeUnchecked(final long timeNsec) {
+		putVarint(zigzag(timeNsec - lastTimeNsec));
+		lastTimeNsec = timeNsec;
+	}
+
+	public void flush() throws IOException {
+		drain();
+	}
+
+	public void close() throws IOException {
+		if (!channel.isOpen())
+			return;
+		try {
+			drain();
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package parser;
+
+/**
+ * folded 格式(火焰图工具的输入)中的帧: "类.方法"，其中的分隔符 ';' 和换行替换为 '_'
+ */
+final class FoldedFrames {
+
+	private FoldedFrames() {
+	}
+
+	/** 追加一帧，不含前面的 ';' */
+	static void append(final XmlRecordBuilder b, final String s) {
+		for (int i = 0; i < s.length(); ++i) {
+			final char c = s.charAt(i);
+			b.append(c == ';' || c == '\n' || c == '\r' ? '_' : c);
+		}
+	}
+
+	/**
+	 * 追加方法的帧，不含前面的 ';'
+	 *
+	 * @param className
+	 *            类名，未知则为 null
+	 */
+	static void append(final XmlRecordBuilder b, final String className, final String methodName) {
+		if (className != null) {
+			append(b, className);
+			b.append('.');
+		}
+		append(b, methodName);
+	}
+}
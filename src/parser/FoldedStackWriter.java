@@ -0,0 +1,275 @@
+package parser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import parser.util.IntObjectHashMap;
+
+/**
+ * 将方法记录直接以 folded 格式写入文件，可直接用于生成火焰图
+ *
+ * 每次方法调用结束时输出一行 "线程名;类.方法;...;类.方法 独占时间(us)"，独占时间为 0 的调用不输出。
+ * 同一个调用者连续多次调用同一个方法时(例如循环中的调用)，合并为一行输出；其余相同的调用路径会出现多次，
+ * 由火焰图工具合并。各线程的调用路径随进出方法增量修改，不在每条记录上重新拼接
+ */
+public class FoldedStackWriter extends TptpHandlerBase implements IBatchTptpHandler, Closeable {
+
+	/**
+	 * 一个线程的当前调用路径
+	 */
+	private static final class ThreadStack {
+		/** 从线程名开始的调用路径 */
+		final XmlRecordBuilder path = new XmlRecordBuilder();
+
+		/** 各层的值为 methodId */
+		final CallStack stack = new CallStack();
+		/** 各层方法加入之前 path 的长度 */
+		int[] pathLen = new int[64];
+
+		/** 各层已结束、尚未输出的调用: methodId(-1 表示没有)及其独占时间(ns) */
+		int[] pendingMethod = new int[65];
+		long[] pendingSelf = new long[65];
+
+		ThreadStack(final String name) {
+			FoldedFrames.append(path, name);
+			Arrays.fill(pendingMethod, -1);
+		}
+
+		void grow() {
+			final int len = pathLen.length * 2;
+			pathLen = Arrays.copyOf(pathLen, len);
+			pendingMethod = Arrays.copyOf(pendingMethod, len + 1);
+			pendingSelf = Arrays.copyOf(pendingSelf, len + 1);
+			Arrays.fill(pendingMethod, len / 2 + 1, len + 1, -1);
+		}
+	}
+
+	private final IntObjectHashMap<ThreadStack> threads = new IntObjectHashMap<ThreadStack>();
+	/** 按第一次出现的顺序 */
+	private final List<ThreadStack> threadList = new ArrayList<ThreadStack>();
+
+	// 以 classId/methodId 为下标
+	private String[] classNames = new String[64];
+	/** "类.方法"，已去掉分隔符 */
+	private String[] frames = new String[64];
+
+	/** 每行末尾的 " 时间\n" */
+	private final XmlRecordBuilder suffix = new XmlRecordBuilder(32);
+
+	private final Writer out;
+
+	public FoldedStackWriter(final Writer w) {
+		out = w;
+	}
+
+	/** 以 UTF-8 编码输出到 os，使用默认大小的缓冲区 */
+	public FoldedStackWriter(final OutputStream os) {
+		this(new Utf8ChannelWriter(os));
+	}
+
+	/**
+	 * 以 UTF-8 编码输出到 ch
+	 *
+	 * @param bufferSize
+	 *            输出缓冲区大小(字节)
+	 */
+	public FoldedStackWriter(final WritableByteChannel ch, final int bufferSize) {
+		this(new Utf8ChannelWriter(ch, bufferSize));
+	}
+
+	/**
+	 * 以 UTF-8 编码输出到 ch，使用调用者提供的缓冲区，参见 Utf8ChannelWriter(WritableByteChannel, ByteBuffer)
+	 */
+	public FoldedStackWriter(final WritableByteChannel ch, final ByteBuffer buffer) {
+		this(new Utf8ChannelWriter(ch, buffer));
+	}
+
+	private ThreadStack thread(final int tid) {
+		ThreadStack ts = threads.get(tid);
+		if (ts == null) {
+			ts = new ThreadStack("thread-" + tid);
+			threads.put(tid, ts);
+			threadList.add(ts);
+		}
+		return ts;
+	}
+
+	private String frame(final int mid) {
+		final String frame = mid < frames.length ? frames[mid] : null;
+		return frame != null ? frame : ";method#" + mid;
+	}
+
+	/**
+	 * 输出第 level 层尚未输出的调用。调用路径中 level 之前的部分与当前调用路径相同
+	 */
+	private void flushPending(final ThreadStack ts, final int level) {
+		final int mid = ts.pendingMethod[level];
+		if (mid < 0)
+			return;
+		ts.pendingMethod[level] = -1;
+		final long usec = ts.pendingSelf[level] / 1000;
+		if (usec <= 0)
+			return;
+		try {
+			out.write(ts.path.chars(), 0, ts.pathLen[level]);
+			out.write(frame(mid));
+			suffix.reset().append(' ').append(usec).append('\n').writeTo(out);
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** 栈顶方法结束，与同层上一次结束的调用合并或输出之 */
+	private void pop(final ThreadStack ts, final long time) {
+		final int mid = ts.stack.top();
+		final long self = ts.stack.selfTime(time);
+		ts.stack.pop(time);
+		final int d = ts.stack.depth();
+
+		// 本次调用中的下一层调用，调用路径之后不会再出现
+		flushPending(ts, d + 1);
+
+		if (ts.pendingMethod[d] == mid) {
+			ts.pendingSelf[d] += self;
+		} else {
+			flushPending(ts, d);
+			ts.pendingMethod[d] = mid;
+			ts.pendingSelf[d] = self;
+		}
+		ts.path.setLength(ts.pathLen[d]);
+	}
+
+	public void handleEnd() {
+		try {
+			out.flush();
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** 结束线程中所有未退出的调用并输出 */
+	private void closeAll(final ThreadStack ts, final long time) {
+		final long end = ts.stack.closingTime(time);
+		while (ts.stack.depth() > 0)
+			pop(ts, end);
+		flushPending(ts, 0);
+	}
+
+	public void handleTraceEnd(final long timeUTCSec, final long timeUTCNsec) {
+		final long time = toNsec(timeUTCSec, timeUTCNsec);
+		for (int i = 0; i < threadList.size(); ++i)
+			closeAll(threadList.get(i), time);
+	}
+
+	public void handleThreadStart(final int tid, final long timeUTCSec, final long timeUTCNsec, final String name,
+			final String group, final String parent) {
+		if (tid < 0 || name == null)
+			throw new IllegalArgumentException();
+		if (threads.get(tid) != null)
+			return;
+		final ThreadStack ts = new ThreadStack(name.length() == 0 ? "thread-" + tid : name);
+		threads.put(tid, ts);
+		threadList.add(ts);
+	}
+
+	/** 结束线程中未退出的调用，输出后释放其调用路径；之后同一线程号再出现时重新开始 */
+	public void handleThreadEnd(final int tid, final long timeUTCSec, final long timeUTCNsec) {
+		final ThreadStack ts = threads.remove(tid);
+		if (ts == null)
+			return;
+		closeAll(ts, toNsec(timeUTCSec, timeUTCNsec));
+		threadList.remove(ts);
+	}
+
+	public void handleClassDef(final int cid, final String name, final String sourceFile, final long timeUTCSec,
+			final long timeUTCNsec) {
+		if (cid < 0 || name == null)
+			throw new IllegalArgumentException();
+		if (cid >= classNames.length)
+			classNames = Arrays.copyOf(classNames, Math.max(cid + 1, classNames.length * 2));
+		classNames[cid] = name;
+	}
+
+	public void handleMethodDef(final long mid, final String name, final String signature, final int startLine,
+			final int endLine, final int classId) {
+		if (mid < 0 || mid > Integer.MAX_VALUE || name == null || classId < 0)
+			throw new IllegalArgumentException();
+		final int id = (int) mid;
+		if (id >= frames.length)
+			frames = Arrays.copyOf(frames, Math.max(id + 1, frames.length * 2));
+		final String cls = classId < classNames.length ? classNames[classId] : null;
+		final XmlRecordBuilder b = new XmlRecordBuilder(64).append(';');
+		FoldedFrames.append(b, cls, name);
+		frames[id] = b.toString();
+	}
+
+	public void handleMethodEntry(final int tid, final int cid, final long mid, final long timeUTCSec,
+			final long timeUTCNsec, final int ticket, final int stackDepth, final long threadCpuTime) {
+		if (tid < 0 || mid < 0 || mid > Integer.MAX_VALUE)
+			throw new IllegalArgumentException();
+		enter(thread(tid), (int) mid, ticket, toNsec(timeUTCSec, timeUTCNsec));
+	}
+
+	public void handleMethodExit(final int tid, final int cid, final long mid, final long timeUTCSec,
+			final long timeUTCNsec, final int ticket, final long threadCpuTime) {
+		if (tid < 0 || mid < 0)
+			throw new IllegalArgumentException();
+		exit(thread(tid), ticket, toNsec(timeUTCSec, timeUTCNsec));
+	}
+
+	public void handleMethodEvents(final MethodEventBatch batch) {
+		int lastTid = -1;
+		ThreadStack ts = null;
+		for (int i = 0; i < batch.size(); ++i) {
+			final int tid = batch.tid[i];
+			final long mid = batch.mid[i];
+			if (tid < 0 || mid < 0 || batch.kind[i] == MethodEventBatch.METHOD_ENTRY && mid > Integer.MAX_VALUE)
+				throw new IllegalArgumentException();
+			if (tid != lastTid) {
+				ts = thread(tid);
+				lastTid = tid;
+			}
+			if (batch.kind[i] == MethodEventBatch.METHOD_ENTRY)
+				enter(ts, (int) mid, batch.ticket[i], batch.time[i]);
+			else
+				exit(ts, batch.ticket[i], batch.time[i]);
+		}
+	}
+
+	/**
+	 * @param time
+	 *            单位 ns
+	 */
+	private void enter(final ThreadStack ts, final int mid, final int ticket, final long time) {
+		final int d = ts.stack.depth();
+		if (d == ts.pathLen.length)
+			ts.grow();
+		ts.pathLen[d] = ts.path.length();
+		ts.stack.push(mid, ticket, time);
+		ts.path.append(frame(mid));
+	}
+
+	/**
+	 * @param time
+	 *            单位 ns
+	 */
+	private void exit(final ThreadStack ts, final int ticket, final long time) {
+		final int d = ts.stack.levelOf(ticket);
+		if (d < 0)
+			return;
+		while (ts.stack.depth() > d)
+			pop(ts, time);
+	}
+
+	/** 写出剩余数据并关闭 */
+	public void close() throws IOException {
+		out.close();
+	}
+}
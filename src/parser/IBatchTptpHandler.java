@@ -0,0 +1,19 @@
+package parser;
+
+/**
+ * 可以成批处理方法进入/退出事件的 ITptpHandler
+ *
+ * 以 TptpAdapter(handler, batchSize) 创建的 TptpAdapter 遇到实现了此接口的处理者时，将方法事件填入
+ * MethodEventBatch，在批满或即将输出其他事件时调用 handleMethodEvents()，因此事件的先后顺序不变；其他事件仍逐个调用。只能逐个处理事件的 ITptpHandler 可以用
+ * BatchHandlerAdapter 包装
+ */
+public interface IBatchTptpHandler extends ITptpHandler {
+
+	/**
+	 * 处理一批方法事件，批中相邻的事件多属于同一线程
+	 *
+	 * @param batch
+	 *            返回后会被清空并重用，不能保留
+	 */
+	void handleMethodEvents(final MethodEventBatch batch);
+}
@@ -5,6 +5,9 @@ package parser;
  */
 public interface ITptpHandler {
 
+	/** 没有线程 CPU 时间 */
+	long NO_CPU_TIME = -1;
+
 	void handleStart();
 
 	void handleEnd();
@@ -76,9 +79,11 @@ public interface ITptpHandler {
 	 *            时钟(1970-1-1 00:00:00 coordinated universal time) 单位 s
 	 * @param timeUTCNsec
 	 *            时钟(1970-1-1 00:00:00 coordinated universal time) 单位 ns
+	 * @param threadCpuTime
+	 *            线程 CPU 时间 单位 ns，没有则为 NO_CPU_TIME
 	 */
 	void handleMethodEntry(final int tid, final int cid, final long mid, final long timeUTCSec, final long timeUTCNsec,
-			final int ticket, final int stackDepth);
+			final int ticket, final int stackDepth, final long threadCpuTime);
 
 	/**
 	 * 方法退出
@@ -87,8 +92,10 @@ public interface ITptpHandler {
 	 *            时钟(1970-1-1 00:00:00 coordinated universal time) 单位 s
 	 * @param timeUTCNsec
 	 *            时钟(1970-1-1 00:00:00 coordinated universal time) 单位 ns
+	 * @param threadCpuTime
+	 *            线程 CPU 时间 单位 ns，没有则为 NO_CPU_TIME
 	 */
 	void handleMethodExit(final int tid, final int cid, final long mid, final long timeUTCSec, final long timeUTCNsec,
-			final int ticket);
+			final int ticket, final long threadCpuTime);
 
 }
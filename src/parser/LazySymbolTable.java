@@ -0,0 +1,106 @@
+package parser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+
+/**
+ * 延迟解析的方法表: 头部中的方法行只记录其在文本中的位置，以方法地址为键；方法第一次用到时才解码该行
+ *
+ * 方法地址(32 位)和行的位置合为一个 long 存放在数组中，按地址排序后二分查找，每个方法只占 8 字节。
+ * 文本通常是文件开头的只读内存映射，不占用堆
+ */
+final class LazySymbolTable {
+
+	private static final Charset TEXT_CHARSET = Charset.forName("UTF-8");
+
+	/** 方法地址 << 32 | 行在文本中的位置 */
+	private long[] entries = new long[1024];
+	private int size = 0;
+	/** entries 是否已排序，查找之前排序 */
+	private boolean sorted = true;
+
+	/** 方法行所在的文本，以行的位置为下标 */
+	private ByteBuffer text = null;
+
+	private final Matcher method = TraceRecordParser.METHOD.matcher("");
+	private byte[] line = new byte[256];
+
+	/**
+	 * @param offset
+	 *            行在文本中的位置
+	 */
+	void add(final long address, final long offset) {
+		if (address < 0 || address > 0xffffffffL)
+			throw new IllegalArgumentException("bad method address : " + address);
+		if (offset < 0 || offset > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("method line out of range : " + offset);
+		if (size == entries.length)
+			entries = Arrays.copyOf(entries, Math.max(size * 2, 1024));
+		final long e = address << 32 | offset;
+		if (size > 0 && e < entries[size - 1])
+			sorted = false;
+		entries[size++] = e;
+	}
+
+	/** 头部分析完毕后设置，同时去掉数组中多余的空间 */
+	void setText(final ByteBuffer text) {
+		this.text = text;
+		if (entries.length > size)
+			entries = Arrays.copyOf(entries, size);
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return 方法行的位置，同一地址有多行时取最后一行(与头部分析时后者覆盖前者相同)；不存在则为 -1
+	 */
+	private int findOffset(final long address) {
+		if (!sorted) {
+			Arrays.sort(entries, 0, size);
+			sorted = true;
+		}
+		// 第一个地址大于 address 的元素之前的一个
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (entries[mid] >>> 32 <= address)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		if (lo == 0 || entries[lo - 1] >>> 32 != address)
+			return -1;
+		return (int) entries[lo - 1];
+	}
+
+	/**
+	 * 解码方法行
+	 *
+	 * @return 匹配了方法行的 Matcher，各组同 TraceRecordParser.METHOD，下次调用之前有效；地址不存在则为 null
+	 */
+	Matcher find(final long address) {
+		final int off = findOffset(address);
+		if (off < 0)
+			return null;
+		if (text == null)
+			throw new IllegalStateException("text of method lines is not set");
+
+		int len = 0;
+		for (int i = off; i < text.limit(); ++i) {
+			final byte b = text.get(i);
+			if (b == '\n')
+				break;
+			if (len == line.length)
+				line = Arrays.copyOf(line, len * 2);
+			line[len++] = b;
+		}
+		final String s = new String(line, 0, len, TEXT_CHARSET);
+		if (!method.reset(s).matches())
+			throw new IllegalArgumentException("unknown format : " + s);
+		return method;
+	}
+}
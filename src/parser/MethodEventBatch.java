@@ -0,0 +1,122 @@
+package parser;
+
+/**
+ * 一批方法进入/退出事件，以并列的原生类型数组保存，供 IBatchTptpHandler 在紧凑的循环中处理
+ *
+ * 第 i 个事件的各字段分别在各数组的下标 i 处，字段含义与 ITptpHandler.handleMethodEntry()/handleMethodExit()
+ * 的参数相同，只是时间合并为 1970-1-1 00:00:00 UTC 起的纳秒数
+ */
+public final class MethodEventBatch {
+
+	public static final byte METHOD_ENTRY = 0;
+	public static final byte METHOD_EXIT = 1;
+
+	/** 默认每批的事件数 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/** METHOD_ENTRY 或 METHOD_EXIT */
+	public final byte[] kind;
+	public final int[] tid;
+	public final int[] cid;
+	public final long[] mid;
+	/** 时间 单位 ns */
+	public final long[] time;
+	public final int[] ticket;
+	/** 栈深度，methodExit 中为 -1 */
+	public final int[] stackDepth;
+	/** 线程 CPU 时间 单位 ns，没有则为 ITptpHandler.NO_CPU_TIME */
+	public final long[] threadCpuTime;
+
+	private int size = 0;
+
+	public MethodEventBatch() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public MethodEventBatch(final int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException();
+		kind = new byte[capacity];
+		tid = new int[capacity];
+		cid = new int[capacity];
+		mid = new long[capacity];
+		time = new long[capacity];
+		ticket = new int[capacity];
+		stackDepth = new int[capacity];
+		threadCpuTime = new long[capacity];
+	}
+
+	/** 事件数 */
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return kind.length;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean isFull() {
+		return size == kind.length;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * 追加一个 methodEntry，调用前须确认批未满
+	 *
+	 * @param timeNsec
+	 *            时间 单位 ns
+	 */
+	public void addMethodEntry(final int tid, final int cid, final long mid, final long timeNsec, final int ticket,
+			final int stackDepth, final long threadCpuTime) {
+		final int i = size++;
+		this.kind[i] = METHOD_ENTRY;
+		this.tid[i] = tid;
+		this.cid[i] = cid;
+		this.mid[i] = mid;
+		this.time[i] = timeNsec;
+		this.ticket[i] = ticket;
+		this.stackDepth[i] = stackDepth;
+		this.threadCpuTime[i] = threadCpuTime;
+	}
+
+	/**
+	 * 追加一个 methodExit，调用前须确认批未满
+	 *
+	 * @param timeNsec
+	 *            时间 单位 ns
+	 */
+	public void addMethodExit(final int tid, final int cid, final long mid, final long timeNsec, final int ticket,
+			final long threadCpuTime) {
+		final int i = size++;
+		this.kind[i] = METHOD_EXIT;
+		this.tid[i] = tid;
+		this.cid[i] = cid;
+		this.mid[i] = mid;
+		this.time[i] = timeNsec;
+		this.ticket[i] = ticket;
+		this.stackDepth[i] = -1;
+		this.threadCpuTime[i] = threadCpuTime;
+	}
+
+	/**
+	 * 将批中的事件逐个交给 h，用于只能逐个处理事件的 ITptpHandler
+	 */
+	public void replay(final ITptpHandler h) {
+		for (int i = 0; i < size; ++i) {
+			final long t = time[i];
+			if (kind[i] == METHOD_ENTRY)
+				h.handleMethodEntry(tid[i], cid[i], mid[i], t / 1000000000L, t % 1000000000L, ticket[i],
+						stackDepth[i], threadCpuTime[i]);
+			else
+				h.handleMethodExit(tid[i], cid[i], mid[i], t / 1000000000L, t % 1000000000L, ticket[i],
+						threadCpuTime[i]);
+		}
+	}
+}
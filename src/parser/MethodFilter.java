@@ -0,0 +1,135 @@
+package parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按类名、方法名过滤方法
+ *
+ * 规则按添加的顺序匹配，第一条匹配的规则决定方法是否保留。有 INCLUDE 规则时，最后隐含一条排除所有方法的规则，
+ * 即只保留包含的方法；只有 EXCLUDE 规则时，没有规则匹配的方法保留。
+ * 模式中的 '*' 只能出现在开头或结尾，分别对应 TPTP filter 的 SUFFIX 和 PREFIX，
+ * 没有 '*' 则须完全相同，单独的 "*" 匹配任意名称。
+ * 类名为 TPTP 中的形式(例如 java.lang.String)，方法名中的 &lt;init&gt;、&lt;clinit&gt; 为 -init-、-clinit-
+ */
+public class MethodFilter {
+
+	public static enum Mode {
+		INCLUDE, EXCLUDE,
+	}
+
+	/**
+	 * 一个名称模式
+	 */
+	private static final class NamePattern {
+		/** 去掉 '*' 之后的部分 */
+		final String stem;
+		/** TPTP filter 中的 genericPattern: PREFIX, SUFFIX 或 NONE */
+		final String generic;
+
+		NamePattern(final String pattern) {
+			if (pattern == null || pattern.length() == 0)
+				throw new IllegalArgumentException("empty pattern");
+			final int star = pattern.indexOf('*');
+			if (star < 0) {
+				stem = pattern;
+				generic = "NONE";
+			} else if (pattern.equals("*")) {
+				stem = "";
+				generic = "PREFIX";
+			} else if (star == pattern.length() - 1) {
+				stem = pattern.substring(0, star);
+				generic = "PREFIX";
+			} else if (star == 0 && pattern.indexOf('*', 1) < 0) {
+				stem = pattern.substring(1);
+				generic = "SUFFIX";
+			} else {
+				throw new IllegalArgumentException("unsupported pattern : " + pattern);
+			}
+		}
+
+		boolean matches(final String s) {
+			if (generic.equals("PREFIX"))
+				return s.startsWith(stem);
+			if (generic.equals("SUFFIX"))
+				return s.endsWith(stem);
+			return s.equals(stem);
+		}
+	}
+
+	private static final class Rule {
+		final NamePattern classPattern;
+		final NamePattern methodPattern;
+		final Mode mode;
+
+		Rule(final NamePattern cp, final NamePattern mp, final Mode m) {
+			classPattern = cp;
+			methodPattern = mp;
+			mode = m;
+		}
+	}
+
+	/** 有 INCLUDE 规则时隐含在最后的规则 */
+	private static final Rule EXCLUDE_ALL = new Rule(new NamePattern("*"), new NamePattern("*"), Mode.EXCLUDE);
+
+	private final List<Rule> rules = new ArrayList<Rule>();
+	private boolean hasInclude = false;
+
+	/**
+	 * 添加一条规则
+	 *
+	 * @param classPattern
+	 *            类名模式
+	 * @param methodPattern
+	 *            方法名模式
+	 */
+	public void add(final String classPattern, final String methodPattern, final Mode mode) {
+		if (mode == null)
+			throw new IllegalArgumentException();
+		rules.add(new Rule(new NamePattern(classPattern), new NamePattern(methodPattern), mode));
+		if (mode == Mode.INCLUDE)
+			hasInclude = true;
+	}
+
+	/**
+	 * 以 "类名模式[:方法名模式]" 的形式添加规则，省略方法名模式则匹配类中所有方法
+	 */
+	public void add(final String spec, final Mode mode) {
+		final int colon = spec.indexOf(':');
+		if (colon < 0)
+			add(spec, "*", mode);
+		else
+			add(spec.substring(0, colon), spec.substring(colon + 1), mode);
+	}
+
+	public boolean isEmpty() {
+		return rules.isEmpty();
+	}
+
+	/**
+	 * 方法是否保留
+	 */
+	public boolean accept(final String className, final String methodName) {
+		for (int i = 0; i < rules.size(); ++i) {
+			final Rule r = rules.get(i);
+			if (r.classPattern.matches(className) && r.methodPattern.matches(methodName))
+				return r.mode == Mode.INCLUDE;
+		}
+		return !hasInclude;
+	}
+
+	/**
+	 * 以 filter 记录输出所有规则，包括隐含的规则
+	 */
+	void report(final ITptpHandler handler) {
+		for (int i = 0; i < rules.size(); ++i)
+			report(handler, rules.get(i));
+		if (hasInclude)
+			report(handler, EXCLUDE_ALL);
+	}
+
+	private static void report(final ITptpHandler handler, final Rule r) {
+		handler.handleFilter(r.classPattern.stem, r.mode.name(), r.classPattern.generic, r.methodPattern.stem,
+				r.mode.name(), r.methodPattern.generic);
+	}
+}
@@ -0,0 +1,103 @@
+package parser;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 转换的输出格式，创建对应的处理者
+ */
+public enum OutputFormat {
+	/** TPTP xml trace */
+	XML("trcxml"),
+
+	/** 本工具自己的紧凑二进制格式，见 CompactTraceWriter */
+	COMPACT("ctrace"),
+
+	/** 火焰图的 folded 格式，逐次调用输出 */
+	FOLDED("folded"),
+
+	/** 各方法的统计汇总 */
+	CSV("csv"),
+
+	/** 各方法的统计汇总 */
+	JSON("json"),
+
+	/** 合并相同调用路径后的调用树，以 folded 格式输出 */
+	CALLTREE("folded");
+
+	/**
+	 * 处理者及其输出，处理结束后须关闭 output
+	 */
+	public static final class Sink {
+		public final ITptpHandler handler;
+		/** 关闭时写出剩余数据并关闭通道 */
+		public final Closeable output;
+
+		Sink(final ITptpHandler handler, final Closeable output) {
+			this.handler = handler;
+			this.output = output;
+		}
+	}
+
+	private final String extension;
+
+	private OutputFormat(final String extension) {
+		this.extension = extension;
+	}
+
+	/** 输出文件的扩展名，不含 '.' */
+	public String getFileExtension() {
+		return extension;
+	}
+
+	/**
+	 * 创建输出到 ch 的处理者
+	 *
+	 * @param bufferSize
+	 *            输出缓冲区大小(字节)
+	 */
+	public Sink open(final WritableByteChannel ch, final int bufferSize) {
+		return open(ch, ByteBuffer.allocateDirect(bufferSize));
+	}
+
+	/**
+	 * 创建输出到 ch 的处理者，使用调用者提供的输出缓冲区，关闭之后可重复使用
+	 */
+	public Sink open(final WritableByteChannel ch, final ByteBuffer buffer) {
+		switch (this) {
+		case XML:
+			final TptpXmlFileWriter tfw = new TptpXmlFileWriter(ch, buffer);
+			return new Sink(tfw, tfw);
+
+		case COMPACT:
+			final CompactTraceWriter ctw = new CompactTraceWriter(ch, buffer);
+			return new Sink(ctw, ctw);
+
+		case FOLDED:
+			final FoldedStackWriter fsw = new FoldedStackWriter(ch, buffer);
+			return new Sink(fsw, fsw);
+
+		case CSV:
+		case JSON:
+			final ProfileAggregator pa = new ProfileAggregator(new Utf8ChannelWriter(ch, buffer),
+					this == CSV ? ProfileAggregator.ReportFormat.CSV : ProfileAggregator.ReportFormat.JSON);
+			return new Sink(pa, pa);
+
+		default:
+			final CallTreeBuilder ctb = new CallTreeBuilder(new Utf8ChannelWriter(ch, buffer));
+			return new Sink(ctb, ctb);
+		}
+	}
+
+	/**
+	 * 由命令行中的名称取得格式，名称与枚举名相同(不区分大小写)
+	 */
+	public static OutputFormat forName(final String name) {
+		for (final OutputFormat f : values()) {
+			if (f.name().equalsIgnoreCase(name))
+				return f;
+		}
+		throw new IllegalArgumentException("unknown format : " + name);
+	}
+}
@@ -0,0 +1,310 @@
+package parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+
+import parser.items.MethodItem;
+import parser.items.ThreadItem;
+import parser.record.ActionRecord;
+import parser.record.RecordDecoder;
+import parser.util.IntObjectHashMap;
+
+/**
+ * 按线程分片的并行转换(只支持 XML 输出)
+ *
+ * 方法记录之间唯一的依赖是同一线程内的调用栈，因此记录区按窗口映射后:
+ * <ol>
+ * <li>各段并行解码</li>
+ * <li>按线程 id 分片，各线程的 methodEntry/methodExit 记录并行格式化到各自的缓冲区</li>
+ * <li>按记录在文件中的顺序(即时间顺序)合并输出，线程、类、方法的定义在第一次使用之前输出</li>
+ * </ol>
+ * 输出与顺序转换完全相同
+ */
+public class ParallelTraceConverter {
+
+	/** 默认每个窗口的记录数 */
+	public static final int DEFAULT_WINDOW_RECORDS = 256 * 1024;
+
+	/** 并行解码时每个任务的记录数 */
+	private static final int DECODE_CHUNK = 16 * 1024;
+
+	private static final Logger logger = Logger.getLogger(ParallelTraceConverter.class.getCanonicalName());
+
+	private final File traceFile;
+	private final TptpXmlFileWriter writer;
+	private final ForkJoinPool pool;
+
+	private int windowRecords = DEFAULT_WINDOW_RECORDS;
+
+	// 当前窗口中解码后的记录
+	private int[] threadIds;
+	private long[] methodAddrs;
+	private int[] methodActions;
+	private long[] deltaTimes;
+	private long[] cpuTimes;
+	private MethodItem[] methods;
+	private Shard[] shardOfRecord;
+
+	/**
+	 * 一个线程的分片
+	 */
+	private static final class Shard {
+		final ThreadItem thread;
+		final XmlRecordBuilder out = new XmlRecordBuilder(16 * 1024);
+		final ShardFormatter formatter = new ShardFormatter(out);
+
+		/** 本线程的记录在窗口中的下标 */
+		int[] records = new int[256];
+		/** 每条记录格式化之后 out 的长度 */
+		int[] lineEnds = new int[256];
+		int count = 0;
+		/** 合并时的读取位置 */
+		int cursor = 0;
+
+		Shard(final ThreadItem ti) {
+			thread = ti;
+		}
+
+		void reset() {
+			out.reset();
+			count = 0;
+			cursor = 0;
+		}
+
+		void add(final int record) {
+			if (count == records.length) {
+				records = Arrays.copyOf(records, count * 2);
+				lineEnds = Arrays.copyOf(lineEnds, count * 2);
+			}
+			records[count++] = record;
+		}
+	}
+
+	/**
+	 * @param f
+	 *            Android Trace 文件
+	 * @param w
+	 *            TPTP xml 写入器
+	 */
+	public ParallelTraceConverter(final File f, final TptpXmlFileWriter w) {
+		this(f, w, ForkJoinPool.commonPool());
+	}
+
+	public ParallelTraceConverter(final File f, final TptpXmlFileWriter w, final ForkJoinPool pool) {
+		traceFile = f;
+		writer = w;
+		this.pool = pool;
+	}
+
+	public void setWindowRecords(final int n) {
+		if (n <= 0)
+			throw new IllegalArgumentException();
+		windowRecords = n;
+	}
+
+	public void process() throws IOException {
+		final TptpAdapter adapter = new TptpAdapter(writer);
+		final TraceRecordParser parser = new TraceRecordParser(adapter);
+		final TraceFileScaner scaner = new TraceFileScaner(traceFile, parser);
+
+		threadIds = new int[windowRecords];
+		methodAddrs = new long[windowRecords];
+		methodActions = new int[windowRecords];
+		deltaTimes = new long[windowRecords];
+		cpuTimes = new long[windowRecords];
+		methods = new MethodItem[windowRecords];
+		shardOfRecord = new Shard[windowRecords];
+
+		final IntObjectHashMap<Shard> shards = new IntObjectHashMap<Shard>();
+		final List<Shard> activeShards = new ArrayList<Shard>();
+
+		final RandomAccessFile raf = new RandomAccessFile(traceFile, "r");
+		try {
+			final FileChannel fc = raf.getChannel();
+			final long dataStart = scaner.processHeader(fc);
+			final int recordSize = scaner.getRecordSize();
+			final RecordDecoder decoder = parser.getRecordDecoder();
+			final long total = (fc.size() - dataStart) / recordSize;
+			int lastPercent = 0;
+			for (long first = 0; first < total; first += windowRecords) {
+				final int n = (int) Math.min(windowRecords, total - first);
+				final MappedByteBuffer window = fc.map(FileChannel.MapMode.READ_ONLY, dataStart + first
+						* recordSize, (long) n * recordSize);
+				window.order(ByteOrder.LITTLE_ENDIAN);
+
+				// 并行解码
+				pool.invoke(new DecodeTask(window, decoder, 0, n));
+
+				// 按线程分片
+				for (int i = 0; i < activeShards.size(); ++i)
+					activeShards.get(i).reset();
+				activeShards.clear();
+				for (int i = 0; i < n; ++i) {
+					final int tid = threadIds[i];
+					Shard s = shards.get(tid);
+					if (s == null) {
+						final ThreadItem ti = adapter.findThread(tid);
+						if (ti == null)
+							throw new IllegalArgumentException("unknown thread : " + tid);
+						s = new Shard(ti);
+						shards.put(tid, s);
+					}
+					if (s.count == 0)
+						activeShards.add(s);
+					s.add(i);
+					shardOfRecord[i] = s;
+				}
+
+				// 各线程并行格式化
+				final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(activeShards.size());
+				for (int i = 0; i < activeShards.size(); ++i)
+					tasks.add(new ShardTask(adapter, activeShards.get(i)));
+				pool.invoke(new RecursiveAction() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected void compute() {
+						invokeAll(tasks);
+					}
+				});
+
+				// 按原顺序合并
+				merge(adapter, n);
+
+				// log
+				final int percent = (int) ((first + n) * 100 / total);
+				if (percent - lastPercent >= 1) {
+					lastPercent = percent;
+					logger.info(String.format("processed %d%%", lastPercent));
+				}
+			}
+		} finally {
+			raf.close();
+		}
+
+		parser.end();
+		logger.info("processing done.");
+	}
+
+	private void merge(final TptpAdapter adapter, final int n) throws IOException {
+		final long startTime = adapter.getStartTimeUsec();
+		for (int i = 0; i < n; ++i) {
+			final Shard s = shardOfRecord[i];
+			final int k = s.cursor++;
+			final long time = startTime + deltaTimes[i];
+			adapter.setEndTimeUsec(time);
+			adapter.logDefinitions(s.thread, methods[i], time);
+
+			final int from = k == 0 ? 0 : s.lineEnds[k - 1];
+			final int to = s.lineEnds[k];
+			if (to > from)
+				writer.write(s.out.chars(), from, to - from);
+		}
+	}
+
+	/**
+	 * 解码窗口中 [from, to) 范围的记录
+	 */
+	private final class DecodeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final MappedByteBuffer window;
+		private final RecordDecoder decoder;
+		private final int from, to;
+
+		DecodeTask(final MappedByteBuffer window, final RecordDecoder decoder, final int from, final int to) {
+			this.window = window;
+			this.decoder = decoder;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > DECODE_CHUNK) {
+				final int mid = (from + to) >>> 1;
+				invokeAll(new DecodeTask(window, decoder, from, mid), new DecodeTask(window, decoder, mid, to));
+				return;
+			}
+
+			final ActionRecord ar = new ActionRecord();
+			final int recordSize = decoder.getRecordSize();
+			for (int i = from; i < to; ++i) {
+				decoder.decode(window, i * recordSize, ar);
+				threadIds[i] = ar.getThreadId();
+				methodAddrs[i] = ar.getMethodAddr();
+				methodActions[i] = ar.getMethodActionCode();
+				deltaTimes[i] = ar.getDeltaTime();
+				cpuTimes[i] = ar.getCpuTime();
+			}
+		}
+	}
+
+	/**
+	 * 将 methodEntry/methodExit 格式化到一个分片的缓冲区，每条一行
+	 */
+	private static final class ShardFormatter extends TptpHandlerBase {
+
+		private final XmlRecordBuilder out;
+
+		ShardFormatter(final XmlRecordBuilder out) {
+			this.out = out;
+		}
+
+		public void handleMethodEntry(final int tid, final int cid, final long mid, final long timeUTCSec,
+				final long timeUTCNsec, final int ticket, final int stackDepth, final long threadCpuTime) {
+			TptpXmlFileWriter.formatMethodEntry(out, tid, cid, mid, timeUTCSec, timeUTCNsec, ticket, stackDepth,
+					threadCpuTime);
+			out.append('\n');
+		}
+
+		public void handleMethodExit(final int tid, final int cid, final long mid, final long timeUTCSec,
+				final long timeUTCNsec, final int ticket, final long threadCpuTime) {
+			TptpXmlFileWriter.formatMethodExit(out, tid, cid, mid, timeUTCSec, timeUTCNsec, ticket, threadCpuTime);
+			out.append('\n');
+		}
+	}
+
+	/**
+	 * 格式化一个线程在当前窗口中的所有记录，每条记录经 TptpAdapter.applyMethodAction() 处理，与顺序转换相同
+	 */
+	private final class ShardTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final TptpAdapter adapter;
+		private final Shard shard;
+
+		ShardTask(final TptpAdapter adapter, final Shard shard) {
+			this.adapter = adapter;
+			this.shard = shard;
+		}
+
+		@Override
+		protected void compute() {
+			final Shard s = shard;
+			final long startTime = adapter.getStartTimeUsec();
+			for (int k = 0; k < s.count; ++k) {
+				final int i = s.records[k];
+				final MethodItem mi = adapter.findMethod(methodAddrs[i]);
+				if (mi == null)
+					throw new IllegalArgumentException("unknown method : 0x" + Long.toHexString(methodAddrs[i]));
+				methods[i] = mi;
+				TptpAdapter.applyMethodAction(s.formatter, s.thread, mi, false, methodActions[i], startTime
+						+ deltaTimes[i], TptpAdapter.cpuTime2nsec(cpuTimes[i]));
+				s.lineEnds[k] = s.out.length();
+			}
+		}
+	}
+}
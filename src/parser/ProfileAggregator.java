@@ -0,0 +1,437 @@
+package parser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import parser.util.IntObjectHashMap;
+
+/**
+ * 不输出 Trace 记录，而是在转换过程中直接统计各方法的性能数据
+ *
+ * 按线程、按方法统计调用次数、包含时间(inclusive)、独占时间(exclusive)以及单次调用的最短、最长、平均时间，
+ * 结束时输出 CSV 或 JSON 格式的汇总。methodExit 与 methodEntry 按 ticket 配对；trace 结束时仍未退出的调用，
+ * 按 trace 结束时间计算。递归调用的包含时间只计最外层的一次，时间单位为微秒。
+ *
+ * 内存占用只与方法数、线程数和调用栈深度有关，与记录数无关
+ */
+public class ProfileAggregator extends TptpHandlerBase implements IBatchTptpHandler, Closeable {
+
+	/**
+	 * 汇总的输出格式
+	 */
+	public static enum ReportFormat {
+		CSV, JSON,
+	}
+
+	/**
+	 * 一个线程的统计数据。按方法统计的数据存放在以槽位为下标的数组中，槽位按方法在本线程中第一次出现的顺序分配
+	 */
+	private static final class ThreadProfile {
+		final int tid;
+		String name = "";
+
+		/** methodId -> 槽位 + 1，0 表示本线程中还未出现 */
+		int[] slotOfMethod = new int[0];
+		int slots = 0;
+		int[] methodOfSlot = new int[64];
+		long[] calls = new long[64];
+		long[] inclusive = new long[64];
+		long[] exclusive = new long[64];
+		/** 各次调用时间之和，递归调用也计入 */
+		long[] callTime = new long[64];
+		long[] min = new long[64];
+		long[] max = new long[64];
+		/** 调用栈中该方法的调用数，用于判断递归 */
+		int[] active = new int[64];
+
+		/** 各层的值为槽位 */
+		final CallStack stack = new CallStack();
+
+		ThreadProfile(final int tid) {
+			this.tid = tid;
+		}
+
+		int slot(final int mid) {
+			if (mid >= slotOfMethod.length)
+				slotOfMethod = Arrays.copyOf(slotOfMethod, Math.max(mid + 1, slotOfMethod.length * 2));
+			int s = slotOfMethod[mid] - 1;
+			if (s >= 0)
+				return s;
+
+			s = slots++;
+			if (s == methodOfSlot.length) {
+				final int len = s * 2;
+				methodOfSlot = Arrays.copyOf(methodOfSlot, len);
+				calls = Arrays.copyOf(calls, len);
+				inclusive = Arrays.copyOf(inclusive, len);
+				exclusive = Arrays.copyOf(exclusive, len);
+				callTime = Arrays.copyOf(callTime, len);
+				min = Arrays.copyOf(min, len);
+				max = Arrays.copyOf(max, len);
+				active = Arrays.copyOf(active, len);
+			}
+			methodOfSlot[s] = mid;
+			min[s] = Long.MAX_VALUE;
+			slotOfMethod[mid] = s + 1;
+			return s;
+		}
+
+		void enter(final int mid, final int ticket, final long time) {
+			final int s = slot(mid);
+			stack.push(s, ticket, time);
+			++active[s];
+		}
+
+		void exit(final int ticket, final long time) {
+			final int d = stack.levelOf(ticket);
+			if (d < 0)
+				return;
+			while (stack.depth() > d)
+				pop(time);
+		}
+
+		void pop(final long time) {
+			final int s = stack.top();
+			exclusive[s] += stack.selfTime(time);
+			final long t = stack.pop(time);
+			++calls[s];
+			callTime[s] += t;
+			if (--active[s] == 0)
+				inclusive[s] += t;
+			if (t < min[s])
+				min[s] = t;
+			if (t > max[s])
+				max[s] = t;
+		}
+	}
+
+	private final Writer out;
+	private final ReportFormat format;
+
+	private final IntObjectHashMap<ThreadProfile> threads = new IntObjectHashMap<ThreadProfile>();
+	/** 按第一次出现的顺序 */
+	private final List<ThreadProfile> threadList = new ArrayList<ThreadProfile>();
+
+	// 以 classId/methodId 为下标
+	private String[] classNames = new String[64];
+	private String[] methodNames = new String[64];
+	private String[] methodSignatures = new String[64];
+	private int[] methodClasses = new int[64];
+
+	private boolean reported = false;
+
+	/**
+	 * @param w
+	 *            close() 时向其中写入汇总，之后关闭
+	 */
+	public ProfileAggregator(final Writer w, final ReportFormat format) {
+		if (w == null || format == null)
+			throw new IllegalArgumentException();
+		out = w;
+		this.format = format;
+	}
+
+	private void ensureMethodCapacity(final int mid) {
+		if (mid < methodNames.length)
+			return;
+		final int len = Math.max(mid + 1, methodNames.length * 2);
+		methodNames = Arrays.copyOf(methodNames, len);
+		methodSignatures = Arrays.copyOf(methodSignatures, len);
+		methodClasses = Arrays.copyOf(methodClasses, len);
+	}
+
+	private ThreadProfile thread(final int tid) {
+		ThreadProfile tp = threads.get(tid);
+		if (tp == null) {
+			tp = new ThreadProfile(tid);
+			threads.put(tid, tp);
+			threadList.add(tp);
+		}
+		return tp;
+	}
+
+	/** 结束所有未退出的调用 */
+	public void handleTraceEnd(final long timeUTCSec, final long timeUTCNsec) {
+		final long time = toNsec(timeUTCSec, timeUTCNsec);
+		for (int i = 0; i < threadList.size(); ++i) {
+			final ThreadProfile tp = threadList.get(i);
+			final long end = tp.stack.closingTime(time);
+			while (tp.stack.depth() > 0)
+				tp.pop(end);
+		}
+	}
+
+	public void handleThreadStart(final int tid, final long timeUTCSec, final long timeUTCNsec, final String name,
+			final String group, final String parent) {
+		if (tid < 0 || name == null)
+			throw new IllegalArgumentException();
+		thread(tid).name = name;
+	}
+
+	public void handleClassDef(final int cid, final String name, final String sourceFile, final long timeUTCSec,
+			final long timeUTCNsec) {
+		if (cid < 0 || name == null)
+			throw new IllegalArgumentException();
+		if (cid >= classNames.length)
+			classNames = Arrays.copyOf(classNames, Math.max(cid + 1, classNames.length * 2));
+		classNames[cid] = name;
+	}
+
+	public void handleMethodDef(final long mid, final String name, final String signature, final int startLine,
+			final int endLine, final int classId) {
+		if (mid < 0 || mid > Integer.MAX_VALUE || name == null || signature == null || classId < 0)
+			throw new IllegalArgumentException();
+		final int id = (int) mid;
+		ensureMethodCapacity(id);
+		methodNames[id] = name;
+		methodSignatures[id] = signature;
+		methodClasses[id] = classId;
+	}
+
+	public void handleMethodEntry(final int tid, final int cid, final long mid, final long timeUTCSec,
+			final long timeUTCNsec, final int ticket, final int stackDepth, final long threadCpuTime) {
+		if (tid < 0 || mid < 0 || mid > Integer.MAX_VALUE)
+			throw new IllegalArgumentException();
+		ensureMethodCapacity((int) mid);
+		thread(tid).enter((int) mid, ticket, toNsec(timeUTCSec, timeUTCNsec));
+	}
+
+	public void handleMethodExit(final int tid, final int cid, final long mid, final long timeUTCSec,
+			final long timeUTCNsec, final int ticket, final long threadCpuTime) {
+		if (tid < 0 || mid < 0)
+			throw new IllegalArgumentException();
+		thread(tid).exit(ticket, toNsec(timeUTCSec, timeUTCNsec));
+	}
+
+	public void handleMethodEvents(final MethodEventBatch batch) {
+		int lastTid = -1;
+		ThreadProfile tp = null;
+		for (int i = 0; i < batch.size(); ++i) {
+			final int tid = batch.tid[i];
+			final long mid = batch.mid[i];
+			if (tid < 0 || mid < 0 || batch.kind[i] == MethodEventBatch.METHOD_ENTRY && mid > Integer.MAX_VALUE)
+				throw new IllegalArgumentException();
+			if (tid != lastTid) {
+				tp = thread(tid);
+				lastTid = tid;
+			}
+			if (batch.kind[i] == MethodEventBatch.METHOD_ENTRY) {
+				ensureMethodCapacity((int) mid);
+				tp.enter((int) mid, batch.ticket[i], batch.time[i]);
+			} else {
+				tp.exit(batch.ticket[i], batch.time[i]);
+			}
+		}
+	}
+
+	/**
+	 * 所有线程合计的按方法统计数据，以 methodId 为下标
+	 */
+	private static final class MethodTotals {
+		final long[] calls, inclusive, exclusive, callTime, min, max;
+		/** 有调用的方法，按独占时间从大到小排列 */
+		final Integer[] order;
+
+		MethodTotals(final int methods, final List<ThreadProfile> threadList) {
+			calls = new long[methods];
+			inclusive = new long[methods];
+			exclusive = new long[methods];
+			callTime = new long[methods];
+			min = new long[methods];
+			max = new long[methods];
+			Arrays.fill(min, Long.MAX_VALUE);
+			for (int i = 0; i < threadList.size(); ++i) {
+				final ThreadProfile tp = threadList.get(i);
+				for (int s = 0; s < tp.slots; ++s) {
+					final int mid = tp.methodOfSlot[s];
+					calls[mid] += tp.calls[s];
+					inclusive[mid] += tp.inclusive[s];
+					exclusive[mid] += tp.exclusive[s];
+					callTime[mid] += tp.callTime[s];
+					min[mid] = Math.min(min[mid], tp.min[s]);
+					max[mid] = Math.max(max[mid], tp.max[s]);
+				}
+			}
+
+			final List<Integer> used = new ArrayList<Integer>();
+			for (int mid = 0; mid < methods; ++mid)
+				if (calls[mid] > 0)
+					used.add(Integer.valueOf(mid));
+			order = used.toArray(new Integer[used.size()]);
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(final Integer a, final Integer b) {
+					final long x = exclusive[a.intValue()], y = exclusive[b.intValue()];
+					return x > y ? -1 : (x < y ? 1 : a.compareTo(b));
+				}
+			});
+		}
+	}
+
+	/** 一个线程中有调用的槽位，按独占时间从大到小排列 */
+	private static Integer[] sortedSlots(final ThreadProfile tp) {
+		final List<Integer> used = new ArrayList<Integer>();
+		for (int s = 0; s < tp.slots; ++s)
+			if (tp.calls[s] > 0)
+				used.add(Integer.valueOf(s));
+		final Integer[] ret = used.toArray(new Integer[used.size()]);
+		Arrays.sort(ret, new Comparator<Integer>() {
+			public int compare(final Integer a, final Integer b) {
+				final long x = tp.exclusive[a.intValue()], y = tp.exclusive[b.intValue()];
+				return x > y ? -1 : (x < y ? 1 : a.compareTo(b));
+			}
+		});
+		return ret;
+	}
+
+	private static String usec(final long nsec) {
+		return Long.toString(nsec / 1000);
+	}
+
+	private static String avgUsec(final long nsec, final long calls) {
+		return String.format(Locale.ROOT, "%.3f", nsec / 1000.0 / calls);
+	}
+
+	private static String csv(final String s) {
+		if (s == null)
+			return "";
+		if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0)
+			return s;
+		return '"' + s.replace("\"", "\"\"") + '"';
+	}
+
+	private static String json(final String s) {
+		if (s == null)
+			return "null";
+		final StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < s.length(); ++i) {
+			final char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					sb.append(String.format("\\u%04x", Integer.valueOf(c)));
+				else
+					sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private String className(final int mid) {
+		final int cid = methodClasses[mid];
+		return cid < classNames.length ? classNames[cid] : null;
+	}
+
+	/**
+	 * 输出 CSV 格式的汇总。thread 列为 "all" 的行是所有线程的合计
+	 */
+	public void writeCsv(final Writer w) throws IOException {
+		w.write("thread,threadName,class,method,signature,calls,inclusiveUsec,exclusiveUsec,minUsec,maxUsec,avgUsec\n");
+		final MethodTotals totals = new MethodTotals(methodNames.length, threadList);
+		for (int i = 0; i < totals.order.length; ++i) {
+			final int mid = totals.order[i].intValue();
+			writeCsvRow(w, "all", "", mid, totals.calls[mid], totals.inclusive[mid], totals.exclusive[mid],
+					totals.callTime[mid], totals.min[mid], totals.max[mid]);
+		}
+		for (int i = 0; i < threadList.size(); ++i) {
+			final ThreadProfile tp = threadList.get(i);
+			final Integer[] slots = sortedSlots(tp);
+			for (int j = 0; j < slots.length; ++j) {
+				final int s = slots[j].intValue();
+				writeCsvRow(w, Integer.toString(tp.tid), tp.name, tp.methodOfSlot[s], tp.calls[s], tp.inclusive[s],
+						tp.exclusive[s], tp.callTime[s], tp.min[s], tp.max[s]);
+			}
+		}
+		w.flush();
+	}
+
+	private void writeCsvRow(final Writer w, final String thread, final String threadName, final int mid,
+			final long calls, final long inclusive, final long exclusive, final long callTime, final long min,
+			final long max) throws IOException {
+		final StringBuilder sb = new StringBuilder(256);
+		sb.append(thread).append(',').append(csv(threadName)).append(',').append(csv(className(mid))).append(',')
+				.append(csv(methodNames[mid])).append(',').append(csv(methodSignatures[mid])).append(',').append(
+						calls).append(',').append(usec(inclusive)).append(',').append(usec(exclusive)).append(',')
+				.append(usec(min)).append(',').append(usec(max)).append(',').append(avgUsec(callTime, calls))
+				.append('\n');
+		w.write(sb.toString());
+	}
+
+	/**
+	 * 输出 JSON 格式的汇总: {"methods": [所有线程合计], "threads": [{"tid", "name", "methods": [...]}]}
+	 */
+	public void writeJson(final Writer w) throws IOException {
+		final MethodTotals totals = new MethodTotals(methodNames.length, threadList);
+		w.write("{\n\"methods\": [");
+		for (int i = 0; i < totals.order.length; ++i) {
+			final int mid = totals.order[i].intValue();
+			w.write(i == 0 ? "\n" : ",\n");
+			writeJsonMethod(w, mid, totals.calls[mid], totals.inclusive[mid], totals.exclusive[mid],
+					totals.callTime[mid], totals.min[mid], totals.max[mid]);
+		}
+		w.write("\n],\n\"threads\": [");
+		for (int i = 0; i < threadList.size(); ++i) {
+			final ThreadProfile tp = threadList.get(i);
+			w.write(i == 0 ? "\n" : ",\n");
+			w.write("{\"tid\": " + tp.tid + ", \"name\": " + json(tp.name) + ", \"methods\": [");
+			final Integer[] slots = sortedSlots(tp);
+			for (int j = 0; j < slots.length; ++j) {
+				final int s = slots[j].intValue();
+				w.write(j == 0 ? "\n" : ",\n");
+				writeJsonMethod(w, tp.methodOfSlot[s], tp.calls[s], tp.inclusive[s], tp.exclusive[s],
+						tp.callTime[s], tp.min[s], tp.max[s]);
+			}
+			w.write("\n]}");
+		}
+		w.write("\n]\n}\n");
+		w.flush();
+	}
+
+	private void writeJsonMethod(final Writer w, final int mid, final long calls, final long inclusive,
+			final long exclusive, final long callTime, final long min, final long max) throws IOException {
+		final StringBuilder sb = new StringBuilder(256);
+		sb.append("{\"class\": ").append(json(className(mid))).append(", \"method\": ").append(
+				json(methodNames[mid])).append(", \"signature\": ").append(json(methodSignatures[mid])).append(
+				", \"calls\": ").append(calls).append(", \"inclusiveUsec\": ").append(usec(inclusive)).append(
+				", \"exclusiveUsec\": ").append(usec(exclusive)).append(", \"minUsec\": ").append(usec(min)).append(
+				", \"maxUsec\": ").append(usec(max)).append(", \"avgUsec\": ").append(avgUsec(callTime, calls))
+				.append('}');
+		w.write(sb.toString());
+	}
+
+	/** 输出汇总并关闭 */
+	public void close() throws IOException {
+		if (reported)
+			return;
+		reported = true;
+		try {
+			if (format == ReportFormat.JSON)
+				writeJson(out);
+			else
+				writeCsv(out);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -1,12 +1,20 @@
 package parser;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
+import java.util.regex.Matcher;
 
 import parser.items.*;
+import parser.record.ActionRecord;
 import parser.record.ActionRecord.MethodAction;
+import parser.util.IntObjectHashMap;
+import parser.util.LongObjectHashMap;
 
 /**
  * 将 Android Trace 记录适配到 TPTP Trace 记录
@@ -20,37 +28,118 @@ public class TptpAdapter {
 	private int nextMethodId = 1;
 	private int nextClassId = 1;
 
-	private final Map<Integer, ThreadItem> threads = new HashMap<Integer, ThreadItem>();
-	private final Map<Integer, ClassItem> classesIds = new HashMap<Integer, ClassItem>();
+	private final IntObjectHashMap<ThreadItem> threads = new IntObjectHashMap<ThreadItem>();
+	/** 以 classId 为下标 */
+	private ClassItem[] classesIds = new ClassItem[64];
 	private final Map<String, ClassItem> classesNames = new HashMap<String, ClassItem>();
-	private final Map<Long, MethodItem> methods = new HashMap<Long, MethodItem>();
+	/** 以头部中的类名(转换之前)为键，同一个类的方法共用一个 ClassItem，不必每次转换类名 */
+	private final Map<String, ClassItem> classesRawNames = new HashMap<String, ClassItem>();
+	private final LongObjectHashMap<MethodItem> methods = new LongObjectHashMap<MethodItem>();
+	/** 以 methodId 为下标 */
+	private MethodItem[] methodsIds = new MethodItem[64];
+
+	/**
+	 * 方法地址的稠密索引: 若方法地址分布足够紧凑，则以 (address - methodIndexBase) >> 2 为下标直接查找，
+	 * 否则为 null，使用 methods 哈希表查找
+	 */
+	private MethodItem[] methodIndex = null;
+	private long methodIndexBase = 0;
+	private long minMethodAddress = Long.MAX_VALUE;
+	private long maxMethodAddress = Long.MIN_VALUE;
+
+	/** 稠密索引的最大稀疏程度(槽位数/方法数) */
+	private static final int MAX_METHOD_INDEX_SPARSENESS = 4;
+
+	/** 延迟解析方法定义时头部中的方法行，否则为 null */
+	private LazySymbolTable lazySymbols = null;
+
+	private int maxCallDepth = ThreadItem.DEFAULT_MAX_CALL_DEPTH;
+	private ThreadItem.OverflowPolicy overflowPolicy = ThreadItem.OverflowPolicy.TRUNCATE;
+
+	private MethodFilter methodFilter = null;
+	/** 以 methodId 为下标，被过滤的方法为 true；未设置过滤规则时为 null */
+	private boolean[] hiddenMethods = null;
+
+	/** 已输出定义的线程、类、方法，分别以 tid、classId、methodId 为下标 */
+	private final BitSet loggedThreads = new BitSet();
+	private final BitSet loggedClasses = new BitSet();
+	private final BitSet loggedMethods = new BitSet();
+
+	/** 线程空闲多久(in usec)视为已结束，0 表示不结束线程 */
+	private long threadIdleTimeout = 0;
+	/** 已输出 threadStart、尚未结束的线程，只在 threadIdleTimeout > 0 时记录 */
+	private final List<ThreadItem> liveThreads = new ArrayList<ThreadItem>();
+	/** 下一次检查空闲线程的时间(in usec) */
+	private long nextIdleCheck = 0;
+	/** 因空闲而结束的线程数 */
+	private int idleThreadsEnded = 0;
 
 	private final ITptpHandler tptpHandler;
+	/** 处理者能成批处理方法事件时，方法事件先填入 batch；否则二者为 null */
+	private final IBatchTptpHandler batchHandler;
+	private final MethodEventBatch batch;
+	/** 方法事件交给它: 成批时为填入 batch 的 BatchFiller，否则为 tptpHandler */
+	private final ITptpHandler eventHandler;
 
-	final String processUuid = "b83695a9-0ba4-4061-b4ad-f59fcebf0e43";
-	final String agentUuid = "e08d817f-869c-40b9-b2c5-6796929ee60c";
-	final String traceUuid = "6307309-4467-46c0-a44c-b513e3d652a7";
+	/** 头部中没有给出进程号时使用 */
+	private static final int DEFAULT_PID = 3812;
+
+	private int pid = DEFAULT_PID;
+	private String processUuid = "b83695a9-0ba4-4061-b4ad-f59fcebf0e43";
+	private String agentUuid = "e08d817f-869c-40b9-b2c5-6796929ee60c";
+	private String traceUuid = "6307309-4467-46c0-a44c-b513e3d652a7";
 
 	private static final Logger logger = Logger.getLogger(TptpAdapter.class.getCanonicalName());
 
+	/** 方法事件逐个交给 handler */
 	public TptpAdapter(ITptpHandler handler) {
+		this(handler, 0);
+	}
+
+	/**
+	 * handler 为 IBatchTptpHandler 且 batchSize > 0 时，方法事件成批交给 handler。
+	 *
+	 * 单个处理者时 JIT 已能将逐个调用内联，成批并不更快；处理者的调用点被多种处理者共用、无法内联时才有好处
+	 *
+	 * @param batchSize
+	 *            每批的方法事件数，0 表示逐个交出，通常取 MethodEventBatch.DEFAULT_CAPACITY
+	 */
+	public TptpAdapter(ITptpHandler handler, int batchSize) {
+		if (batchSize < 0)
+			throw new IllegalArgumentException();
 		tptpHandler = handler;
+		if (handler instanceof IBatchTptpHandler && batchSize > 0) {
+			batchHandler = (IBatchTptpHandler) handler;
+			batch = new MethodEventBatch(batchSize);
+			eventHandler = new BatchFiller();
+		} else {
+			batchHandler = null;
+			batch = null;
+			eventHandler = handler;
+		}
 	}
 
 	/**
 	 * 将us(微秒)转换为s(秒)
 	 */
-	private static long usec2sec(long usec) {
+	static long usec2sec(long usec) {
 		return usec / 1000000;
 	}
 
 	/**
 	 * 将us(微秒)转换为ns(纳秒)
 	 */
-	private static long usec2nsec(long usec) {
+	static long usec2nsec(long usec) {
 		return (usec % 1000000) * 1000;
 	}
 
+	/**
+	 * 将记录中的线程 CPU 时间(us)转换为 ns，没有则为 ITptpHandler.NO_CPU_TIME
+	 */
+	static long cpuTime2nsec(long cpuTime) {
+		return cpuTime < 0 ? ITptpHandler.NO_CPU_TIME : cpuTime * 1000;
+	}
+
 	/**
 	 * 将 android trace 中的类名替换为 tptp trace 中的类名称
 	 */
@@ -65,45 +154,236 @@ public class TptpAdapter {
 		return sb.toString();
 	}
 
+	/**
+	 * 设置输出的进程、代理、trace 的 UUID，须在 addDataFileHead() 之前调用。合并多个文件时各文件须不同
+	 */
+	public void setUuids(final String processUuid, final String agentUuid, final String traceUuid) {
+		if (processUuid == null || agentUuid == null || traceUuid == null)
+			throw new IllegalArgumentException();
+		this.processUuid = processUuid;
+		this.agentUuid = agentUuid;
+		this.traceUuid = traceUuid;
+	}
+
+	/** 文本头部选项中给出的进程号 */
+	public void addProcessId(final int pid) {
+		logger.info("process id : " + pid);
+		this.pid = pid;
+	}
+
 	public void addKeyFileVersion(int version) {
 		logger.info("key file version : " + version);
 		// nothing to do
 	}
 
+	/**
+	 * 设置各线程调用栈的最大深度及超出时的处理方式，须在 addThread() 之前调用
+	 */
+	public void setCallDepthLimit(final int maxDepth, final ThreadItem.OverflowPolicy policy) {
+		if (maxDepth <= 0 || policy == null)
+			throw new IllegalArgumentException();
+		maxCallDepth = maxDepth;
+		overflowPolicy = policy;
+	}
+
+	/**
+	 * 设置方法过滤规则，须在 addMethod() 之前调用。被过滤的方法不输出，其时间计入最近的未被过滤的调用者
+	 */
+	public void setMethodFilter(final MethodFilter filter) {
+		methodFilter = filter == null || filter.isEmpty() ? null : filter;
+		hiddenMethods = methodFilter == null ? null : new boolean[64];
+	}
+
+	/**
+	 * 设置空闲线程的超时，内存占用不随 trace 长度增长: 调用栈为空且超过 timeout 没有方法记录的线程视为已结束，
+	 * 在发现时以当时的时间输出 threadEnd 并释放其调用栈，之后再有记录时重新输出 threadStart；
+	 * trace 结束时为其余线程输出 threadEnd
+	 *
+	 * @param timeout
+	 *            空闲时间(in usec)，0 表示不结束线程，也不输出 threadEnd
+	 */
+	public void setThreadIdleTimeout(final long timeout) {
+		if (timeout < 0)
+			throw new IllegalArgumentException();
+		threadIdleTimeout = timeout;
+	}
+
 	public void addThread(int tid, String name) {
 		logger.info("add thread : " + tid + " " + name);
 		final ThreadItem ti = new ThreadItem(tid, name);
-		threads.put(Integer.valueOf(tid), ti);
+		ti.setCallDepthLimit(maxCallDepth, overflowPolicy);
+		threads.put(tid, ti);
+	}
+
+	/** 等价于 Pattern.matches("[\\w$]+", s) */
+	private static boolean isJavaWord(final String s) {
+		final int len = s.length();
+		if (len == 0)
+			return false;
+		for (int i = 0; i < len; ++i) {
+			final char c = s.charAt(i);
+			if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '$'))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 设置是否延迟解析方法定义，须在 addMethod() 之前调用
+	 *
+	 * 延迟时头部中的方法行只记录地址和行在文件中的位置(addMethod(long, long))，方法第一次出现在记录中时才解码该行，
+	 * 创建方法及其所属的类，方法和类按第一次出现的顺序编号。头部中的方法很多而用到的很少时，减少分析头部的时间和内存占用
+	 */
+	public void setLazySymbols(final boolean lazy) {
+		if (!methods.isEmpty() || (lazySymbols != null && lazySymbols.size() > 0))
+			throw new IllegalStateException("methods have been added");
+		lazySymbols = lazy ? new LazySymbolTable() : null;
+	}
+
+	public boolean isLazySymbols() {
+		return lazySymbols != null;
+	}
+
+	/**
+	 * 延迟解析时方法行所在的文本，以 addMethod(long, long) 中行的位置为下标，通常是文件开头的内存映射。
+	 * 须在第一条方法记录之前设置
+	 */
+	public void setSymbolText(final ByteBuffer text) {
+		if (lazySymbols == null)
+			throw new IllegalStateException("lazy symbols are not enabled");
+		lazySymbols.setText(text);
 	}
 
 	public void addMethod(long methodAddress, String className, String methodName, String signature,
 			String sourceFile, int sourceLine) {
-		className = androidName2TptpName(className);
+		defineMethod(methodAddress, className, methodName, signature);
+		methodIndex = null;
+		minMethodAddress = Math.min(minMethodAddress, methodAddress);
+		maxMethodAddress = Math.max(maxMethodAddress, methodAddress);
+	}
+
+	/**
+	 * 延迟解析时头部中的一个方法行，参见 setLazySymbols()
+	 *
+	 * @param offset
+	 *            行在文件中的位置
+	 */
+	public void addMethod(final long methodAddress, final long offset) {
+		if (lazySymbols == null)
+			throw new IllegalStateException("lazy symbols are not enabled");
+		lazySymbols.add(methodAddress, offset);
+		methodIndex = null;
+		minMethodAddress = Math.min(minMethodAddress, methodAddress);
+		maxMethodAddress = Math.max(maxMethodAddress, methodAddress);
+	}
+
+	/**
+	 * 创建方法，所属的类第一次出现时一并创建
+	 *
+	 * @param className
+	 *            头部中的类名，例如 "java/lang/Object"
+	 */
+	private MethodItem defineMethod(final long methodAddress, final String className, String methodName,
+			final String signature) {
 		if (methodName.equals("<init>")) {
 			methodName = "-init-";
 		} else if (methodName.equals("<clinit>")) {
 			methodName = "-clinit-";
-		} else if (!Pattern.matches("[\\w$]+", methodName)) {
+		} else if (!isJavaWord(methodName)) {
 			throw new IllegalArgumentException("unknow method name : " + methodName);
 		}
-		ClassItem ci = classesNames.get(className);
+		ClassItem ci = classesRawNames.get(className);
 		if (ci == null) {
-			logger.info("add class : " + className);
-			ci = new ClassItem(nextClassId++, className);
-			classesNames.put(className, ci);
-			classesIds.put(Integer.valueOf(ci.getClassId()), ci);
+			final String name = androidName2TptpName(className);
+			ci = classesNames.get(name);
+			if (ci == null) {
+				logger.info("add class : " + name);
+				ci = new ClassItem(nextClassId++, name);
+				classesNames.put(name, ci);
+				if (ci.getClassId() >= classesIds.length)
+					classesIds = Arrays.copyOf(classesIds, classesIds.length * 2);
+				classesIds[ci.getClassId()] = ci;
+			}
+			classesRawNames.put(className, ci);
 		}
 
 		// logger.info("add method : " + methodName + " " + signature);
 		final MethodItem mi = new MethodItem(nextMethodId++, methodAddress, methodName, signature, ci.getClassId());
-		methods.put(Long.valueOf(methodAddress), mi);
+		methods.put(methodAddress, mi);
+		if (mi.getMethodId() >= methodsIds.length)
+			methodsIds = Arrays.copyOf(methodsIds, methodsIds.length * 2);
+		methodsIds[mi.getMethodId()] = mi;
+		if (methodFilter != null) {
+			if (mi.getMethodId() >= hiddenMethods.length)
+				hiddenMethods = Arrays.copyOf(hiddenMethods, hiddenMethods.length * 2);
+			hiddenMethods[mi.getMethodId()] = !methodFilter.accept(ci.getClassName(), methodName);
+		}
+		return mi;
+	}
+
+	/**
+	 * 延迟解析时，方法第一次出现时解码其方法行并创建之
+	 *
+	 * @return 头部中没有此地址则为 null
+	 */
+	private MethodItem resolveMethod(final long methodAddress) {
+		final Matcher m = lazySymbols.find(methodAddress);
+		if (m == null)
+			return null;
+		final MethodItem mi = defineMethod(methodAddress, m.group(2), m.group(3), m.group(4));
+		if (methodIndex != null && ((methodAddress - methodIndexBase) & 0x03) == 0)
+			methodIndex[(int) ((methodAddress - methodIndexBase) >> 2)] = mi;
+		return mi;
+	}
+
+	/**
+	 * 方法列表确定后，若地址分布足够紧凑，则建立以地址为下标的稠密索引
+	 */
+	private void buildMethodIndex() {
+		methodIndex = null;
+		// 延迟解析时方法尚未创建，索引在方法第一次出现时填入
+		final int count = lazySymbols != null ? lazySymbols.size() : methods.size();
+		if (count == 0 || (minMethodAddress & 0x03) != 0)
+			return;
+		final long slots = ((maxMethodAddress - minMethodAddress) >> 2) + 1;
+		if (slots > (long) count * MAX_METHOD_INDEX_SPARSENESS)
+			return;
+
+		final MethodItem[] index = new MethodItem[(int) slots];
+		if (lazySymbols == null) {
+			for (long addr = minMethodAddress; addr <= maxMethodAddress; addr += 4) {
+				final MethodItem mi = methods.get(addr);
+				if (mi != null)
+					index[(int) ((addr - minMethodAddress) >> 2)] = mi;
+			}
+		}
+		methodIndexBase = minMethodAddress;
+		methodIndex = index;
+		logger.info("method index : " + slots + " slots for " + count + " methods");
+	}
+
+	/** 根据方法地址查找方法，延迟解析时第一次查找才创建 */
+	MethodItem findMethod(final long methodAddress) {
+		final MethodItem[] index = methodIndex;
+		final MethodItem mi;
+		if (index != null) {
+			final long slot = (methodAddress - methodIndexBase) >> 2;
+			if (slot < 0 || slot >= index.length)
+				return null;
+			mi = index[(int) slot];
+		} else {
+			mi = methods.get(methodAddress);
+		}
+		if (mi == null && lazySymbols != null)
+			return resolveMethod(methodAddress);
+		return mi;
 	}
 
 	/**
 	 * @param offset
 	 *            The application is expected to parse all of the header fields,
 	 *            then seek to "offset to data" from the start of the file. From
-	 *            there it just reads 9-byte records until EOF is reached.
+	 *            there it just reads fixed-size records until EOF is reached.
 	 *
 	 * @param startDateTime
 	 *            start date/time in usec is the output from gettimeofday().
@@ -111,32 +391,41 @@ public class TptpAdapter {
 	 *            generated yesterday or three months ago.
 	 */
 	public void addDataFileHead(final int version, final int offset, final long startDateTime) {
+		addDataFileHead(version, offset, startDateTime, true);
+	}
+
+	/**
+	 * 同 addDataFileHead(int, int, long)
+	 *
+	 * @param cpuTime
+	 *            记录中是否有线程 CPU 时间
+	 */
+	public void addDataFileHead(final int version, final int offset, final long startDateTime, final boolean cpuTime) {
 		logger.info("data file version : " + version);
 		startTimeUsec = startDateTime;
 		endTimeUsec = startDateTime;
+		buildMethodIndex();
 
 		// start
 		tptpHandler.handleStart();
 		tptpHandler.handleNode("", "localhost", "127.0.0.1", -480, usec2sec(startDateTime), usec2nsec(startDateTime));
-		tptpHandler.handleProcessCreate(processUuid, 3812, "", usec2sec(startDateTime), usec2nsec(startDateTime));
+		tptpHandler.handleProcessCreate(processUuid, pid, "", usec2sec(startDateTime), usec2nsec(startDateTime));
 		tptpHandler.handleAgentCreate(agentUuid, "2.000", processUuid, "org.eclipse.tptp.jvmti", "Profiler",
 				"server=controlled", usec2sec(startDateTime), usec2nsec(startDateTime));
 		tptpHandler.handleTraceStart(traceUuid, agentUuid, usec2sec(startDateTime), usec2nsec(startDateTime));
 
 		// filters
-		// tptpHandler.handleFilter("java$lang", "EXCLUDE", "PREFIX", "",
-		// "EXCLUDE", "PREFIX");
-		// tptpHandler.handleFilter("dalvik", "EXCLUDE", "PREFIX", "",
-		// "EXCLUDE", "PREFIX");
+		if (methodFilter != null)
+			methodFilter.report(tptpHandler);
 
 		// options
-		tptpHandler.handleOption("FILTERS", "false");
+		tptpHandler.handleOption("FILTERS", methodFilter != null ? "true" : "false");
 		tptpHandler.handleOption("OPTIONS", "true");
 		// tptpHandler.handleOption("STACK_INFORMATION", "normal");
 		tptpHandler.handleOption("TICKET", "true");
 		tptpHandler.handleOption("TIMESTAMPS", "true");
 		tptpHandler.handleOption("TRACE_IDREFS", "false");
-		tptpHandler.handleOption("CPU_TIME", "true");
+		tptpHandler.handleOption("CPU_TIME", cpuTime ? "true" : "false");
 		tptpHandler.handleOption("org.eclipse.tptp.platform.jvmti.client.ATTR_EXEC_DATA", "true");
 		tptpHandler.handleOption("org.eclipse.tptp.platform.jvmti.client.ATTR_EXEC_FLOW", "true");
 		tptpHandler.handleOption("org.eclipse.tptp.platform.jvmti.client.ATTR_EXEC_AUTO_POLLING", "true");
@@ -158,46 +447,81 @@ public class TptpAdapter {
 	 */
 	public void addMethodAction(int threadId, long methodAddress, MethodAction methodAction,
 			long deltaTime) {
-		final long time = startTimeUsec + deltaTime;
-		endTimeUsec = time;
+		addMethodAction(threadId, methodAddress, methodAction.ordinal(), deltaTime, ActionRecord.NO_CPU_TIME);
+	}
 
-		final ThreadItem ti = threads.get(Integer.valueOf(threadId));
-		if (!ti.hasLogged()) {
-			tptpHandler.handleThreadStart(threadId, usec2sec(time), usec2nsec(time), ti.getThreadName(), null, null);
-			ti.setLogged(true);
-		}
+	/**
+	 * 同 addMethodAction(int, long, MethodAction, long)，动作以原始动作码表示
+	 *
+	 * @param methodAction
+	 *            动作码，参见 ActionRecord.ACTION_ENTRY 等常量
+	 */
+	public void addMethodAction(int threadId, long methodAddress, int methodAction, long deltaTime) {
+		addMethodAction(threadId, methodAddress, methodAction, deltaTime, ActionRecord.NO_CPU_TIME);
+	}
 
-		final MethodItem mi = methods.get(Long.valueOf(methodAddress));
-		final ClassItem ci = classesIds.get(Integer.valueOf(mi.getClassId()));
-		if (!ci.hasLogged()) {
-			tptpHandler.handleClassDef(ci.getClassId(), ci.getClassName(), null, usec2sec(time), usec2nsec(time));
-			ci.setLogged(true);
-		}
+	/**
+	 * 同 addMethodAction(int, long, int, long)，并给出线程 CPU 时间
+	 *
+	 * @param cpuTime
+	 *            线程 CPU 时间(in usec)，没有则为 ActionRecord.NO_CPU_TIME
+	 */
+	public void addMethodAction(int threadId, long methodAddress, int methodAction, long deltaTime, long cpuTime) {
+		final long cpuNsec = cpuTime2nsec(cpuTime);
+		final long time = startTimeUsec + deltaTime;
+		endTimeUsec = time;
 
-		if (!mi.hasLogged()) {
-			tptpHandler.handleMethodDef(mi.getMethodId(), mi.getMethodName(), mi.getSignature(), -1, -1, mi
-					.getClassId());
-			mi.setLogged(true);
+		final ThreadItem ti = threads.get(threadId);
+		if (threadIdleTimeout > 0) {
+			ti.setLastEventTime(time);
+			if (time >= nextIdleCheck)
+				endIdleThreads(time);
 		}
+		final MethodItem mi = findMethod(methodAddress);
+		logDefinitions(ti, mi, time);
+		applyMethodAction(eventHandler, ti, mi, isHidden(mi), methodAction, time, cpuNsec);
+	}
 
+	/**
+	 * 一条方法记录: 更新线程的调用栈，并向 handler 输出 methodEntry/methodExit，线程、类、方法的定义须已输出。
+	 * 只修改 ti，不访问适配器的其他状态，不同线程的记录可以并行处理(参见 ParallelTraceConverter)
+	 *
+	 * @param hidden
+	 *            方法是否被过滤
+	 * @param time
+	 *            记录的时间(in usec)
+	 * @param cpuNsec
+	 *            线程 CPU 时间(in nsec)，没有则为 ITptpHandler.NO_CPU_TIME
+	 */
+	static void applyMethodAction(final ITptpHandler handler, final ThreadItem ti, final MethodItem mi,
+			final boolean hidden, final int methodAction, final long time, final long cpuNsec) {
 		switch (methodAction) {
-		case ENTRY:
+		case ActionRecord.ACTION_ENTRY:
 			// logger.info("enter method : " + mi.getMethodName());
-			ti.pushMethodCall(mi);
-			tptpHandler.handleMethodEntry(threadId, ci.getClassId(), mi.getMethodId(), usec2sec(time),
-					usec2nsec(time), ti.getTicketOfCurrentMethod(), ti.getDepthOfCallStack());
+			if (!ti.pushMethodCall(mi, hidden)) {
+				warnDroppedCall(ti);
+				break;
+			}
+			if (hidden)
+				break;
+			handler.handleMethodEntry(ti.getThreadId(), mi.getClassId(), mi.getMethodId(), usec2sec(time),
+					usec2nsec(time), ti.getTicketOfCurrentMethod(), ti.getVisibleDepthOfCallStack(), cpuNsec);
 			break;
 
-		case EXIT:
-		case EXIT_EXCEPTION:
+		case ActionRecord.ACTION_EXIT:
+		case ActionRecord.ACTION_EXIT_EXCEPTION:
 			if (0 == ti.getDepthOfCallStack()) {
 				logger.warning("failed to exit method without calling record : " + mi.getMethodName());
 				break;
 			}
+			if (ti.isInDroppedCall() || ti.isCurrentMethodHidden()) {
+				ti.popMethodCall(mi);
+				break;
+			}
 
 			// logger.info("exit method : " + mi.getMethodName());
-			tptpHandler.handleMethodExit(threadId, ci.getClassId(), mi.getMethodId(), usec2sec(time),
-					usec2nsec(time), ti.getTicketOfCurrentMethod());
+			handler.handleMethodExit(ti.getThreadId(), mi.getClassId(), mi.getMethodId(), usec2sec(time),
+					usec2nsec(time), ti.getTicketOfCurrentMethod(), cpuNsec);
 			ti.popMethodCall(mi);
 			break;
 
@@ -206,7 +530,249 @@ public class TptpAdapter {
 		}
 	}
 
+	/**
+	 * 将方法事件填入 batch，满了则交给处理者
+	 */
+	private final class BatchFiller extends TptpHandlerBase {
+
+		public void handleMethodEntry(final int tid, final int cid, final long mid, final long timeUTCSec,
+				final long timeUTCNsec, final int ticket, final int stackDepth, final long threadCpuTime) {
+			batch.addMethodEntry(tid, cid, mid, toNsec(timeUTCSec, timeUTCNsec), ticket, stackDepth, threadCpuTime);
+			if (batch.isFull())
+				flush();
+		}
+
+		public void handleMethodExit(final int tid, final int cid, final long mid, final long timeUTCSec,
+				final long timeUTCNsec, final int ticket, final long threadCpuTime) {
+			batch.addMethodExit(tid, cid, mid, toNsec(timeUTCSec, timeUTCNsec), ticket, threadCpuTime);
+			if (batch.isFull())
+				flush();
+		}
+	}
+
+	/**
+	 * 将批中尚未交出的方法事件交给处理者。输出其他事件之前须调用，以保持事件的先后顺序
+	 */
+	public void flush() {
+		if (batch == null || batch.isEmpty())
+			return;
+		batchHandler.handleMethodEvents(batch);
+		batch.clear();
+	}
+
+	/**
+	 * 只更新线程的调用栈而不输出，用于时间窗口之前的记录
+	 */
+	void skipMethodAction(final int threadId, final long methodAddress, final int methodAction) {
+		final ThreadItem ti = threads.get(threadId);
+		final MethodItem mi = findMethod(methodAddress);
+		switch (methodAction) {
+		case ActionRecord.ACTION_ENTRY:
+			if (!ti.pushMethodCall(mi, isHidden(mi)))
+				warnDroppedCall(ti);
+			break;
+
+		case ActionRecord.ACTION_EXIT:
+		case ActionRecord.ACTION_EXIT_EXCEPTION:
+			if (0 != ti.getDepthOfCallStack())
+				ti.popMethodCall(mi);
+			break;
+
+		default:
+			throw new IllegalArgumentException("wrong type of method action");
+		}
+	}
+
+	/**
+	 * 为线程中尚未退出的调用补充 methodEntry，调用序号与栈深度不变
+	 *
+	 * @param deltaTime
+	 *            相对 trace 起始时间(in usec)
+	 */
+	void enterOpenCalls(final int threadId, final long deltaTime) {
+		final long time = startTimeUsec + deltaTime;
+		endTimeUsec = time;
+
+		final ThreadItem ti = threads.get(threadId);
+		int visibleDepth = 0;
+		for (int d = 0; d < ti.getDepthOfCallStack(); ++d) {
+			final int ticket = ti.getTicketAt(d);
+			if (ticket == ThreadItem.HIDDEN_TICKET)
+				continue;
+			final MethodItem mi = methodsIds[ti.getMethodIdAt(d)];
+			logDefinitions(ti, mi, time);
+			eventHandler.handleMethodEntry(threadId, mi.getClassId(), mi.getMethodId(), usec2sec(time),
+					usec2nsec(time), ticket, ++visibleDepth, ITptpHandler.NO_CPU_TIME);
+		}
+	}
+
+	/**
+	 * 为线程中尚未退出的调用补充 methodExit，并清空调用栈
+	 *
+	 * @param deltaTime
+	 *            相对 trace 起始时间(in usec)
+	 */
+	void exitOpenCalls(final int threadId, final long deltaTime) {
+		final long time = startTimeUsec + deltaTime;
+		endTimeUsec = time;
+
+		final ThreadItem ti = threads.get(threadId);
+		while (ti.getDepthOfCallStack() > 0) {
+			final MethodItem mi = methodsIds[ti.getMethodIdAt(ti.getDepthOfCallStack() - 1)];
+			if (!ti.isInDroppedCall() && !ti.isCurrentMethodHidden())
+				eventHandler.handleMethodExit(threadId, mi.getClassId(), mi.getMethodId(), usec2sec(time),
+						usec2nsec(time), ti.getTicketOfCurrentMethod(), ITptpHandler.NO_CPU_TIME);
+			ti.popMethodCall(mi);
+		}
+	}
+
+	/**
+	 * 恢复线程的调用栈(例如从索引的检查点)
+	 *
+	 * @param methodAddrs
+	 *            各层调用的方法地址，0 为栈底
+	 */
+	void restoreThread(final int threadId, final long[] methodAddrs, final int[] tickets, final int depth,
+			final int nextTicket, final int droppedCalls) {
+		final ThreadItem ti = threads.get(threadId);
+		if (ti == null)
+			throw new IllegalArgumentException("unknown thread : " + threadId);
+		final int[] methodIds = new int[depth];
+		final int[] restoredTickets = new int[depth];
+		for (int d = 0; d < depth; ++d) {
+			final MethodItem mi = findMethod(methodAddrs[d]);
+			if (mi == null)
+				throw new IllegalArgumentException("unknown method : 0x" + Long.toHexString(methodAddrs[d]));
+			methodIds[d] = mi.getMethodId();
+			restoredTickets[d] = isHidden(mi) ? ThreadItem.HIDDEN_TICKET : tickets[d];
+		}
+		ti.restoreCallStack(methodIds, restoredTickets, depth, nextTicket, droppedCalls);
+	}
+
+	/**
+	 * 结束空闲超时的线程。threadEnd 的时间为当前时间而不是线程最后一条方法记录的时间:
+	 * 其他线程在此之间的记录已经输出，输出的时间须不减
+	 *
+	 * @param time
+	 *            当前时间(in usec)
+	 */
+	private void endIdleThreads(final long time) {
+		nextIdleCheck = time + Math.max(threadIdleTimeout / 2, 1);
+		for (int i = liveThreads.size() - 1; i >= 0; --i) {
+			final ThreadItem ti = liveThreads.get(i);
+			if (ti.getDepthOfCallStack() != 0 || ti.isInDroppedCall()
+					|| time - ti.getLastEventTime() < threadIdleTimeout)
+				continue;
+			endThread(ti, time);
+			ti.releaseCallStack();
+			++idleThreadsEnded;
+			// 与最后一个交换后删除，最后一个已检查过
+			liveThreads.set(i, liveThreads.get(liveThreads.size() - 1));
+			liveThreads.remove(liveThreads.size() - 1);
+		}
+	}
+
+	/**
+	 * 输出 threadEnd，线程再有记录时重新输出 threadStart
+	 *
+	 * @param time
+	 *            结束时间(in usec)
+	 */
+	private void endThread(final ThreadItem ti, final long time) {
+		flush();
+		tptpHandler.handleThreadEnd(ti.getThreadId(), usec2sec(time), usec2nsec(time));
+		loggedThreads.clear(ti.getThreadId());
+	}
+
+	/** 调用栈刚超过最大深度时输出警告 */
+	static void warnDroppedCall(final ThreadItem ti) {
+		if (ti.getDroppedCalls() == 1)
+			logger.warning("calling stack of thread " + ti.getThreadId()
+					+ " exceeds max depth, deeper calls are dropped");
+	}
+
+	/** 方法是否被过滤 */
+	private boolean isHidden(final MethodItem mi) {
+		return hiddenMethods != null && hiddenMethods[mi.getMethodId()];
+	}
+
+	/**
+	 * 线程、类、方法第一次出现时，输出其定义，被过滤的方法不输出
+	 *
+	 * @param time
+	 *            当前时间(in usec)
+	 */
+	void logDefinitions(final ThreadItem ti, final MethodItem mi, final long time) {
+		if (isHidden(mi))
+			return;
+
+		if (!loggedThreads.get(ti.getThreadId())) {
+			flush();
+			tptpHandler.handleThreadStart(ti.getThreadId(), usec2sec(time), usec2nsec(time), ti.getThreadName(),
+					null, null);
+			loggedThreads.set(ti.getThreadId());
+			if (threadIdleTimeout > 0) {
+				ti.setLastEventTime(time);
+				liveThreads.add(ti);
+			}
+		}
+
+		final ClassItem ci = classesIds[mi.getClassId()];
+		if (!loggedClasses.get(ci.getClassId())) {
+			flush();
+			tptpHandler.handleClassDef(ci.getClassId(), ci.getClassName(), null, usec2sec(time), usec2nsec(time));
+			loggedClasses.set(ci.getClassId());
+		}
+
+		if (!loggedMethods.get(mi.getMethodId())) {
+			flush();
+			tptpHandler.handleMethodDef(mi.getMethodId(), mi.getMethodName(), mi.getSignature(), -1, -1, mi
+					.getClassId());
+			loggedMethods.set(mi.getMethodId());
+		}
+	}
+
+	ThreadItem findThread(final int tid) {
+		return threads.get(tid);
+	}
+
+	MethodItem findMethodById(final int mid) {
+		return methodsIds[mid];
+	}
+
+	ClassItem findClass(final int cid) {
+		return classesIds[cid];
+	}
+
+	/** 类的个数，编号为 1 到此值 */
+	int getClassCount() {
+		return nextClassId - 1;
+	}
+
+	/** 方法的个数，编号为 1 到此值 */
+	int getMethodCount() {
+		return nextMethodId - 1;
+	}
+
+	long getStartTimeUsec() {
+		return startTimeUsec;
+	}
+
+	/** 记录最后一条方法记录的时间(in usec)，用于输出结束时间 */
+	void setEndTimeUsec(final long time) {
+		endTimeUsec = time;
+	}
+
 	public void end() {
+		flush();
+		if (lazySymbols != null)
+			logger.info("resolved " + methods.size() + " of " + lazySymbols.size() + " methods");
+		if (threadIdleTimeout > 0) {
+			for (int i = 0; i < liveThreads.size(); ++i)
+				endThread(liveThreads.get(i), endTimeUsec);
+			logger.info("ended " + idleThreadsEnded + " idle threads, " + liveThreads.size() + " at end of trace");
+			liveThreads.clear();
+		}
 		tptpHandler.handleTraceEnd(usec2sec(endTimeUsec), usec2nsec(endTimeUsec));
 		tptpHandler.handleAgentDestroy(agentUuid, usec2sec(endTimeUsec), usec2nsec(endTimeUsec));
 		tptpHandler.handleEnd();
@@ -0,0 +1,75 @@
+package parser;
+
+/**
+ * 忽略所有记录的 ITptpHandler，只处理部分记录的处理者由此派生，覆盖需要的方法即可
+ */
+public class TptpHandlerBase implements ITptpHandler {
+
+	/** 记录中的时间(秒、纳秒)合为纳秒 */
+	protected static long toNsec(final long timeUTCSec, final long timeUTCNsec) {
+		return timeUTCSec * 1000000000L + timeUTCNsec;
+	}
+
+	public void handleStart() {
+	}
+
+	public void handleEnd() {
+	}
+
+	public void handleNode(final String id, final String host, final String ip, final int timezone,
+			final long timeUTCSec, final long timeUTCNsec) {
+	}
+
+	public void handleProcessCreate(final String uuid, final int pid, final String nodeId, final long timeUTCSec,
+			final long timeUTCNsec) {
+	}
+
+	public void handleAgentCreate(final String uuid, final String version, final String puuid, final String name,
+			final String type, final String parameters, final long timeUTCSec, final long timeUTCNsec) {
+	}
+
+	public void handleAgentDestroy(final String uuid, final long timeUTCSec, final long timeUTCNsec) {
+	}
+
+	public void handleTraceStart(final String uuid, final String auuid, final long timeUTCSec, final long timeUTCNsec) {
+	}
+
+	public void handleRuntimeInitDone(final int tid, final long timeUTCSec, final long timeUTCNsec) {
+	}
+
+	public void handleRuntimeShutdown(final long timeUTCSec, final long timeUTCNSec) {
+	}
+
+	public void handleFilter(final String pattern, final String mode, final String genericPattern,
+			final String methodPattern, final String methodMode, final String methodGenericPattern) {
+	}
+
+	public void handleOption(final String key, final String value) {
+	}
+
+	public void handleThreadStart(final int tid, final long timeUTCSec, final long timeUTCNsec, final String name,
+			final String group, final String parent) {
+	}
+
+	public void handleTraceEnd(final long timeUTCSec, final long timeUTCNsec) {
+	}
+
+	public void handleThreadEnd(final int tid, final long timeUTCSec, final long timeUTCNsec) {
+	}
+
+	public void handleClassDef(final int cid, final String name, final String sourceFile, final long timeUTCSec,
+			final long timeUTCNsec) {
+	}
+
+	public void handleMethodDef(final long mid, final String name, final String signature, final int startLine,
+			final int endLine, final int classId) {
+	}
+
+	public void handleMethodEntry(final int tid, final int cid, final long mid, final long timeUTCSec,
+			final long timeUTCNsec, final int ticket, final int stackDepth, final long threadCpuTime) {
+	}
+
+	public void handleMethodExit(final int tid, final int cid, final long mid, final long timeUTCSec,
+			final long timeUTCNsec, final int ticket, final long threadCpuTime) {
+	}
+}
@@ -1,14 +1,48 @@
 package parser;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * 将 TPTP Trace 记录写入文件
  */
-public class TptpXmlFileWriter extends FilterWriter implements ITptpHandler {
+public class TptpXmlFileWriter extends FilterWriter implements IBatchTptpHandler {
 
-	public TptpXmlFileWriter(final FileWriter fw) {
-		super(fw);
+	/** 成批写出时 line 中积累的字符数超过此值即写出，使其保持在缓存中 */
+	private static final int BATCH_CHUNK_CHARS = 8192;
+
+	/** 当前正在拼接的记录，所有记录共用，避免产生临时字符串 */
+	private final XmlRecordBuilder line = new XmlRecordBuilder();
+
+	/**
+	 * @param w
+	 *            输出目标，字符编码由 w 决定，应与头部声明的 utf-8 一致
+	 */
+	public TptpXmlFileWriter(final Writer w) {
+		super(w);
+	}
+
+	/** 以 UTF-8 编码输出到 os，使用默认大小的缓冲区 */
+	public TptpXmlFileWriter(final OutputStream os) {
+		this(new Utf8ChannelWriter(os));
+	}
+
+	/**
+	 * 以 UTF-8 编码输出到 ch
+	 *
+	 * @param bufferSize
+	 *            输出缓冲区大小(字节)
+	 */
+	public TptpXmlFileWriter(final WritableByteChannel ch, final int bufferSize) {
+		this(new Utf8ChannelWriter(ch, bufferSize));
+	}
+
+	/**
+	 * 以 UTF-8 编码输出到 ch，使用调用者提供的缓冲区，参见 Utf8ChannelWriter(WritableByteChannel, ByteBuffer)
+	 */
+	public TptpXmlFileWriter(final WritableByteChannel ch, final ByteBuffer buffer) {
+		this(new Utf8ChannelWriter(ch, buffer));
 	}
 
 	void writeLine(final String line) {
@@ -19,6 +53,16 @@ public class TptpXmlFileWriter extends FilterWriter implements ITptpHandler {
 		}
 	}
 
+	/** 输出 line 中的记录，并以换行结束 */
+	private void writeRecord() {
+		line.append('\n');
+		try {
+			line.writeTo(super.out);
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public void handleStart() {
 		writeLine("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
 		writeLine("<TRACE>");
@@ -30,101 +74,88 @@ public class TptpXmlFileWriter extends FilterWriter implements ITptpHandler {
 
 	public void handleNode(final String id, final String host, final String ip, final int timezone,
 			final long timeUTCSec, final long timeUTCNsec) {
-		final String s = String.format(
-				"<node nodeId=\"%s\" hostname=\"%s\" ipaddress=\"%s\" timezone=\"%d\" time=\"%d.%09d\"/>", id, host,
-				ip, timezone, timeUTCSec, timeUTCNsec);
-		writeLine(s);
+		line.reset().append("<node nodeId=\"").append(id).append("\" hostname=\"").append(host).append(
+				"\" ipaddress=\"").append(ip).append("\" timezone=\"").append(timezone).append("\" time=\"")
+				.appendTime(timeUTCSec, timeUTCNsec).append("\"/>");
+		writeRecord();
 	}
 
 	public void handleProcessCreate(final String uuid, final int pid, final String nodeId, final long timeUTCSec,
 			final long timeUTCNsec) {
-		final String s = String.format(
-				"<processCreate processId=\"%s\" pid=\"%d\" nodeIdRef=\"%s\" time=\"%d.%09d\"/>", uuid, pid, nodeId,
-				timeUTCSec, timeUTCNsec);
-		writeLine(s);
+		line.reset().append("<processCreate processId=\"").append(uuid).append("\" pid=\"").append(pid).append(
+				"\" nodeIdRef=\"").append(nodeId).append("\" time=\"").appendTime(timeUTCSec, timeUTCNsec).append(
+				"\"/>");
+		writeRecord();
 	}
 
 	public void handleAgentCreate(final String uuid, final String version, final String puuid, final String name,
 			final String type, final String parameters, final long timeUTCSec, final long timeUTCNsec) {
-		final String s = String
-				.format(
-						"<agentCreate agentId=\"%s\" version=\"%s\" processIdRef=\"%s\" agentName=\"%s\" agentType=\"%s\" agentParameters=\"%s\" time=\"%d.%09d\"/>",
-						uuid, version, puuid, name, type, parameters, timeUTCSec, timeUTCNsec);
-		writeLine(s);
+		line.reset().append("<agentCreate agentId=\"").append(uuid).append("\" version=\"").append(version).append(
+				"\" processIdRef=\"").append(puuid).append("\" agentName=\"").append(name).append("\" agentType=\"")
+				.append(type).append("\" agentParameters=\"").append(parameters).append("\" time=\"").appendTime(
+						timeUTCSec, timeUTCNsec).append("\"/>");
+		writeRecord();
 	}
 
 	public void handleAgentDestroy(final String uuid, final long timeUTCSec, final long timeUTCNsec) {
-		final String s = String.format("<agentDestroy agentIdRef=\"%s\" time=\"%d.%09d\"/>", uuid, timeUTCSec,
-				timeUTCNsec);
-		writeLine(s);
+		line.reset().append("<agentDestroy agentIdRef=\"").append(uuid).append("\" time=\"").appendTime(timeUTCSec,
+				timeUTCNsec).append("\"/>");
+		writeRecord();
 	}
 
 	public void handleTraceStart(final String uuid, final String auuid, final long timeUTCSec, final long timeUTCNsec) {
-		final String s = String.format("<traceStart traceId=\"%s\" agentIdRef=\"%s\" time=\"%d.%09d\"/>", uuid, auuid,
-				timeUTCSec, timeUTCNsec);
-		writeLine(s);
+		line.reset().append("<traceStart traceId=\"").append(uuid).append("\" agentIdRef=\"").append(auuid).append(
+				"\" time=\"").appendTime(timeUTCSec, timeUTCNsec).append("\"/>");
+		writeRecord();
 	}
 
 	public void handleTraceEnd(final long timeUTCSec, final long timeUTCNsec) {
-		final String s = String.format("<traceEnd time=\"%d.%09d\"/>", timeUTCSec, timeUTCNsec);
-		writeLine(s);
+		line.reset().append("<traceEnd time=\"").appendTime(timeUTCSec, timeUTCNsec).append("\"/>");
+		writeRecord();
 	}
 
 	public void handleFilter(final String pattern, final String mode, final String genericPattern,
 			final String methodPattern, final String methodMode, final String methodGenericPattern) {
-		final String s = String
-				.format(
-						"<filter pattern=\"%s\" mode=\"%s\" genericPattern=\"%s\" methodPattern=\"%s\" methodMode=\"%s\" methodGenericPattern=\"%s\"/>",
-						pattern, mode, genericPattern, methodPattern, methodMode, methodGenericPattern);
-		writeLine(s);
+		line.reset().append("<filter pattern=\"").append(pattern).append("\" mode=\"").append(mode).append(
+				"\" genericPattern=\"").append(genericPattern).append("\" methodPattern=\"").append(methodPattern)
+				.append("\" methodMode=\"").append(methodMode).append("\" methodGenericPattern=\"").append(
+						methodGenericPattern).append("\"/>");
+		writeRecord();
 	}
 
 	public void handleOption(final String key, final String value) {
-		final String s = String.format("<option key=\"%s\" value=\"%s\"/>", key, value);
-		writeLine(s);
+		line.reset().append("<option key=\"").append(key).append("\" value=\"").append(value).append("\"/>");
+		writeRecord();
 	}
 
 	public void handleRuntimeInitDone(final int tid, final long timeUTCSec, final long timeUTCNsec) {
-		final String s = String.format("<runtimeInitDone threadIdRef=\"%d\" time=\"%d.%09d\"/>", tid, timeUTCSec,
-				timeUTCNsec);
-		writeLine(s);
+		line.reset().append("<runtimeInitDone threadIdRef=\"").append(tid).append("\" time=\"").appendTime(
+				timeUTCSec, timeUTCNsec).append("\"/>");
+		writeRecord();
 	}
 
 	public void handleRuntimeShutdown(final long timeUTCSec, final long timeUTCNSec) {
-		final String s = String.format("<runtimeShutdown time=\"%d.%09d\"/>", timeUTCSec, timeUTCNSec);
+		line.reset().append("<runtimeShutdown time=\"").appendTime(timeUTCSec, timeUTCNSec).append("\"/>");
 		try {
-			super.out.write(s);
+			line.writeTo(super.out);
 		} catch (final IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
-	static String formatNum(final long num) {
-		return String.format("%d", num);
-	}
-
-	static String formatTime(final long timeUTCSec, final long timeUTCNsec) {
-		return String.format("%d.%09d", timeUTCSec, timeUTCNsec);
-	}
-
 	public void handleThreadStart(final int tid, final long timeUTCSec, final long timeUTCNsec, final String name,
 			final String group, final String parent) {
 		if (tid < 0 || timeUTCSec < 0 || timeUTCNsec < 0 || name == null)
 			throw new IllegalArgumentException();
 
-		final StringBuilder sb = new StringBuilder();
-		sb.append("<threadStart threadId=\"").append(formatNum(tid)).append("\" time=\"").append(
-				formatTime(timeUTCSec, timeUTCNsec)).append("\" threadName=\"").append(name).append("\"");
+		line.reset().append("<threadStart threadId=\"").append(tid).append("\" time=\"").appendTime(timeUTCSec,
+				timeUTCNsec).append("\" threadName=\"").append(name).append('"');
 		if (group != null)
-			sb.append(" groupName=\"").append(group).append("\"");
+			line.append(" groupName=\"").append(group).append('"');
 		if (parent != null)
-			sb.append(" parentName=\"").append(parent).append("\"");
-		sb.append("/>\n");
-		try {
-			super.out.write(sb.toString());
-		} catch (final IOException e) {
-			throw new RuntimeException(e);
-		}
+			line.append(" parentName=\"").append(parent).append('"');
+		line.append("/>");
+		writeRecord();
 	}
 
 	public void handleClassDef(final int cid, final String name, final String sourceFile, final long timeUTCSec,
@@ -132,17 +163,12 @@ public class TptpXmlFileWriter extends FilterWriter implements ITptpHandler {
 		if (cid < 0 || name == null || timeUTCSec < 0 || timeUTCNsec < 0)
 			throw new IllegalArgumentException();
 
-		final StringBuilder sb = new StringBuilder();
-		sb.append("<classDef name=\"").append(name).append("\"");
+		line.reset().append("<classDef name=\"").append(name).append('"');
 		if (sourceFile != null)
-			sb.append(" sourceName=\"").append(sourceFile).append("\"");
-		sb.append(" classId=\"").append(formatNum(cid)).append("\" time=\"")
-				.append(formatTime(timeUTCSec, timeUTCNsec)).append("\"/>\n");
-		try {
-			super.out.write(sb.toString());
-		} catch (final IOException e) {
-			throw new RuntimeException(e);
-		}
+			line.append(" sourceName=\"").append(sourceFile).append('"');
+		line.append(" classId=\"").append(cid).append("\" time=\"").appendTime(timeUTCSec, timeUTCNsec).append(
+				"\"/>");
+		writeRecord();
 	}
 
 	public void handleMethodDef(final long mid, final String name, final String signature, final int startLine,
@@ -150,66 +176,96 @@ public class TptpXmlFileWriter extends FilterWriter implements ITptpHandler {
 		if (mid < 0 || name == null || signature == null || classId < 0)
 			throw new IllegalArgumentException();
 
-		final StringBuilder sb = new StringBuilder();
-		sb.append("<methodDef name=\"").append(name).append("\" signature=\"").append(signature).append("\"");
+		line.reset().append("<methodDef name=\"").append(name).append("\" signature=\"").append(signature).append('"');
 		if (startLine >= 0)
-			sb.append(" startLineNumber=\"").append(formatNum(startLine)).append("\"");
+			line.append(" startLineNumber=\"").append(startLine).append('"');
 		if (endLine >= 0)
-			sb.append(" endLineNumber=\"").append(formatNum(endLine)).append("\"");
-		sb.append(" methodId=\"").append(formatNum(mid)).append("\" classIdRef=\"").append(formatNum(classId)).append(
-				"\"/>\n");
+			line.append(" endLineNumber=\"").append(endLine).append('"');
+		line.append(" methodId=\"").append(mid).append("\" classIdRef=\"").append(classId).append("\"/>");
+		writeRecord();
+	}
+
+	public void handleMethodEntry(final int tid, final int cid, final long mid, final long timeUTCSec,
+			final long timeUTCNsec, final int ticket, final int stackDepth, final long threadCpuTime) {
+		formatMethodEntry(line.reset(), tid, cid, mid, timeUTCSec, timeUTCNsec, ticket, stackDepth, threadCpuTime);
+		writeRecord();
+	}
+
+	public void handleMethodExit(final int tid, final int cid, final long mid, final long timeUTCSec,
+			final long timeUTCNsec, final int ticket, final long threadCpuTime) {
+		formatMethodExit(line.reset(), tid, cid, mid, timeUTCSec, timeUTCNsec, ticket, threadCpuTime);
+		writeRecord();
+	}
+
+	/** 多条记录格式化到 line 中，分块写出 */
+	public void handleMethodEvents(final MethodEventBatch batch) {
+		final XmlRecordBuilder b = line.reset();
 		try {
-			super.out.write(sb.toString());
+			for (int i = 0; i < batch.size(); ++i) {
+				final long t = batch.time[i];
+				if (batch.kind[i] == MethodEventBatch.METHOD_ENTRY)
+					formatMethodEntry(b, batch.tid[i], batch.cid[i], batch.mid[i], t / 1000000000L, t % 1000000000L,
+							batch.ticket[i], batch.stackDepth[i], batch.threadCpuTime[i]);
+				else
+					formatMethodExit(b, batch.tid[i], batch.cid[i], batch.mid[i], t / 1000000000L, t % 1000000000L,
+							batch.ticket[i], batch.threadCpuTime[i]);
+				b.append('\n');
+				if (b.length() >= BATCH_CHUNK_CHARS) {
+					b.writeTo(super.out);
+					b.reset();
+				}
+			}
+			b.writeTo(super.out);
 		} catch (final IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
-	public void handleMethodEntry(final int tid, final int cid, final long mid, final long timeUTCSec,
-			final long timeUTCNsec, final int ticket, final int stackDepth) {
+	/** 将 methodEntry 记录(不含换行)追加到 b */
+	static void formatMethodEntry(final XmlRecordBuilder b, final int tid, final int cid, final long mid,
+			final long timeUTCSec, final long timeUTCNsec, final int ticket, final int stackDepth,
+			final long threadCpuTime) {
 		if (tid < 0 || cid < 0 || mid < 0 || timeUTCSec < 0 || timeUTCNsec < 0)
 			throw new IllegalArgumentException();
 
-		final StringBuilder sb = new StringBuilder();
-		sb.append("<methodEntry threadIdRef=\"").append(formatNum(tid)).append("\" time=\"").append(
-				formatTime(timeUTCSec, timeUTCNsec)).append("\" methodIdRef=\"").append(formatNum(mid)).append(
-				"\" classIdRef=\"").append(formatNum(cid)).append("\"");
+		b.append("<methodEntry threadIdRef=\"").append(tid).append("\" time=\"").appendTime(timeUTCSec,
+				timeUTCNsec).append("\" methodIdRef=\"").append(mid).append("\" classIdRef=\"").append(cid).append('"');
 		if (ticket >= 0)
-			sb.append(" ticket=\"").append(formatNum(ticket)).append("\"");
+			b.append(" ticket=\"").append(ticket).append('"');
 		if (stackDepth >= 0)
-			sb.append(" stackDepth=\"").append(formatNum(stackDepth)).append("\"");
-		sb.append("/>\n");
-		try {
-			super.out.write(sb.toString());
-		} catch (final IOException e) {
-			throw new RuntimeException(e);
-		}
+			b.append(" stackDepth=\"").append(stackDepth).append('"');
+		appendThreadCpuTime(b, threadCpuTime);
+		b.append("/>");
 	}
 
-	public void handleMethodExit(final int tid, final int cid, final long mid, final long timeUTCSec,
-			final long timeUTCNsec, final int ticket) {
+	/** 将 methodExit 记录(不含换行)追加到 b */
+	static void formatMethodExit(final XmlRecordBuilder b, final int tid, final int cid, final long mid,
+			final long timeUTCSec, final long timeUTCNsec, final int ticket, final long threadCpuTime) {
 		if (tid < 0 || cid < 0 || mid < 0 || timeUTCSec < 0 || timeUTCNsec < 0)
 			throw new IllegalArgumentException();
 
-		final StringBuilder sb = new StringBuilder();
-		sb.append("<methodExit threadIdRef=\"").append(formatNum(tid)).append("\" methodIdRef=\"").append(
-				formatNum(mid)).append("\" classIdRef=\"").append(formatNum(cid)).append("\"");
+		b.append("<methodExit threadIdRef=\"").append(tid).append("\" methodIdRef=\"").append(mid).append(
+				"\" classIdRef=\"").append(cid).append('"');
 		if (ticket >= 0)
-			sb.append(" ticket=\"").append(formatNum(ticket)).append("\"");
-		sb.append(" time=\"").append(formatTime(timeUTCSec, timeUTCNsec)).append("\"/>\n");
-		try {
-			super.out.write(sb.toString());
-		} catch (final IOException e) {
-			throw new RuntimeException(e);
-		}
+			b.append(" ticket=\"").append(ticket).append('"');
+		b.append(" time=\"").appendTime(timeUTCSec, timeUTCNsec).append('"');
+		appendThreadCpuTime(b, threadCpuTime);
+		b.append("/>");
+	}
+
+	/** 线程 CPU 时间(ns)，没有则不输出 */
+	private static void appendThreadCpuTime(final XmlRecordBuilder b, final long threadCpuTime) {
+		if (threadCpuTime >= 0)
+			b.append(" threadCpuTime=\"").appendTime(threadCpuTime / 1000000000L, threadCpuTime % 1000000000L)
+					.append('"');
 	}
 
 	public void handleThreadEnd(final int tid, final long timeUTCSec, final long timeUTCNsec) {
 		if (tid < 0 || timeUTCSec < 0 || timeUTCNsec < 0)
 			throw new IllegalArgumentException();
 
-		final String s = String
-				.format("<threadEnd threadIdRef=\"%d\" time=\"%d.%09d\"/>", tid, timeUTCSec, timeUTCNsec);
-		writeLine(s);
+		line.reset().append("<threadEnd threadIdRef=\"").append(tid).append("\" time=\"").appendTime(timeUTCSec,
+				timeUTCNsec).append("\"/>");
+		writeRecord();
 	}
 }
@@ -1,9 +1,13 @@
 package parser;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 /**
@@ -11,9 +15,41 @@ import java.util.logging.Logger;
  */
 public class TraceFileScaner {
 
+	/**
+	 * 二进制部分的读取方式
+	 */
+	public static enum ReadMode {
+		/**
+		 * 通过文件流逐条读取记录
+		 */
+		STREAM,
+
+		/**
+		 * 将二进制部分映射到内存，直接在映射区中解析记录
+		 */
+		MAPPED,
+	}
+
+	/** 每次映射的最大窗口 */
+	private static final int MAPPING_WINDOW = 256 * 1024 * 1024;
+
+	/** 顺序读取的缓冲区大小，须大于二进制头部的最大长度(64K) */
+	public static final int READ_BUFFER_SIZE = 256 * 1024;
+
+	/** 二进制头部魔术数字 0x574f4c53 ('SLOW') */
+	private static final int BINARY_MAGIC = 0x574f4c53;
+
 	private final File traceFile;
 	private final TraceRecordParser parser;
 
+	private ReadMode readMode = ReadMode.STREAM;
+
+	/** 调用者提供的顺序读取缓冲区，null 则每次读取时分配 */
+	private ByteBuffer readBuffer = null;
+
+	/** 方法记录长度，processHeader() 之后有效 */
+	private int recordSize = 0;
+
 	/**
 	 * @param f
 	 *            Android Trace 文件
@@ -25,76 +61,301 @@ public class TraceFileScaner {
 		parser = p;
 	}
 
+	public ReadMode getReadMode() {
+		return readMode;
+	}
+
+	public void setReadMode(final ReadMode mode) {
+		if (mode == null)
+			throw new IllegalArgumentException();
+		readMode = mode;
+	}
+
+	/**
+	 * 使用调用者提供的顺序读取缓冲区，可在多个文件之间重复使用(例如批量转换中的缓冲区池)
+	 *
+	 * @param b
+	 *            至少 READ_BUFFER_SIZE 字节，原有内容被丢弃；null 则每次读取时分配
+	 */
+	public void setReadBuffer(final ByteBuffer b) {
+		if (b != null && b.capacity() < READ_BUFFER_SIZE)
+			throw new IllegalArgumentException();
+		readBuffer = b;
+	}
+
+	/** 方法记录长度，processHeader() 之后有效 */
+	public int getRecordSize() {
+		return recordSize;
+	}
+
+	/**
+	 * 在同一个文件通道上顺序读取的缓冲输入
+	 */
+	static final class ChannelInput {
+		final FileChannel channel;
+		/** 小端字节序，position 之后是未读取的数据 */
+		final ByteBuffer buffer;
+		/** buffer 末尾对应的文件位置 */
+		long filePos;
+
+		ChannelInput(final FileChannel fc) throws IOException {
+			this(fc, null);
+		}
+
+		/**
+		 * @param b
+		 *            读取缓冲区，null 则分配
+		 */
+		ChannelInput(final FileChannel fc, final ByteBuffer b) throws IOException {
+			channel = fc;
+			filePos = fc.position();
+			buffer = (b != null ? b : ByteBuffer.allocate(READ_BUFFER_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.clear();
+			buffer.flip();
+		}
+
+		/** 下一个未读取字节在文件中的位置 */
+		long position() {
+			return filePos - buffer.remaining();
+		}
+
+		/**
+		 * 保证缓冲区中至少有 n 字节未读取的数据
+		 *
+		 * @return false, 文件剩余数据不足 n 字节
+		 */
+		boolean fill(final int n) throws IOException {
+			if (buffer.remaining() >= n)
+				return true;
+			buffer.compact();
+			try {
+				while (buffer.position() < n) {
+					final int rs = channel.read(buffer, filePos);
+					if (rs < 0)
+						return false;
+					filePos += rs;
+				}
+			} finally {
+				buffer.flip();
+			}
+			return true;
+		}
+	}
+
 	/** 将文件流拆解为记录流 */
 	public void process() throws IOException {
-		int bytesToRead = 0;
-
-		// 分析文本部分
-		final FileReader fr = new FileReader(traceFile);
+		final RandomAccessFile raf = new RandomAccessFile(traceFile, "r");
 		try {
-			while (bytesToRead == 0) {
-				final StringBuilder line = new StringBuilder();
-				int c = fr.read();
-				while (c != '\n') {
-					if (c == -1)
-						throw new IllegalArgumentException("unexpected EOF");
-					line.append((char) c);
-					c = fr.read();
-				}
-				bytesToRead = parser.inputLine(line.toString());
+			final ChannelInput in = new ChannelInput(raf.getChannel(), readBuffer);
+
+			// 分析文本部分，之后紧接着二进制头部
+			final int bytesToRead = processText(in);
+			if (bytesToRead != 16)
+				throw new IllegalStateException("unexpected length");
+			checkBinaryHeader(in);
+
+			switch (readMode) {
+			case MAPPED:
+				processMappedRecords(in.channel, in.position(), bytesToRead);
+				break;
+
+			default:
+				processStreamRecords(in, bytesToRead);
+				break;
 			}
 		} finally {
-			fr.close();
+			raf.close();
 		}
 
-		// 查找二进制头部
-		if (bytesToRead != 16)
-			throw new IllegalStateException("unexpected length");
-		final FileInputStream fis = new FileInputStream(traceFile);
+		parser.end();
+		Logger.getLogger(this.getClass().getCanonicalName()).info(String.format("processing done."));
+	}
+
+	/**
+	 * 借助索引，从时间窗口开始之前最近的检查点开始读取方法记录，不必解码之前的记录。
+	 * 时间窗口由解析器的 TraceFilter 指定，未设置则从头读取
+	 */
+	public void process(final TraceIndex index) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(traceFile, "r");
 		try {
-			int magic = 0; // 首部魔术数字 0x574f4c53 ('SLOW')
-			while (magic != 0x574f4c53) {
-				magic >>>= 8;
-				magic &= 0x00FFFFFF;
-				final int b = fis.read();
-				if (b == -1)
-					throw new IllegalArgumentException("unexpected EOF");
-				magic |= (b << 24);
-			}
-			byte[] record = new byte[bytesToRead];
-			record[0] = (byte) (magic & 0xFF);
-			record[1] = (byte) ((magic >> 8) & 0xFF);
-			record[2] = (byte) ((magic >> 16) & 0xFF);
-			record[3] = (byte) ((magic >> 24) & 0xFF);
-			int rs = fis.read(record, 4, bytesToRead - 4);
-			if (rs != bytesToRead - 4)
-				throw new IllegalArgumentException("unexpected EOF");
-			bytesToRead = parser.inputRecord(record);
-
-			// 获取二进制记录
-			final long totalLength = fis.available();
-			long currentReaded = 0;
-			int lastPercent = 0;
-			while (bytesToRead > 0) {
-				record = new byte[bytesToRead];
-				currentReaded += bytesToRead;
-				rs = fis.read(record);
-				if (rs != record.length)
-					break;
-				bytesToRead = parser.inputRecord(record);
+			final FileChannel fc = raf.getChannel();
+			final long dataStart = processHeader(fc);
+			index.check(dataStart, recordSize);
 
-				// log
-				if (currentReaded * 100 / totalLength - lastPercent >= 1) {
-					lastPercent = (int) (currentReaded * 100 / totalLength);
+			long pos = dataStart;
+			final TraceFilter filter = parser.getFilter();
+			if (filter != null) {
+				final int checkpoint = index.findCheckpoint(filter.getWindowStart());
+				if (checkpoint >= 0) {
+					pos = index.getOffset(checkpoint);
+					parser.restore(index, checkpoint);
 					Logger.getLogger(this.getClass().getCanonicalName()).info(
-							String.format("processed %d%%", lastPercent));
+							String.format("start from checkpoint %d at offset %d", checkpoint, pos));
 				}
 			}
+
+			switch (readMode) {
+			case MAPPED:
+				processMappedRecords(fc, pos, recordSize);
+				break;
+
+			default:
+				fc.position(pos);
+				processStreamRecords(new ChannelInput(fc, readBuffer), recordSize);
+				break;
+			}
 		} finally {
-			fis.close();
+			raf.close();
 		}
 
 		parser.end();
 		Logger.getLogger(this.getClass().getCanonicalName()).info(String.format("processing done."));
 	}
+
+	/**
+	 * 分析文本部分，直接从字节中按行解码，读取到 "*end" 行为止。延迟解析方法定义时，将文本部分映射到内存交给解析器
+	 *
+	 * @return 二进制头部长度
+	 */
+	private int processText(final ChannelInput in) throws IOException {
+		final ByteBuffer buf = in.buffer;
+		byte[] line = new byte[256];
+		int bytesToRead = 0;
+		while (bytesToRead == 0) {
+			final long lineStart = in.position();
+			int len = 0;
+			while (true) {
+				if (!buf.hasRemaining() && !in.fill(1))
+					throw new IllegalArgumentException("unexpected EOF");
+				final byte b = buf.get();
+				if (b == '\n')
+					break;
+				if (len == line.length)
+					line = Arrays.copyOf(line, len * 2);
+				line[len++] = b;
+			}
+			bytesToRead = parser.inputLine(line, len, lineStart);
+		}
+		if (parser.isLazySymbols())
+			parser.setSymbolText(in.channel.map(FileChannel.MapMode.READ_ONLY, 0, in.position()));
+		return bytesToRead;
+	}
+
+	/**
+	 * 二进制头部紧跟在文本部分之后
+	 */
+	private static void checkBinaryHeader(final ChannelInput in) throws IOException {
+		if (!in.fill(4))
+			throw new IllegalArgumentException("unexpected EOF");
+		if (in.buffer.getInt(in.buffer.position()) != BINARY_MAGIC)
+			throw new IllegalArgumentException("binary header not found at offset " + in.position());
+	}
+
+	/**
+	 * 从文本部分之后继续顺序读取二进制部分，记录在读取缓冲区中原地解析
+	 */
+	private void processStreamRecords(final ChannelInput in, int bytesToRead) throws IOException {
+		final ByteBuffer buf = in.buffer;
+		final long dataStart = in.position();
+		final long totalLength = in.channel.size() - dataStart;
+		long currentReaded = 0;
+		int lastPercent = 0;
+		while (bytesToRead > 0) {
+			if (!in.fill(bytesToRead))
+				break;
+			final int off = buf.position();
+			final int len = bytesToRead;
+			bytesToRead = parser.inputRecord(buf, off);
+			buf.position(off + len);
+			currentReaded += len;
+
+			// log
+			if (currentReaded * 100 / totalLength - lastPercent >= 1) {
+				lastPercent = (int) (currentReaded * 100 / totalLength);
+				Logger.getLogger(this.getClass().getCanonicalName()).info(
+						String.format("processed %d%%", lastPercent));
+			}
+		}
+	}
+
+	/**
+	 * 只分析文件头部(文本部分和二进制头部)，之后的方法记录由调用者自行读取并交给解析器
+	 *
+	 * @return 第一条方法记录在文件中的偏移位置
+	 */
+	public long processHeader() throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(traceFile, "r");
+		try {
+			return processHeader(raf.getChannel());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * 同 processHeader()，从调用者打开的文件通道的当前位置开始读取，通道的位置不会改变
+	 */
+	public long processHeader(final FileChannel fc) throws IOException {
+		final ChannelInput in = new ChannelInput(fc, readBuffer);
+		int bytesToRead = processText(in);
+		if (bytesToRead != 16)
+			throw new IllegalStateException("unexpected length");
+		checkBinaryHeader(in);
+
+		final ByteBuffer buf = in.buffer;
+		while (!parser.isParsingRecords()) {
+			if (!in.fill(bytesToRead))
+				throw new IllegalArgumentException("unexpected EOF");
+			final int off = buf.position();
+			final int len = bytesToRead;
+			bytesToRead = parser.inputRecord(buf, off);
+			buf.position(off + len);
+		}
+		recordSize = bytesToRead;
+		return in.position();
+	}
+
+	/**
+	 * 以内存映射方式读取二进制部分，记录在映射区中原地解析。文件按窗口分段映射，以支持超过 2G 的文件
+	 *
+	 * @param dataStart
+	 *            二进制头部在文件中的位置
+	 */
+	private void processMappedRecords(final FileChannel fc, final long dataStart, int bytesToRead)
+			throws IOException {
+		final long fileLength = fc.size();
+		long pos = dataStart;
+		long windowStart = pos;
+		MappedByteBuffer window = map(fc, windowStart, fileLength);
+
+		// 获取二进制记录
+		final long totalLength = fileLength - dataStart;
+		int lastPercent = 0;
+		while (bytesToRead > 0) {
+			if (pos + bytesToRead > fileLength)
+				break;
+			if (pos + bytesToRead > windowStart + window.limit()) {
+				windowStart = pos;
+				window = map(fc, windowStart, fileLength);
+			}
+			final int len = bytesToRead;
+			bytesToRead = parser.inputRecord(window, (int) (pos - windowStart));
+			pos += len;
+
+			// log
+			if ((pos - dataStart) * 100 / totalLength - lastPercent >= 1) {
+				lastPercent = (int) ((pos - dataStart) * 100 / totalLength);
+				Logger.getLogger(this.getClass().getCanonicalName()).info(
+						String.format("processed %d%%", lastPercent));
+			}
+		}
+	}
+
+	private static MappedByteBuffer map(final FileChannel fc, final long start, final long fileLength)
+			throws IOException {
+		final long size = Math.min(MAPPING_WINDOW, fileLength - start);
+		final MappedByteBuffer ret = fc.map(FileChannel.MapMode.READ_ONLY, start, size);
+		ret.order(ByteOrder.LITTLE_ENDIAN);
+		return ret;
+	}
 }
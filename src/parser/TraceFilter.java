@@ -0,0 +1,154 @@
+package parser;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * 记录过滤条件: 时间窗口及线程
+ *
+ * TraceRecordParser 直接根据二进制记录中的线程 id 和时间过滤，被过滤掉的线程的记录不经过 TptpAdapter，
+ * 时间窗口之前的记录只更新线程的调用栈，不输出。
+ * 记录中的时间只在同一线程内有序(例如 thread-cpu 时钟)，因此按线程分别判断时间窗口:
+ * 线程进入时间窗口时为其尚未退出的调用补充 methodEntry，离开时为仍未退出的调用补充 methodExit，
+ * 调用序号与完整转换时相同。trace 结束时仍未退出的调用与不过滤时一样保持原样。
+ * 头部中所有保留的线程都离开时间窗口后即停止读取
+ */
+public class TraceFilter {
+
+	/** filter() 的返回值: 记录交给 TptpAdapter 处理 */
+	static final int ACCEPT = 0;
+	/** filter() 的返回值: 丢弃记录 */
+	static final int REJECT = 1;
+	/** filter() 的返回值: 所有线程都已超出时间窗口，停止读取 */
+	static final int STOP = 2;
+
+	// 线程相对时间窗口的状态
+	private static final byte BEFORE_WINDOW = 0;
+	private static final byte IN_WINDOW = 1;
+	private static final byte AFTER_WINDOW = 2;
+
+	// 时间窗口，相对 trace 起始时间(in usec)
+	private long windowStart = 0;
+	private long windowEnd = Long.MAX_VALUE;
+
+	private final Set<Integer> includeIds = new HashSet<Integer>();
+	private final Set<Integer> excludeIds = new HashSet<Integer>();
+	private final Set<String> includeNames = new HashSet<String>();
+	private final Set<String> excludeNames = new HashSet<String>();
+
+	/** 头部中的线程名 */
+	private final Map<Integer, String> threadNames = new HashMap<Integer, String>();
+
+	/** 以线程 id 为下标，记录中的线程 id 为 u2 */
+	private boolean[] acceptedThreads = null;
+
+	/** 头部中保留的线程数 */
+	private int acceptedCount = 0;
+	/** 已离开时间窗口的线程数 */
+	private int closedCount = 0;
+
+	/** 以线程 id 为下标，线程相对时间窗口的状态 */
+	private final byte[] threadStates = new byte[0x10000];
+
+	/**
+	 * 设置时间窗口
+	 *
+	 * @param startUsec
+	 *            相对 trace 起始时间(HeaderRecord.getStartDateTime())的偏移(in usec)
+	 * @param endUsec
+	 *            同上，包含该时间
+	 */
+	public void setTimeWindow(final long startUsec, final long endUsec) {
+		if (startUsec < 0 || endUsec < startUsec)
+			throw new IllegalArgumentException("invalid time window : " + startUsec + " - " + endUsec);
+		windowStart = startUsec;
+		windowEnd = endUsec;
+	}
+
+	public long getWindowStart() {
+		return windowStart;
+	}
+
+	public long getWindowEnd() {
+		return windowEnd;
+	}
+
+	/** 只保留指定的线程(可多次调用)，未调用 includeThread*() 则保留所有线程 */
+	public void includeThread(final int tid) {
+		includeIds.add(Integer.valueOf(tid));
+	}
+
+	public void includeThreadName(final String name) {
+		includeNames.add(name);
+	}
+
+	public void excludeThread(final int tid) {
+		excludeIds.add(Integer.valueOf(tid));
+	}
+
+	public void excludeThreadName(final String name) {
+		excludeNames.add(name);
+	}
+
+	/** 头部中的线程 */
+	void addThread(final int tid, final String name) {
+		threadNames.put(Integer.valueOf(tid), name);
+	}
+
+	private boolean isThreadAccepted(final int tid) {
+		final Integer id = Integer.valueOf(tid);
+		final String name = threadNames.get(id);
+		if (excludeIds.contains(id) || (name != null && excludeNames.contains(name)))
+			return false;
+		if (includeIds.isEmpty() && includeNames.isEmpty())
+			return true;
+		return includeIds.contains(id) || (name != null && includeNames.contains(name));
+	}
+
+	/**
+	 * 过滤一条方法记录，接受的记录须由调用者交给 TptpAdapter
+	 *
+	 * @param deltaTime
+	 *            相对 trace 起始时间(in usec)
+	 * @return ACCEPT, REJECT 或 STOP
+	 */
+	int filter(final TptpAdapter adapter, final int tid, final long methodAddr, final int action,
+			final long deltaTime) {
+		if (acceptedThreads == null) {
+			acceptedThreads = new boolean[0x10000];
+			for (int i = 0; i < acceptedThreads.length; ++i)
+				acceptedThreads[i] = isThreadAccepted(i);
+			for (final Integer id : threadNames.keySet())
+				if (acceptedThreads[id.intValue() & 0xFFFF])
+					++acceptedCount;
+		}
+		if (!acceptedThreads[tid])
+			return REJECT;
+
+		switch (threadStates[tid]) {
+		case BEFORE_WINDOW:
+			if (deltaTime < windowStart) {
+				adapter.skipMethodAction(tid, methodAddr, action);
+				return REJECT;
+			}
+			// 补充进入窗口时尚未退出的调用
+			threadStates[tid] = IN_WINDOW;
+			adapter.enterOpenCalls(tid, windowStart);
+			break;
+
+		case AFTER_WINDOW:
+			return REJECT;
+		}
+
+		if (deltaTime > windowEnd) {
+			threadStates[tid] = AFTER_WINDOW;
+			adapter.exitOpenCalls(tid, windowEnd);
+			return ++closedCount == acceptedCount ? STOP : REJECT;
+		}
+
+		return ACCEPT;
+	}
+}
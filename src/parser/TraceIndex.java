@@ -0,0 +1,358 @@
+package parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import parser.items.ThreadItem;
+import parser.record.ActionRecord;
+import parser.record.RecordDecoder;
+
+/**
+ * 方法记录区的稀疏索引
+ *
+ * 每隔一定的记录数或时间保存一个检查点: 记录在文件中的偏移、之前所有记录的最大时间，以及各线程的调用栈和调用计数。
+ * 从检查点恢复各线程的状态后即可从该处继续转换，不必从第一条记录开始解码。
+ * 索引保存在 trace 文件旁的 .idx 文件中，文件长度或修改时间与 trace 文件不符则视为过期
+ */
+public class TraceIndex {
+
+	/** 索引文件的扩展名 */
+	public static final String FILE_EXTENSION = ".idx";
+
+	/** 默认每隔多少条记录保存一个检查点 */
+	public static final int DEFAULT_INTERVAL_RECORDS = 64 * 1024;
+
+	/** 默认每隔多少时间(in usec)保存一个检查点 */
+	public static final long DEFAULT_INTERVAL_USEC = 100 * 1000;
+
+	/** 'TIDX' */
+	private static final int MAGIC = 0x54494458;
+	/** 版本 2: 双时钟的 trace 以墙上时间作为检查点的时间 */
+	private static final int VERSION = 2;
+
+	/** 建立索引时每次读取的记录数 */
+	private static final int READ_RECORDS = 64 * 1024;
+
+	private static final Logger logger = Logger.getLogger(TraceIndex.class.getCanonicalName());
+
+	/**
+	 * 检查点中一个线程的状态
+	 */
+	private static final class ThreadState {
+		final int tid;
+		final int nextTicket;
+		final int droppedCalls;
+		/** 各层调用的方法地址，0 为栈底 */
+		final long[] methodAddrs;
+		final int[] tickets;
+
+		ThreadState(final int tid, final int nextTicket, final int droppedCalls, final long[] methodAddrs,
+				final int[] tickets) {
+			this.tid = tid;
+			this.nextTicket = nextTicket;
+			this.droppedCalls = droppedCalls;
+			this.methodAddrs = methodAddrs;
+			this.tickets = tickets;
+		}
+	}
+
+	/**
+	 * 检查点
+	 */
+	private static final class Checkpoint {
+		/** 下一条记录在文件中的偏移 */
+		final long offset;
+		/** 之前所有记录的最大时间，相对 trace 起始时间(in usec) */
+		final long time;
+		final ThreadState[] threads;
+
+		Checkpoint(final long offset, final long time, final ThreadState[] threads) {
+			this.offset = offset;
+			this.time = time;
+			this.threads = threads;
+		}
+	}
+
+	private final long traceLength;
+	private final long traceModified;
+	private final long dataStart;
+	private final int recordSize;
+	private final List<Checkpoint> checkpoints;
+
+	private TraceIndex(final long traceLength, final long traceModified, final long dataStart, final int recordSize,
+			final List<Checkpoint> checkpoints) {
+		this.traceLength = traceLength;
+		this.traceModified = traceModified;
+		this.dataStart = dataStart;
+		this.recordSize = recordSize;
+		this.checkpoints = checkpoints;
+	}
+
+	/** trace 文件对应的索引文件 */
+	public static File indexFileOf(final File trace) {
+		return new File(trace.getPath() + FILE_EXTENSION);
+	}
+
+	/**
+	 * 读取 trace 文件旁的索引，不存在或已过期则重新建立并保存
+	 */
+	public static TraceIndex open(final File trace) throws IOException {
+		final File f = indexFileOf(trace);
+		if (f.exists()) {
+			try {
+				final TraceIndex index = load(f);
+				if (index.matches(trace))
+					return index;
+				logger.info("index is out of date : " + f);
+			} catch (final IllegalArgumentException e) {
+				logger.info(e.getMessage());
+			}
+		}
+		final TraceIndex index = build(trace, DEFAULT_INTERVAL_RECORDS, DEFAULT_INTERVAL_USEC);
+		index.write(f);
+		return index;
+	}
+
+	/** 索引是否与 trace 文件相符 */
+	public boolean matches(final File trace) {
+		return trace.length() == traceLength && trace.lastModified() == traceModified;
+	}
+
+	public int getCheckpointCount() {
+		return checkpoints.size();
+	}
+
+	/** 检查点之后第一条记录在文件中的偏移 */
+	public long getOffset(final int checkpoint) {
+		return checkpoints.get(checkpoint).offset;
+	}
+
+	/** 检查点之前所有记录的最大时间，相对 trace 起始时间(in usec) */
+	public long getTime(final int checkpoint) {
+		return checkpoints.get(checkpoint).time;
+	}
+
+	/**
+	 * 查找之前所有记录都早于指定时间的最后一个检查点
+	 *
+	 * @param usec
+	 *            相对 trace 起始时间(in usec)
+	 * @return 检查点序号，没有则返回 -1
+	 */
+	public int findCheckpoint(final long usec) {
+		int lo = 0, hi = checkpoints.size() - 1, ret = -1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (checkpoints.get(mid).time < usec) {
+				ret = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * 确认索引与已分析的文件头部相符
+	 */
+	void check(final long dataStart, final int recordSize) {
+		if (dataStart != this.dataStart || recordSize != this.recordSize)
+			throw new IllegalArgumentException("index does not match the trace file");
+	}
+
+	/**
+	 * 将检查点中各线程的调用栈恢复到 TptpAdapter 中
+	 */
+	void restore(final int checkpoint, final TptpAdapter adapter) {
+		final Checkpoint cp = checkpoints.get(checkpoint);
+		for (int i = 0; i < cp.threads.length; ++i) {
+			final ThreadState ts = cp.threads[i];
+			adapter.restoreThread(ts.tid, ts.methodAddrs, ts.tickets, ts.methodAddrs.length, ts.nextTicket,
+					ts.droppedCalls);
+		}
+	}
+
+	/**
+	 * 扫描 trace 文件的方法记录，建立索引
+	 *
+	 * @param intervalRecords
+	 *            每隔多少条记录保存一个检查点
+	 * @param intervalUsec
+	 *            每隔多少时间(in usec)保存一个检查点
+	 */
+	public static TraceIndex build(final File trace, final int intervalRecords, final long intervalUsec)
+			throws IOException {
+		if (intervalRecords <= 0 || intervalUsec <= 0)
+			throw new IllegalArgumentException();
+
+		// 建立索引时不需要输出
+		final TptpAdapter adapter = new TptpAdapter(new TptpHandlerBase());
+		final TraceRecordParser parser = new TraceRecordParser(adapter);
+		final TraceFileScaner scaner = new TraceFileScaner(trace, parser);
+		final List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+
+		// 出现过的线程
+		final boolean[] seen = new boolean[0x10000];
+		int[] tids = new int[16];
+		int threadCount = 0;
+
+		final RandomAccessFile raf = new RandomAccessFile(trace, "r");
+		try {
+			final FileChannel fc = raf.getChannel();
+			final long dataStart = scaner.processHeader(fc);
+			final int recordSize = scaner.getRecordSize();
+			final long fileLength = fc.size();
+			final RecordDecoder decoder = parser.getRecordDecoder();
+			final ActionRecord record = new ActionRecord();
+			final ByteBuffer buf = ByteBuffer.allocate(recordSize * READ_RECORDS).order(ByteOrder.LITTLE_ENDIAN);
+
+			long pos = dataStart;
+			long maxTime = 0, lastCheckpointTime = 0;
+			int sinceCheckpoint = 0;
+			while (pos + recordSize <= fileLength) {
+				// 读取整数条记录
+				buf.clear();
+				buf.limit((int) Math.min(buf.capacity(), (fileLength - pos) / recordSize * recordSize));
+				while (buf.hasRemaining())
+					if (fc.read(buf, pos + buf.position()) < 0)
+						throw new IllegalArgumentException("unexpected EOF");
+
+				for (int off = 0; off < buf.limit(); off += recordSize) {
+					if (sinceCheckpoint >= intervalRecords || maxTime - lastCheckpointTime >= intervalUsec) {
+						checkpoints.add(snapshot(adapter, tids, threadCount, pos, maxTime));
+						sinceCheckpoint = 0;
+						lastCheckpointTime = maxTime;
+					}
+
+					decoder.decode(buf, off, record);
+					final int tid = record.getThreadId();
+					if (!seen[tid]) {
+						seen[tid] = true;
+						if (threadCount == tids.length)
+							tids = Arrays.copyOf(tids, threadCount * 2);
+						tids[threadCount++] = tid;
+					}
+					final long time = record.getDeltaTime();
+					adapter.skipMethodAction(tid, record.getMethodAddr(), record.getMethodActionCode());
+					maxTime = Math.max(maxTime, time);
+					++sinceCheckpoint;
+					pos += recordSize;
+				}
+			}
+
+			logger.info("index built : " + checkpoints.size() + " checkpoints");
+			return new TraceIndex(fileLength, trace.lastModified(), dataStart, recordSize, checkpoints);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static Checkpoint snapshot(final TptpAdapter adapter, final int[] tids, final int threadCount,
+			final long offset, final long time) {
+		final ThreadState[] states = new ThreadState[threadCount];
+		for (int i = 0; i < threadCount; ++i) {
+			final ThreadItem ti = adapter.findThread(tids[i]);
+			final int depth = ti.getDepthOfCallStack();
+			final long[] addrs = new long[depth];
+			final int[] tickets = new int[depth];
+			for (int d = 0; d < depth; ++d) {
+				addrs[d] = adapter.findMethodById(ti.getMethodIdAt(d)).getAddress();
+				tickets[d] = ti.getTicketAt(d);
+			}
+			states[i] = new ThreadState(tids[i], ti.getNextTicket(), ti.getDroppedCalls(), addrs, tickets);
+		}
+		return new Checkpoint(offset, time, states);
+	}
+
+	/**
+	 * 保存索引
+	 */
+	public void write(final File f) throws IOException {
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(traceLength);
+			out.writeLong(traceModified);
+			out.writeLong(dataStart);
+			out.writeInt(recordSize);
+			out.writeInt(checkpoints.size());
+			for (int i = 0; i < checkpoints.size(); ++i) {
+				final Checkpoint cp = checkpoints.get(i);
+				out.writeLong(cp.offset);
+				out.writeLong(cp.time);
+				out.writeInt(cp.threads.length);
+				for (int j = 0; j < cp.threads.length; ++j) {
+					final ThreadState ts = cp.threads[j];
+					out.writeShort(ts.tid);
+					out.writeInt(ts.nextTicket);
+					out.writeInt(ts.droppedCalls);
+					out.writeInt(ts.methodAddrs.length);
+					for (int d = 0; d < ts.methodAddrs.length; ++d) {
+						out.writeInt((int) ts.methodAddrs[d]);
+						out.writeInt(ts.tickets[d]);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * 读取索引
+	 */
+	public static TraceIndex load(final File f) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IllegalArgumentException("not a trace index : " + f);
+			final int version = in.readInt();
+			if (version != VERSION)
+				throw new IllegalArgumentException("unsupported index version : " + version);
+			final long traceLength = in.readLong();
+			final long traceModified = in.readLong();
+			final long dataStart = in.readLong();
+			final int recordSize = in.readInt();
+			final int count = in.readInt();
+			final List<Checkpoint> checkpoints = new ArrayList<Checkpoint>(count);
+			for (int i = 0; i < count; ++i) {
+				final long offset = in.readLong();
+				final long time = in.readLong();
+				final ThreadState[] states = new ThreadState[in.readInt()];
+				for (int j = 0; j < states.length; ++j) {
+					final int tid = in.readShort() & 0xFFFF;
+					final int nextTicket = in.readInt();
+					final int droppedCalls = in.readInt();
+					final int depth = in.readInt();
+					final long[] addrs = new long[depth];
+					final int[] tickets = new int[depth];
+					for (int d = 0; d < depth; ++d) {
+						addrs[d] = in.readInt() & 0xFFFFFFFFL;
+						tickets[d] = in.readInt();
+					}
+					states[j] = new ThreadState(tid, nextTicket, droppedCalls, addrs, tickets);
+				}
+				checkpoints.add(new Checkpoint(offset, time, states));
+			}
+			return new TraceIndex(traceLength, traceModified, dataStart, recordSize, checkpoints);
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,309 @@
+package parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import parser.record.ActionRecord;
+import parser.record.RecordDecoder;
+
+/**
+ * 将同时采集的多个进程的 Android Trace 文件合并为一个 TPTP Trace
+ *
+ * 各文件有各自的解析器和 TptpAdapter，输出为不同的进程/代理。方法记录按绝对时间(二进制头部中的起始时间加记录中的相对时间)
+ * 以堆多路归并，各文件只保留一个读取缓冲区，内存占用与文件大小无关。线程、类、方法的编号按文件错开，互不冲突:
+ * 类、方法依次编号，线程号为 文件序号 * TID_STRIDE + 原线程号
+ */
+public class TraceMerger {
+
+	/** 合并后各文件线程号的间隔，大于记录中线程号的最大值(2 字节) */
+	public static final int TID_STRIDE = 1 << 16;
+
+	private static final Charset UUID_CHARSET = Charset.forName("UTF-8");
+
+	private static final Logger logger = Logger.getLogger(TraceMerger.class.getCanonicalName());
+
+	/**
+	 * 一个输入文件
+	 */
+	private static final class Source {
+		final int index;
+		final File file;
+		final SourceHandler handler;
+		final TptpAdapter adapter;
+		final TraceRecordParser parser;
+
+		RandomAccessFile raf;
+		TraceFileScaner.ChannelInput in;
+		RecordDecoder decoder;
+		int recordSize;
+
+		/** 下一条记录，已解码以取得时间 */
+		final ActionRecord record = new ActionRecord();
+		/** 下一条记录的绝对时间(in usec) */
+		long time;
+
+		Source(final int index, final File file, final ITptpHandler target) {
+			this.index = index;
+			this.file = file;
+			handler = new SourceHandler(target, index == 0);
+			adapter = new TptpAdapter(handler);
+			parser = new TraceRecordParser(adapter);
+		}
+
+		/**
+		 * 读取并解码下一条记录
+		 *
+		 * @return false, 文件已读完
+		 */
+		boolean next() throws IOException {
+			if (!in.fill(recordSize))
+				return false;
+			decoder.decode(in.buffer, in.buffer.position(), record);
+			time = adapter.getStartTimeUsec() + record.getDeltaTime();
+			return true;
+		}
+
+		/**
+		 * 将已解码的下一条记录交给解析器
+		 *
+		 * @return false, 解析器不再接受记录
+		 */
+		boolean consume() {
+			final ByteBuffer buf = in.buffer;
+			final int off = buf.position();
+			final int ret = parser.inputRecord(buf, off);
+			buf.position(off + recordSize);
+			return ret > 0;
+		}
+
+		/** 排在 o 之前: 时间早，时间相同时文件序号小 */
+		boolean before(final Source o) {
+			return time < o.time || (time == o.time && index < o.index);
+		}
+	}
+
+	private final ITptpHandler target;
+	private final Source[] sources;
+	private MethodFilter methodFilter = null;
+	private long threadIdleTimeout = 0;
+
+	/**
+	 * @param files
+	 *            各进程的 Android Trace 文件，输出的进程按此顺序
+	 */
+	public TraceMerger(final List<File> files, final ITptpHandler h) {
+		if (files.isEmpty() || h == null)
+			throw new IllegalArgumentException();
+		target = h;
+		sources = new Source[files.size()];
+		for (int i = 0; i < sources.length; ++i) {
+			final File f = files.get(i);
+			final Source s = new Source(i, f, h);
+			s.adapter.setUuids(uuid(i, f, "process"), uuid(i, f, "agent"), uuid(i, f, "trace"));
+			sources[i] = s;
+		}
+	}
+
+	/** 由文件确定的 UUID，同样的输入得到同样的输出 */
+	private static String uuid(final int index, final File f, final String kind) {
+		return UUID.nameUUIDFromBytes((index + ":" + f.getPath() + ":" + kind).getBytes(UUID_CHARSET)).toString();
+	}
+
+	/**
+	 * 设置方法过滤规则，用于所有文件，须在 process() 之前调用
+	 */
+	public void setMethodFilter(final MethodFilter filter) {
+		methodFilter = filter;
+	}
+
+	/**
+	 * 设置空闲线程的超时(in usec)，用于所有文件，参见 TptpAdapter.setThreadIdleTimeout()
+	 */
+	public void setThreadIdleTimeout(final long timeout) {
+		threadIdleTimeout = timeout;
+	}
+
+	public void process() throws IOException {
+		try {
+			// 各文件的头部，输出各进程的定义
+			int classBase = 0, methodBase = 0;
+			for (int i = 0; i < sources.length; ++i) {
+				final Source s = sources[i];
+				s.adapter.setMethodFilter(methodFilter);
+				s.adapter.setThreadIdleTimeout(threadIdleTimeout);
+				s.raf = new RandomAccessFile(s.file, "r");
+				final TraceFileScaner scaner = new TraceFileScaner(s.file, s.parser);
+				final long dataStart = scaner.processHeader(s.raf.getChannel());
+				s.raf.getChannel().position(dataStart);
+				s.in = new TraceFileScaner.ChannelInput(s.raf.getChannel());
+				s.decoder = s.parser.getRecordDecoder();
+				s.recordSize = scaner.getRecordSize();
+
+				s.handler.setBases(i * TID_STRIDE, classBase, methodBase);
+				classBase += s.adapter.getClassCount();
+				methodBase += s.adapter.getMethodCount();
+				logger.info(String.format("merging %s : start time %d", s.file, s.adapter.getStartTimeUsec()));
+			}
+
+			// 多路归并，堆顶是下一条要输出的记录
+			final Source[] heap = new Source[sources.length];
+			int size = 0;
+			for (int i = 0; i < sources.length; ++i) {
+				if (sources[i].next())
+					heap[size++] = sources[i];
+			}
+			for (int i = size / 2 - 1; i >= 0; --i)
+				siftDown(heap, size, i);
+			long records = 0;
+			while (size > 0) {
+				final Source s = heap[0];
+				++records;
+				if (!s.consume() || !s.next())
+					heap[0] = heap[--size];
+				siftDown(heap, size, 0);
+			}
+			logger.info(String.format("merged %d records from %d files", records, sources.length));
+
+			for (int i = 0; i < sources.length; ++i)
+				sources[i].parser.end();
+			target.handleEnd();
+		} finally {
+			for (int i = 0; i < sources.length; ++i) {
+				if (sources[i].raf != null)
+					sources[i].raf.close();
+			}
+		}
+	}
+
+	private static void siftDown(final Source[] heap, final int size, int i) {
+		final Source s = heap[i];
+		while (true) {
+			int c = 2 * i + 1;
+			if (c >= size)
+				break;
+			if (c + 1 < size && heap[c + 1].before(heap[c]))
+				++c;
+			if (!heap[c].before(s))
+				break;
+			heap[i] = heap[c];
+			i = c;
+		}
+		heap[i] = s;
+	}
+
+	/**
+	 * 一个文件的 TptpAdapter 输出到合并结果: 错开线程、类、方法的编号；开始和结束只由合并器输出一次，节点只输出第一个文件的
+	 */
+	private static final class SourceHandler implements ITptpHandler {
+
+		private final ITptpHandler target;
+		private final boolean first;
+
+		private int tidBase = 0;
+		private int classBase = 0;
+		private long methodBase = 0;
+
+		SourceHandler(final ITptpHandler target, final boolean first) {
+			this.target = target;
+			this.first = first;
+		}
+
+		void setBases(final int tidBase, final int classBase, final int methodBase) {
+			this.tidBase = tidBase;
+			this.classBase = classBase;
+			this.methodBase = methodBase;
+		}
+
+		public void handleStart() {
+			if (first)
+				target.handleStart();
+		}
+
+		public void handleEnd() {
+		}
+
+		public void handleNode(final String id, final String host, final String ip, final int timezone,
+				final long timeUTCSec, final long timeUTCNsec) {
+			if (first)
+				target.handleNode(id, host, ip, timezone, timeUTCSec, timeUTCNsec);
+		}
+
+		public void handleProcessCreate(final String uuid, final int pid, final String nodeId,
+				final long timeUTCSec, final long timeUTCNsec) {
+			target.handleProcessCreate(uuid, pid, nodeId, timeUTCSec, timeUTCNsec);
+		}
+
+		public void handleAgentCreate(final String uuid, final String version, final String puuid,
+				final String name, final String type, final String parameters, final long timeUTCSec,
+				final long timeUTCNsec) {
+			target.handleAgentCreate(uuid, version, puuid, name, type, parameters, timeUTCSec, timeUTCNsec);
+		}
+
+		public void handleAgentDestroy(final String uuid, final long timeUTCSec, final long timeUTCNsec) {
+			target.handleAgentDestroy(uuid, timeUTCSec, timeUTCNsec);
+		}
+
+		public void handleTraceStart(final String uuid, final String auuid, final long timeUTCSec,
+				final long timeUTCNsec) {
+			target.handleTraceStart(uuid, auuid, timeUTCSec, timeUTCNsec);
+		}
+
+		public void handleRuntimeInitDone(final int tid, final long timeUTCSec, final long timeUTCNsec) {
+			target.handleRuntimeInitDone(tidBase + tid, timeUTCSec, timeUTCNsec);
+		}
+
+		public void handleRuntimeShutdown(final long timeUTCSec, final long timeUTCNSec) {
+			target.handleRuntimeShutdown(timeUTCSec, timeUTCNSec);
+		}
+
+		public void handleFilter(final String pattern, final String mode, final String genericPattern,
+				final String methodPattern, final String methodMode, final String methodGenericPattern) {
+			target.handleFilter(pattern, mode, genericPattern, methodPattern, methodMode, methodGenericPattern);
+		}
+
+		public void handleOption(final String key, final String value) {
+			target.handleOption(key, value);
+		}
+
+		public void handleThreadStart(final int tid, final long timeUTCSec, final long timeUTCNsec,
+				final String name, final String group, final String parent) {
+			target.handleThreadStart(tidBase + tid, timeUTCSec, timeUTCNsec, name, group, parent);
+		}
+
+		public void handleTraceEnd(final long timeUTCSec, final long timeUTCNsec) {
+			target.handleTraceEnd(timeUTCSec, timeUTCNsec);
+		}
+
+		public void handleThreadEnd(final int tid, final long timeUTCSec, final long timeUTCNsec) {
+			target.handleThreadEnd(tidBase + tid, timeUTCSec, timeUTCNsec);
+		}
+
+		public void handleClassDef(final int cid, final String name, final String sourceFile,
+				final long timeUTCSec, final long timeUTCNsec) {
+			target.handleClassDef(classBase + cid, name, sourceFile, timeUTCSec, timeUTCNsec);
+		}
+
+		public void handleMethodDef(final long mid, final String name, final String signature,
+				final int startLine, final int endLine, final int classId) {
+			target.handleMethodDef(methodBase + mid, name, signature, startLine, endLine, classBase + classId);
+		}
+
+		public void handleMethodEntry(final int tid, final int cid, final long mid, final long timeUTCSec,
+				final long timeUTCNsec, final int ticket, final int stackDepth, final long threadCpuTime) {
+			target.handleMethodEntry(tidBase + tid, classBase + cid, methodBase + mid, timeUTCSec, timeUTCNsec,
+					ticket, stackDepth, threadCpuTime);
+		}
+
+		public void handleMethodExit(final int tid, final int cid, final long mid, final long timeUTCSec,
+				final long timeUTCNsec, final int ticket, final long threadCpuTime) {
+			target.handleMethodExit(tidBase + tid, classBase + cid, methodBase + mid, timeUTCSec, timeUTCNsec,
+					ticket, threadCpuTime);
+		}
+	}
+}
@@ -1,10 +1,13 @@
 package parser;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import parser.record.ActionRecord;
 import parser.record.HeaderRecord;
+import parser.record.RecordDecoder;
 
 /**
  * android trace 记录格式解析器
@@ -48,7 +51,7 @@ public class TraceRecordParser {
 		EXPECT_HEAD_RECORD,
 
 		/**
-		 * 分析空白
+		 * 分析二进制头部的剩余部分(版本 3 中是记录长度)及空白
 		 */
 		EXPECT_BLANK,
 
@@ -56,16 +59,87 @@ public class TraceRecordParser {
 		 * 分析二进制记录
 		 */
 		PARSING_RECORDS,
+
+		/**
+		 * 已超出过滤条件的时间窗口，不再分析
+		 */
+		END,
 	}
 
+	// 文本部分各行的格式，预先编译，Matcher 在各行之间重复使用
+	private static final Pattern VERSION_TAG = Pattern.compile("\\s*" + "\\*" + "\\s*" + "(version)" + "\\s*");
+	private static final Pattern VERSION = Pattern.compile("\\s*" + "(\\d+)" + "\\s*");
+	private static final Pattern OPTION = Pattern.compile("\\s*" + "([\\w\\-]+)" + "\\s*=\\s*" + "([\\w\\-]+)"
+			+ "\\s*");
+	private static final Pattern THREADS_TAG = Pattern.compile("\\s*" + "\\*" + "\\s*" + "threads" + "\\s*");
+	private static final Pattern THREAD = Pattern.compile("\\s*" + "(\\d+)" + "(\\s+" + "([^\\s](.*[^\\s])?))?"
+			+ "\\s*");
+	private static final Pattern METHODS_TAG = Pattern.compile("\\s*" + "\\*" + "\\s*" + "methods" + "\\s*");
+	/**
+	 * 方法行: 地址、类名、方法名、签名，之后可选的源文件和行号。两种形式的字段数不同(4 或 6 个)，
+	 * 合并为一个表达式后与分别匹配的结果相同
+	 */
+	static final Pattern METHOD = Pattern.compile("\\s*" + "0x([\\da-f]{8})" + "\\s+" + "([^\\s]+)"
+			+ "\\s+" + "([^\\s]+)" + "\\s+" + "([^\\s]+)" + "(?:\\s+" + "([^\\s]+)" + "\\s+" + "(\\-?\\d+))?"
+			+ "\\s*");
+	private static final Pattern PID = Pattern.compile("\\d{1,9}");
+	private static final Pattern END_TAG = Pattern.compile("\\s*" + "\\*" + "\\s*" + "end" + "\\s*");
+
+	private static final Charset TEXT_CHARSET = Charset.forName("UTF-8");
+
+	private final Matcher versionTag = VERSION_TAG.matcher("");
+	private final Matcher version = VERSION.matcher("");
+	private final Matcher option = OPTION.matcher("");
+	private final Matcher threadsTag = THREADS_TAG.matcher("");
+	private final Matcher thread = THREAD.matcher("");
+	private final Matcher methodsTag = METHODS_TAG.matcher("");
+	private final Matcher method = METHOD.matcher("");
+	private final Matcher endTag = END_TAG.matcher("");
+
 	private State state = State.EXPECT_VERSION;
 
 	private final TptpAdapter tptpAdapter;
 
+	/** 重复使用的二进制记录 */
+	private final ActionRecord record = new ActionRecord();
+
+	/** 文本头部中的时钟，未给出则为 null */
+	private RecordDecoder.Clock clock = null;
+	/** 二进制头部，读取剩余部分之前暂存 */
+	private HeaderRecord header = null;
+	/** 按文件版本选定的记录解码器，分析完二进制头部后有效 */
+	private RecordDecoder decoder = null;
+
+	/** 记录过滤条件，null 表示不过滤 */
+	private TraceFilter filter = null;
+
 	public TraceRecordParser(final TptpAdapter fmt) {
 		tptpAdapter = fmt;
 	}
 
+	/**
+	 * 设置记录过滤条件，须在输入之前调用
+	 */
+	public void setFilter(final TraceFilter f) {
+		filter = f;
+	}
+
+	public TraceFilter getFilter() {
+		return filter;
+	}
+
+	/** 记录解码器，分析完二进制头部后有效 */
+	public RecordDecoder getRecordDecoder() {
+		return decoder;
+	}
+
+	/**
+	 * 从索引的检查点恢复各线程的调用栈，之后输入检查点之后的记录
+	 */
+	void restore(final TraceIndex index, final int checkpoint) {
+		index.restore(checkpoint, tptpAdapter);
+	}
+
 	/**
 	 * 分析 android trace 文件中的文本部分，每一行输入一次
 	 *
@@ -73,95 +147,84 @@ public class TraceRecordParser {
 	 *         >0, 结束分析文本，分析二进制数据(返回值是期望的二进制长度)
 	 */
 	public int inputLine(final String s) {
-		Pattern p;
 		Matcher m;
 		switch (state) {
 		case EXPECT_VERSION: // 预期字符串: "*version"
-			if (!Pattern.matches("\\s*" + "\\*" + "\\s*" + "(version)" + "\\s*", s))
+			if (!versionTag.reset(s).matches())
 				throw new IllegalArgumentException("unknown format : " + s);
 
 			state = State.PARSING_VERSION;
 			return 0;
 
 		case PARSING_VERSION: // 分析 android trace 文件版本号: "3"
-			p = Pattern.compile("\\s*" + "(\\d+)" + "\\s*");
-			m = p.matcher(s);
+			m = version.reset(s);
 			if (!m.matches())
 				throw new IllegalArgumentException("unknown format : " + s);
-			final int version = Integer.valueOf(m.group(1));
-			if (version != 3)
-				throw new RuntimeException("unsupported android trace file version");
-			tptpAdapter.addKeyFileVersion(version);
+			final int ver = Integer.parseInt(m.group(1));
+			if (ver < 1 || ver > 3)
+				throw new IllegalArgumentException("unsupported android trace file version : " + ver);
+			tptpAdapter.addKeyFileVersion(ver);
 			state = State.PARSING_OPTIONS;
 			return 0;
 
 		case PARSING_OPTIONS: // 分析选项信息，例如："data-file-overflow=false"
-			p = Pattern.compile("\\s*" + "([\\w\\-]+)" + "\\s*=\\s*" + "([\\w\\-]+)" + "\\s*");
-			m = p.matcher(s);
-			if (m.matches())
+			m = option.reset(s);
+			if (m.matches()) {
+				if (m.group(1).equals("clock"))
+					clock = RecordDecoder.parseClock(m.group(2));
+				else if (m.group(1).equals("pid") && PID.matcher(m.group(2)).matches())
+					tptpAdapter.addProcessId(Integer.parseInt(m.group(2)));
 				return 0;
+			}
 
 			// 状态转移
-			if (Pattern.matches("\\s*" + "\\*" + "\\s*" + "threads" + "\\s*", s)) {
+			if (threadsTag.reset(s).matches()) {
 				state = State.PARSING_THREDS;
 				return 0;
 			}
 			throw new IllegalArgumentException("unknown format : " + s);
 
 		case PARSING_THREDS: // 分析线程信息，例如："22	AsyncTask #1"
-			p = Pattern.compile("\\s*" + "(\\d+)" + "(\\s+" + "([^\\s](.*[^\\s])?))?" + "\\s*");
-			m = p.matcher(s);
+			m = thread.reset(s);
 			if (m.matches()) {
-				final int tid = Integer.valueOf(m.group(1));
+				final int tid = Integer.parseInt(m.group(1));
 				String tname;
 				if (m.group(2) != null) // 线程名称可能为空
 					tname = m.group(3);
 				else
 					tname = "";
 				tptpAdapter.addThread(tid, tname);
+				if (filter != null)
+					filter.addThread(tid, tname);
 				return 0;
 			}
 
 			// 状态转移
-			p = Pattern.compile("\\s*" + "\\*" + "\\s*" + "methods" + "\\s*");
-			m = p.matcher(s);
-			if (m.matches()) {
+			if (methodsTag.reset(s).matches()) {
 				state = State.PARSING_METHODS;
 				return 0;
 			}
 			throw new IllegalArgumentException("unknown format : " + s);
 
 		case PARSING_METHODS:
-			p = Pattern.compile("\\s*" + "0x([\\da-f]{8})" + "\\s+" + "([^\\s]+)" + "\\s+" + "([^\\s]+)" + "\\s+"
-					+ "([^\\s]+)" + "\\s*");
-			m = p.matcher(s);
-			if (m.matches()) {
-				final long methodAddress = Long.valueOf(m.group(1), 16);
-				final String className = m.group(2);
-				final String methodName = m.group(3);
-				final String signature = m.group(4);
-				tptpAdapter.addMethod(methodAddress, className, methodName, signature, null, -1);
-				return 0;
-			}
-
-			p = Pattern.compile("\\s*" + "0x([\\da-f]{8})" + "\\s+" + "([^\\s]+)" + "\\s+" + "([^\\s]+)" + "\\s+"
-					+ "([^\\s]+)" + "\\s+" + "([^\\s]+)" + "\\s+" + "(\\-?\\d+)" + "\\s*");
-			m = p.matcher(s);
+			m = method.reset(s);
 			if (m.matches()) {
-				final long methodAddress = Long.valueOf(m.group(1), 16);
+				final long methodAddress = Long.parseLong(m.group(1), 16);
 				final String className = m.group(2);
 				final String methodName = m.group(3);
 				final String signature = m.group(4);
-				final String sourceFile = m.group(5);
-				final int sourceLine = Integer.valueOf(m.group(6));
-				tptpAdapter.addMethod(methodAddress, className, methodName, signature, sourceFile, sourceLine);
+				if (m.group(5) == null) {
+					tptpAdapter.addMethod(methodAddress, className, methodName, signature, null, -1);
+				} else {
+					final String sourceFile = m.group(5);
+					final int sourceLine = Integer.parseInt(m.group(6));
+					tptpAdapter.addMethod(methodAddress, className, methodName, signature, sourceFile, sourceLine);
+				}
 				return 0;
 			}
 
 			// 状态转移
-			p = Pattern.compile("\\s*" + "\\*" + "\\s*" + "end" + "\\s*");
-			m = p.matcher(s);
-			if (m.matches()) {
+			if (endTag.reset(s).matches()) {
 				state = State.EXPECT_HEAD_RECORD;
 				return HeaderRecord.size();
 			}
@@ -172,6 +235,53 @@ public class TraceRecordParser {
 		}
 	}
 
+	/**
+	 * 同 inputLine(String)，输入一行的原始字节(UTF-8，不含换行)。延迟解析方法定义时，方法行只取出地址，
+	 * 与行的位置一起交给 TptpAdapter，不解码整行；行的其余部分在方法第一次用到时才检查
+	 *
+	 * @param offset
+	 *            行在文件中的位置
+	 */
+	public int inputLine(final byte[] b, final int len, final long offset) {
+		if (state == State.PARSING_METHODS && tptpAdapter.isLazySymbols()) {
+			final long methodAddress = parseMethodAddress(b, len);
+			if (methodAddress >= 0) {
+				tptpAdapter.addMethod(methodAddress, offset);
+				return 0;
+			}
+		}
+		return inputLine(new String(b, 0, len, TEXT_CHARSET));
+	}
+
+	/**
+	 * 取出方法行开头的地址，与 METHOD 开头的 \s*0x([\da-f]{8})\s+ 相同
+	 *
+	 * @return 不是这种形式则为 -1
+	 */
+	private static long parseMethodAddress(final byte[] b, final int len) {
+		int i = 0;
+		while (i < len && isSpace(b[i]))
+			++i;
+		if (i + 11 > len || b[i] != '0' || b[i + 1] != 'x' || !isSpace(b[i + 10]))
+			return -1;
+		long ret = 0;
+		for (int k = i + 2; k < i + 10; ++k) {
+			final byte c = b[k];
+			if (c >= '0' && c <= '9')
+				ret = (ret << 4) | (c - '0');
+			else if (c >= 'a' && c <= 'f')
+				ret = (ret << 4) | (c - 'a' + 10);
+			else
+				return -1;
+		}
+		return ret;
+	}
+
+	/** 与正则表达式中的 \s 相同 */
+	private static boolean isSpace(final byte c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == 0x0b || c == '\f' || c == '\r';
+	}
+
 	/**
 	 *
 	 * @return >0, 继续输入二进制，(返回值是期望的下次输入的二进制长度)<br/>
@@ -180,32 +290,102 @@ public class TraceRecordParser {
 	public int inputRecord(final byte[] b) {
 		switch (state) {
 		case EXPECT_HEAD_RECORD:
-			HeaderRecord hr = new HeaderRecord(b);
-			if (hr.getVersion() != 3)
-				throw new RuntimeException();
-			tptpAdapter.addDataFileHead(hr.getVersion(), hr.getOffset(), hr.getStartDateTime());
-			if (hr.getOffset() == HeaderRecord.size()) {
-				state = State.PARSING_RECORDS;
-				return 9;
-			} else if (hr.getOffset() > HeaderRecord.size()) {
-				state = State.EXPECT_BLANK;
-				return hr.getOffset() - HeaderRecord.size();
-			} else {
-				throw new IllegalStateException("offset is lower than already readed : " + hr.getOffset());
-			}
+			return inputHeadRecord(new HeaderRecord(b));
 
 		case EXPECT_BLANK:
-			state = State.PARSING_RECORDS;
-			return ActionRecord.size();
+			if (b.length >= HeaderRecord.extensionSize())
+				header.readExtension(b, 0);
+			return startRecords();
 
 		case PARSING_RECORDS:
-			ActionRecord ar = new ActionRecord(b);
-			tptpAdapter.addMethodAction(ar.getThreadId(), ar.getMethodAddr(), ar.getMethodAction(), ar.getDeltaTime());
-			return ActionRecord.size();
+			decoder.decode(b, 0, record);
+			return inputRecord();
 		}
 		return -1;
 	}
 
+	/**
+	 * 直接从缓冲区(例如内存映射的文件)中解析二进制记录，不产生中间对象
+	 *
+	 * @param b
+	 *            须为小端字节序
+	 * @param off
+	 *            记录在缓冲区中的起始位置
+	 * @return >0, 继续输入二进制，(返回值是期望的下次输入的二进制长度)<br/>
+	 *         else, 分析完毕
+	 */
+	public int inputRecord(final ByteBuffer b, final int off) {
+		switch (state) {
+		case EXPECT_HEAD_RECORD:
+			return inputHeadRecord(new HeaderRecord(b, off));
+
+		case EXPECT_BLANK:
+			if (b.limit() - off >= HeaderRecord.extensionSize())
+				header.readExtension(b, off);
+			return startRecords();
+
+		case PARSING_RECORDS:
+			decoder.decode(b, off, record);
+			return inputRecord();
+		}
+		return -1;
+	}
+
+	/** 已解码到 record 中的方法记录 */
+	private int inputRecord() {
+		if (filter != null) {
+			switch (filter.filter(tptpAdapter, record.getThreadId(), record.getMethodAddr(), record
+					.getMethodActionCode(), record.getDeltaTime())) {
+			case TraceFilter.REJECT:
+				return decoder.getRecordSize();
+			case TraceFilter.STOP:
+				state = State.END;
+				return 0;
+			}
+		}
+		tptpAdapter.addMethodAction(record.getThreadId(), record.getMethodAddr(), record.getMethodActionCode(),
+				record.getDeltaTime(), record.getCpuTime());
+		return decoder.getRecordSize();
+	}
+
+	private int inputHeadRecord(final HeaderRecord hr) {
+		if (hr.getVersion() < 1 || hr.getVersion() > 3)
+			throw new IllegalArgumentException("unsupported data file version : " + hr.getVersion());
+		header = hr;
+		if (hr.getOffset() == HeaderRecord.size()) {
+			return startRecords();
+		} else if (hr.getOffset() > HeaderRecord.size()) {
+			state = State.EXPECT_BLANK;
+			return hr.getOffset() - HeaderRecord.size();
+		} else {
+			throw new IllegalStateException("offset is lower than already readed : " + hr.getOffset());
+		}
+	}
+
+	/** 二进制头部分析完毕，选定记录解码器 */
+	private int startRecords() {
+		final HeaderRecord hr = header;
+		decoder = RecordDecoder.forVersion(hr.getVersion(), hr.getRecordSize(), clock);
+		tptpAdapter.addDataFileHead(hr.getVersion(), hr.getOffset(), hr.getStartDateTime(), decoder.hasCpuTime());
+		state = State.PARSING_RECORDS;
+		return decoder.getRecordSize();
+	}
+
+	/** 是否延迟解析方法定义，参见 TptpAdapter.setLazySymbols() */
+	public boolean isLazySymbols() {
+		return tptpAdapter.isLazySymbols();
+	}
+
+	/** 延迟解析时方法行所在的文本，参见 TptpAdapter.setSymbolText() */
+	public void setSymbolText(final ByteBuffer text) {
+		tptpAdapter.setSymbolText(text);
+	}
+
+	/** 头部已分析完毕，之后输入的都是方法记录 */
+	public boolean isParsingRecords() {
+		return state == State.PARSING_RECORDS;
+	}
+
 	public void end() {
 		tptpAdapter.end();
 	}
@@ -0,0 +1,178 @@
+package parser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 以 UTF-8 编码输出到通道的 Writer。编码结果先写入一块较大的直接缓冲区，缓冲区满时整块写出。
+ * 纯 ASCII 字符逐字节直接写入，无需经过 CharsetEncoder
+ */
+public class Utf8ChannelWriter extends Writer {
+
+	/** 默认缓冲区大小 */
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+
+	/** ASCII 快速路径的暂存区 */
+	private final byte[] scratch = new byte[4096];
+
+	/** 上次写入结尾处尚未配对的高位代理字符，没有则为 0 */
+	private char pendingHighSurrogate = 0;
+
+	public Utf8ChannelWriter(final OutputStream os) {
+		this(Channels.newChannel(os), DEFAULT_BUFFER_SIZE);
+	}
+
+	public Utf8ChannelWriter(final OutputStream os, final int bufferSize) {
+		this(Channels.newChannel(os), bufferSize);
+	}
+
+	/**
+	 * @param bufferSize
+	 *            缓冲区大小(字节)，至少为 16
+	 */
+	public Utf8ChannelWriter(final WritableByteChannel ch, final int bufferSize) {
+		this(ch, bufferSize < 16 ? null : ByteBuffer.allocateDirect(bufferSize));
+	}
+
+	/**
+	 * 使用调用者提供的缓冲区，关闭之后可重复用于其他输出(例如批量转换中的缓冲区池)
+	 *
+	 * @param buffer
+	 *            输出缓冲区，通常为直接缓冲区，至少 16 字节，原有内容被丢弃
+	 */
+	public Utf8ChannelWriter(final WritableByteChannel ch, final ByteBuffer buffer) {
+		if (ch == null || buffer == null || buffer.capacity() < 16)
+			throw new IllegalArgumentException();
+		channel = ch;
+		this.buffer = buffer;
+		buffer.clear();
+	}
+
+	@Override
+	public void write(final char[] cbuf, final int off, final int len) throws IOException {
+		final ByteBuffer buf = buffer;
+		final byte[] bytes = scratch;
+		final int end = off + len;
+		int i = off;
+		while (i < end) {
+			// ASCII 快速路径: 先写入堆上的暂存数组，再整块拷贝到直接缓冲区
+			if (pendingHighSurrogate == 0) {
+				final int n = Math.min(Math.min(end - i, buf.remaining()), bytes.length);
+				int k = 0;
+				int bits = 0;
+				for (; k < n; ++k) {
+					final char c = cbuf[i + k];
+					bits |= c;
+					bytes[k] = (byte) c;
+				}
+				if (bits >= 0x80) {
+					// 含有非 ASCII 字符，只保留其之前的部分
+					k = 0;
+					while (cbuf[i + k] < 0x80)
+						++k;
+				}
+				buf.put(bytes, 0, k);
+				i += k;
+				if (i == end)
+					break;
+			}
+			if (buf.remaining() < 4)
+				drain();
+			else if (cbuf[i] >= 0x80 || pendingHighSurrogate != 0)
+				encode(cbuf[i++]);
+		}
+	}
+
+	@Override
+	public void write(final String str, final int off, final int len) throws IOException {
+		final ByteBuffer buf = buffer;
+		final int end = off + len;
+		for (int i = off; i < end; ++i) {
+			if (buf.remaining() < 4)
+				drain();
+			final char c = str.charAt(i);
+			if (c < 0x80 && pendingHighSurrogate == 0)
+				buf.put((byte) c);
+			else
+				encode(c);
+		}
+	}
+
+	@Override
+	public void write(final int c) throws IOException {
+		if (buffer.remaining() < 4)
+			drain();
+		encode((char) c);
+	}
+
+	/** 编码一个字符，调用前须保证缓冲区至少有 4 字节空间 */
+	private void encode(final char c) {
+		final ByteBuffer buf = buffer;
+		if (pendingHighSurrogate != 0) {
+			final char high = pendingHighSurrogate;
+			pendingHighSurrogate = 0;
+			if (Character.isLowSurrogate(c)) {
+				final int cp = Character.toCodePoint(high, c);
+				buf.put((byte) (0xF0 | (cp >> 18)));
+				buf.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				buf.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				buf.put((byte) (0x80 | (cp & 0x3F)));
+				return;
+			}
+			// 未配对的代理字符，与 String.getBytes() 一样以 '?' 代替
+			buf.put((byte) '?');
+		}
+
+		if (c < 0x80) {
+			buf.put((byte) c);
+		} else if (c < 0x800) {
+			buf.put((byte) (0xC0 | (c >> 6)));
+			buf.put((byte) (0x80 | (c & 0x3F)));
+		} else if (Character.isHighSurrogate(c)) {
+			pendingHighSurrogate = c;
+		} else if (Character.isLowSurrogate(c)) {
+			buf.put((byte) '?');
+		} else {
+			buf.put((byte) (0xE0 | (c >> 12)));
+			buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+			buf.put((byte) (0x80 | (c & 0x3F)));
+		}
+	}
+
+	/** 将缓冲区中的数据全部写入通道 */
+	private void drain() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		drain();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!channel.isOpen())
+			return;
+		try {
+			if (pendingHighSurrogate != 0) {
+				pendingHighSurrogate = 0;
+				if (buffer.remaining() < 1)
+					drain();
+				buffer.put((byte) '?');
+			}
+			drain();
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package parser;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * 可重用的字符缓冲区，用于拼接一条 XML 记录。数字直接写入缓冲区，不经过 String 和 Formatter
+ */
+final class XmlRecordBuilder {
+
+	private char[] buf;
+	private int len = 0;
+
+	XmlRecordBuilder() {
+		this(256);
+	}
+
+	XmlRecordBuilder(final int capacity) {
+		buf = new char[capacity];
+	}
+
+	private void ensureCapacity(final int extra) {
+		if (len + extra > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+	}
+
+	XmlRecordBuilder reset() {
+		len = 0;
+		return this;
+	}
+
+	int length() {
+		return len;
+	}
+
+	/** 截断到 n 个字符 */
+	XmlRecordBuilder setLength(final int n) {
+		if (n < 0 || n > len)
+			throw new IndexOutOfBoundsException();
+		len = n;
+		return this;
+	}
+
+	char[] chars() {
+		return buf;
+	}
+
+	/** 同 StringBuilder.append(String)，null 输出为 "null" */
+	XmlRecordBuilder append(String s) {
+		if (s == null)
+			s = "null";
+		final int n = s.length();
+		ensureCapacity(n);
+		s.getChars(0, n, buf, len);
+		len += n;
+		return this;
+	}
+
+	XmlRecordBuilder append(final char c) {
+		ensureCapacity(1);
+		buf[len++] = c;
+		return this;
+	}
+
+	/** 十进制输出，同 String.format("%d") */
+	XmlRecordBuilder append(final long v) {
+		return appendPadded(v, 0);
+	}
+
+	/** 十进制输出，不足 width 位时前补 0，同 String.format("%0<width>d") */
+	XmlRecordBuilder appendPadded(long v, final int width) {
+		if (v == Long.MIN_VALUE)
+			return append(Long.toString(v));
+
+		ensureCapacity(21 + width);
+		int w = width;
+		if (v < 0) {
+			buf[len++] = '-';
+			v = -v;
+			--w;
+		}
+		int digits = 1;
+		for (long t = v / 10; t != 0; t /= 10)
+			++digits;
+		for (; w > digits; --w)
+			buf[len++] = '0';
+		int pos = len + digits;
+		len = pos;
+		do {
+			buf[--pos] = (char) ('0' + (int) (v % 10));
+			v /= 10;
+		} while (v != 0);
+		return this;
+	}
+
+	/** 时间输出，同 String.format("%d.%09d", sec, nsec) */
+	XmlRecordBuilder appendTime(final long sec, final long nsec) {
+		return append(sec).append('.').appendPadded(nsec, 9);
+	}
+
+	void writeTo(final Writer w) throws IOException {
+		w.write(buf, 0, len);
+	}
+
+	@Override
+	public String toString() {
+		return new String(buf, 0, len);
+	}
+}
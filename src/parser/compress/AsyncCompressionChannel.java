@@ -0,0 +1,144 @@
+package parser.compress;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 在独立线程中压缩输出的通道。写入的数据被拷贝到预先分配的数据块中交给压缩线程，
+ * 转换和压缩因此可以并行进行；所有数据块都在使用中时写入方阻塞，以限制内存占用
+ */
+public class AsyncCompressionChannel implements WritableByteChannel {
+
+	/** 默认数据块大小 */
+	public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+	/** 默认数据块个数 */
+	public static final int DEFAULT_CHUNKS = 4;
+
+	private static final class Chunk {
+		final byte[] data;
+		int length = 0;
+
+		Chunk(final int size) {
+			data = new byte[size];
+		}
+	}
+
+	/** 结束标记 */
+	private static final Chunk END = new Chunk(0);
+
+	private final BlockingQueue<Chunk> fullChunks;
+	private final BlockingQueue<Chunk> freeChunks;
+	private final Thread worker;
+
+	private volatile IOException failure = null;
+	private boolean open = true;
+
+	public AsyncCompressionChannel(final OutputStream out, final ICompressionCodec codec) throws IOException {
+		this(out, codec, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNKS);
+	}
+
+	/**
+	 * @param out
+	 *            压缩后数据的输出目标，关闭本通道时一并关闭
+	 * @param chunkSize
+	 *            数据块大小(字节)
+	 * @param chunks
+	 *            数据块个数
+	 */
+	public AsyncCompressionChannel(final OutputStream out, final ICompressionCodec codec, final int chunkSize,
+			final int chunks) throws IOException {
+		if (chunkSize <= 0 || chunks <= 0)
+			throw new IllegalArgumentException();
+
+		fullChunks = new ArrayBlockingQueue<Chunk>(chunks + 1);
+		freeChunks = new ArrayBlockingQueue<Chunk>(chunks);
+		for (int i = 0; i < chunks; ++i)
+			freeChunks.add(new Chunk(chunkSize));
+
+		final OutputStream compressed = codec.wrap(out);
+		worker = new Thread(new Runnable() {
+			public void run() {
+				compress(compressed);
+			}
+		}, "compressor-" + codec.getName());
+		worker.start();
+	}
+
+	/** 压缩线程 */
+	private void compress(final OutputStream compressed) {
+		try {
+			while (true) {
+				final Chunk c = fullChunks.take();
+				if (c == END)
+					break;
+				try {
+					if (failure == null)
+						compressed.write(c.data, 0, c.length);
+				} catch (final IOException e) {
+					failure = e;
+				} catch (final RuntimeException e) {
+					// 出错后继续回收数据块，避免写入方阻塞
+					failure = new IOException(e);
+				}
+				c.length = 0;
+				freeChunks.put(c);
+			}
+			compressed.close();
+		} catch (final IOException e) {
+			if (failure == null)
+				failure = e;
+		} catch (final InterruptedException e) {
+			failure = new InterruptedIOException();
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		final IOException e = failure;
+		if (e != null)
+			throw new IOException("compression failed", e);
+	}
+
+	public int write(final ByteBuffer src) throws IOException {
+		if (!open)
+			throw new ClosedChannelException();
+		checkFailure();
+
+		final int ret = src.remaining();
+		try {
+			while (src.hasRemaining()) {
+				final Chunk c = freeChunks.take();
+				final int n = Math.min(src.remaining(), c.data.length);
+				src.get(c.data, 0, n);
+				c.length = n;
+				fullChunks.put(c);
+			}
+		} catch (final InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		return ret;
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	/** 等待压缩线程处理完所有数据并关闭输出 */
+	public void close() throws IOException {
+		if (!open)
+			return;
+		open = false;
+		try {
+			fullChunks.put(END);
+			worker.join();
+		} catch (final InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		checkFailure();
+	}
+}
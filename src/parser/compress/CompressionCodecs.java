@@ -0,0 +1,36 @@
+package parser.compress;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * 已注册的压缩算法。其他算法(例如 zstd)实现 ICompressionCodec 后通过 register() 注册即可使用
+ */
+public final class CompressionCodecs {
+
+	private static final Map<String, ICompressionCodec> codecs = new LinkedHashMap<String, ICompressionCodec>();
+
+	static {
+		register(new GzipCodec());
+		register(new GzipCodec("gzip-fast", Deflater.BEST_SPEED));
+	}
+
+	private CompressionCodecs() {
+	}
+
+	public static synchronized void register(final ICompressionCodec codec) {
+		codecs.put(codec.getName(), codec);
+	}
+
+	/**
+	 * @return 对应的压缩算法，不存在则抛出 IllegalArgumentException
+	 */
+	public static synchronized ICompressionCodec forName(final String name) {
+		final ICompressionCodec ret = codecs.get(name);
+		if (ret == null)
+			throw new IllegalArgumentException("unknown compression codec : " + name + ", available : "
+					+ codecs.keySet());
+		return ret;
+	}
+}
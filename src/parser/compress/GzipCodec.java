@@ -0,0 +1,47 @@
+package parser.compress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * java.util.zip 提供的 gzip 压缩
+ */
+public class GzipCodec implements ICompressionCodec {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final String name;
+	private final int level;
+
+	/** 默认压缩级别 */
+	public GzipCodec() {
+		this("gzip", Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param level
+	 *            压缩级别，参见 Deflater.setLevel()
+	 */
+	public GzipCodec(final String name, final int level) {
+		this.name = name;
+		this.level = level;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getFileExtension() {
+		return "gz";
+	}
+
+	public OutputStream wrap(final OutputStream out) throws IOException {
+		return new GZIPOutputStream(out, BUFFER_SIZE) {
+			{
+				def.setLevel(level);
+			}
+		};
+	}
+}
@@ -0,0 +1,21 @@
+package parser.compress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 输出文件的压缩算法
+ */
+public interface ICompressionCodec {
+
+	/** 算法名称，用于命令行选项，例如 "gzip" */
+	String getName();
+
+	/** 压缩文件的扩展名，例如 "gz" */
+	String getFileExtension();
+
+	/**
+	 * 在 out 之上构造压缩流，关闭返回的流时应同时关闭 out
+	 */
+	OutputStream wrap(final OutputStream out) throws IOException;
+}
@@ -4,8 +4,6 @@ public class ClassItem {
 	private final int classId;
 	private final String name;
 
-	private boolean logged = false;
-
 	public ClassItem(final int id, final String name) {
 		classId = id;
 		this.name = name;
@@ -19,14 +17,6 @@ public class ClassItem {
 		return classId;
 	}
 
-	public boolean hasLogged() {
-		return logged;
-	}
-
-	public void setLogged(final boolean logged) {
-		this.logged = logged;
-	}
-
 	@Override
 	public String toString() {
 		return "Class : " + name;
@@ -8,8 +8,6 @@ public class MethodItem {
 	private final String name;
 	private final String signature;
 
-	private boolean logged = false;
-
 	public MethodItem(final int id, final long address, final String name, final String signature, final int classid) {
 		methodId = id;
 		this.address = address;
@@ -22,6 +20,10 @@ public class MethodItem {
 		return methodId;
 	}
 
+	public long getAddress() {
+		return address;
+	}
+
 	public String getMethodName() {
 		return name;
 	}
@@ -34,14 +36,6 @@ public class MethodItem {
 		return signature;
 	}
 
-	public boolean hasLogged() {
-		return logged;
-	}
-
-	public void setLogged(final boolean logged) {
-		this.logged = logged;
-	}
-
 	@Override
 	public String toString() {
 		final StringBuilder sb = new StringBuilder("Method : ");
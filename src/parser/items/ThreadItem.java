@@ -1,59 +1,236 @@
 package parser.items;
 
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
 
 public class ThreadItem {
 
+	/** 默认的最大调用栈深度 */
+	public static final int DEFAULT_MAX_CALL_DEPTH = 64 * 1024;
+
+	/**
+	 * 调用栈超过最大深度时的处理方式
+	 */
+	public static enum OverflowPolicy {
+		/**
+		 * 抛出 IllegalStateException
+		 */
+		FAIL,
+
+		/**
+		 * 超出最大深度的调用不入栈，只计数，与之对应的出栈也只减少计数
+		 */
+		TRUNCATE,
+	}
+
+	/** 调用栈第一次分配时的大小 */
+	private static final int INITIAL_CALL_STACK = 32;
+
+	private static final int[] EMPTY_CALL_STACK = new int[0];
+
 	private final int tid;
 	private final String name;
 
-	/** 标志位，标记是否已经记录到日志中 */
-	private boolean logged = false;
-
 	/** 函数调用计数 */
 	private int nextTicket = 0;
 
-	private final LinkedList<MethodItem> callStack = new LinkedList<MethodItem>();
-	private final LinkedList<Integer> callStackTickets = new LinkedList<Integer>();
+	/** 调用栈，栈中各方法的 methodId 和调用序号，被过滤的调用序号为 HIDDEN_TICKET。第一次调用时才分配 */
+	private int[] callStack = EMPTY_CALL_STACK;
+	private int[] callStackTickets = EMPTY_CALL_STACK;
+	private int depth = 0;
+	/** 调用栈中未被过滤的调用数 */
+	private int visibleDepth = 0;
+
+	/** 被过滤的调用的调用序号 */
+	public static final int HIDDEN_TICKET = -1;
+
+	/** 超出最大深度而未入栈的调用数 */
+	private int droppedCalls = 0;
+
+	private int maxCallDepth = DEFAULT_MAX_CALL_DEPTH;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.TRUNCATE;
+
+	/** 最后一条方法记录的时间(in usec)，用于判断线程是否已空闲 */
+	private long lastEventTime = 0;
 
 	public ThreadItem(final int tid, final String name) {
 		this.tid = tid;
 		this.name = name;
 	}
 
+	/**
+	 * 设置最大调用栈深度及超出时的处理方式
+	 */
+	public void setCallDepthLimit(final int maxDepth, final OverflowPolicy policy) {
+		if (maxDepth <= 0 || policy == null)
+			throw new IllegalArgumentException();
+		maxCallDepth = maxDepth;
+		overflowPolicy = policy;
+	}
+
+	public int getThreadId() {
+		return tid;
+	}
+
 	public String getThreadName() {
 		return name;
 	}
 
-	public boolean hasLogged() {
-		return logged;
+	public long getLastEventTime() {
+		return lastEventTime;
 	}
 
-	public void setLogged(final boolean logged) {
-		this.logged = logged;
+	public void setLastEventTime(final long time) {
+		lastEventTime = time;
 	}
 
-	/** 函数压栈 */
-	public void pushMethodCall(final MethodItem m) {
-		callStack.addLast(m);
-		callStackTickets.addLast(Integer.valueOf(nextTicket++));
+	/**
+	 * 函数压栈
+	 *
+	 * @return false, 超出最大深度，调用未入栈
+	 */
+	public boolean pushMethodCall(final MethodItem m) {
+		return pushMethodCall(m, false);
 	}
 
-	/** 函数出栈 */
-	public void popMethodCall(final MethodItem m) {
-		final MethodItem poped = callStack.removeLast();
-		callStackTickets.removeLast();
-		if (m != poped)
+	/**
+	 * 函数压栈
+	 *
+	 * @param hidden
+	 *            被过滤的调用，只用于保持调用栈一致，不分配调用序号
+	 * @return false, 超出最大深度，调用未入栈
+	 */
+	public boolean pushMethodCall(final MethodItem m, final boolean hidden) {
+		if (depth == maxCallDepth) {
+			if (overflowPolicy == OverflowPolicy.FAIL)
+				throw new IllegalStateException("calling stack of thread " + tid + " exceeds max depth "
+						+ maxCallDepth);
+			++droppedCalls;
+			return false;
+		}
+		if (depth == callStack.length) {
+			final int len = (int) Math.min(Math.max((long) depth * 2, INITIAL_CALL_STACK), maxCallDepth);
+			callStack = Arrays.copyOf(callStack, len);
+			callStackTickets = Arrays.copyOf(callStackTickets, len);
+		}
+		callStack[depth] = m.getMethodId();
+		if (hidden) {
+			callStackTickets[depth] = HIDDEN_TICKET;
+		} else {
+			callStackTickets[depth] = nextTicket++;
+			++visibleDepth;
+		}
+		++depth;
+		return true;
+	}
+
+	/**
+	 * 函数出栈
+	 *
+	 * @return false, 出栈的是超出最大深度而未入栈的调用
+	 */
+	public boolean popMethodCall(final MethodItem m) {
+		if (droppedCalls > 0) {
+			--droppedCalls;
+			return false;
+		}
+		if (depth == 0)
+			throw new NoSuchElementException();
+		if (m.getMethodId() != callStack[--depth])
 			throw new IllegalArgumentException("calling stack with wrong state");
+		if (callStackTickets[depth] != HIDDEN_TICKET)
+			--visibleDepth;
+		return true;
 	}
 
-	/** 调用栈深度 */
+	/** 调用栈深度(不含未入栈的调用) */
 	public int getDepthOfCallStack() {
-		return callStack.size();
+		return depth;
+	}
+
+	/** 调用栈中未被过滤的调用数 */
+	public int getVisibleDepthOfCallStack() {
+		return visibleDepth;
+	}
+
+	/** 栈顶是否为被过滤的调用 */
+	public boolean isCurrentMethodHidden() {
+		return depth > 0 && callStackTickets[depth - 1] == HIDDEN_TICKET;
+	}
+
+	/** 栈顶是否为超出最大深度而未入栈的调用 */
+	public boolean isInDroppedCall() {
+		return droppedCalls > 0;
+	}
+
+	/** 超出最大深度而未入栈的调用数 */
+	public int getDroppedCalls() {
+		return droppedCalls;
+	}
+
+	/** 第 d 层调用(0 为栈底)的 methodId */
+	public int getMethodIdAt(final int d) {
+		if (d < 0 || d >= depth)
+			throw new IndexOutOfBoundsException();
+		return callStack[d];
+	}
+
+	/** 第 d 层调用(0 为栈底)的调用序号，被过滤的调用为 HIDDEN_TICKET */
+	public int getTicketAt(final int d) {
+		if (d < 0 || d >= depth)
+			throw new IndexOutOfBoundsException();
+		return callStackTickets[d];
+	}
+
+	/** 下一个调用的调用序号 */
+	public int getNextTicket() {
+		return nextTicket;
+	}
+
+	/**
+	 * 恢复调用栈及调用计数(例如从索引的检查点)，超出最大深度的部分按 OverflowPolicy 处理
+	 *
+	 * @param methodIds
+	 *            各层调用的 methodId，0 为栈底
+	 * @param tickets
+	 *            各层调用的调用序号，被过滤的调用为 HIDDEN_TICKET
+	 */
+	public void restoreCallStack(final int[] methodIds, final int[] tickets, int depth, final int nextTicket,
+			int droppedCalls) {
+		if (depth < 0 || nextTicket < 0 || droppedCalls < 0)
+			throw new IllegalArgumentException();
+		if (depth + droppedCalls > maxCallDepth) {
+			if (overflowPolicy == OverflowPolicy.FAIL)
+				throw new IllegalStateException("calling stack of thread " + tid + " exceeds max depth "
+						+ maxCallDepth);
+			droppedCalls += Math.max(depth - maxCallDepth, 0);
+			depth = Math.min(depth, maxCallDepth);
+		}
+		callStack = Arrays.copyOf(methodIds, Math.max(depth, INITIAL_CALL_STACK));
+		callStackTickets = Arrays.copyOf(tickets, Math.max(depth, INITIAL_CALL_STACK));
+		this.depth = depth;
+		visibleDepth = 0;
+		for (int d = 0; d < depth; ++d)
+			if (tickets[d] != HIDDEN_TICKET)
+				++visibleDepth;
+		this.nextTicket = nextTicket;
+		this.droppedCalls = droppedCalls;
+	}
+
+	/**
+	 * 释放调用栈占用的数组(例如线程已结束)，之后再有调用时重新分配。调用栈须为空
+	 */
+	public void releaseCallStack() {
+		if (depth != 0 || droppedCalls != 0)
+			throw new IllegalStateException("calling stack of thread " + tid + " is not empty");
+		callStack = EMPTY_CALL_STACK;
+		callStackTickets = EMPTY_CALL_STACK;
 	}
 
 	public int getTicketOfCurrentMethod() {
-		return callStackTickets.getLast();
+		if (depth == 0)
+			throw new NoSuchElementException();
+		return callStackTickets[depth - 1];
 	}
 
 	@Override
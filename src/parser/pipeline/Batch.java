@@ -0,0 +1,25 @@
+package parser.pipeline;
+
+/**
+ * 在流水线各阶段之间传递的一批数据
+ */
+abstract class Batch {
+
+	/** 批中的元素个数 */
+	int size = 0;
+
+	/** 是否是最后一批 */
+	boolean last = false;
+
+	/** 批的容量 */
+	abstract int capacity();
+
+	boolean isFull() {
+		return size >= capacity();
+	}
+
+	void clear() {
+		size = 0;
+		last = false;
+	}
+}
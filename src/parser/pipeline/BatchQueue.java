@@ -0,0 +1,43 @@
+package parser.pipeline;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 连接相邻两个阶段的有界队列。批对象预先分配并循环使用: 上游从空闲队列取批、填满后发布，
+ * 下游处理完毕后归还。空闲批用完时上游阻塞，以此实现背压
+ */
+final class BatchQueue<T extends Batch> {
+
+	private final BlockingQueue<T> free;
+	private final BlockingQueue<T> full;
+
+	BatchQueue(final T[] batches) {
+		free = new ArrayBlockingQueue<T>(batches.length);
+		full = new ArrayBlockingQueue<T>(batches.length);
+		for (int i = 0; i < batches.length; ++i)
+			free.add(batches[i]);
+	}
+
+	/** 上游: 取得一个空批 */
+	T acquire() throws InterruptedException {
+		final T ret = free.take();
+		ret.clear();
+		return ret;
+	}
+
+	/** 上游: 发布填好的批 */
+	void publish(final T batch) throws InterruptedException {
+		full.put(batch);
+	}
+
+	/** 下游: 取得下一个待处理的批 */
+	T take() throws InterruptedException {
+		return full.take();
+	}
+
+	/** 下游: 归还处理完的批 */
+	void release(final T batch) {
+		free.add(batch);
+	}
+}
@@ -0,0 +1,47 @@
+package parser.pipeline;
+
+/**
+ * 适配后的 TPTP 事件。方法进入/退出以并列的原生类型数组保存，其余(少量的)事件保存为延迟调用
+ */
+final class EventBatch extends Batch {
+
+	static final byte METHOD_ENTRY = 0;
+	static final byte METHOD_EXIT = 1;
+	static final byte CALL = 2;
+
+	final byte[] kind;
+	final int[] tid;
+	final int[] cid;
+	final long[] mid;
+	final long[] timeSec;
+	final long[] timeNsec;
+	final int[] ticket;
+	final int[] stackDepth;
+	final long[] threadCpuTime;
+	final Runnable[] calls;
+
+	EventBatch(final int capacity) {
+		kind = new byte[capacity];
+		tid = new int[capacity];
+		cid = new int[capacity];
+		mid = new long[capacity];
+		timeSec = new long[capacity];
+		timeNsec = new long[capacity];
+		ticket = new int[capacity];
+		stackDepth = new int[capacity];
+		threadCpuTime = new long[capacity];
+		calls = new Runnable[capacity];
+	}
+
+	@Override
+	int capacity() {
+		return kind.length;
+	}
+
+	@Override
+	void clear() {
+		for (int i = 0; i < size; ++i)
+			calls[i] = null;
+		super.clear();
+	}
+}
@@ -0,0 +1,9 @@
+package parser.pipeline;
+
+/**
+ * 流水线中某个阶段出错后，其余阶段被中断时抛出
+ */
+class PipelineInterruptedException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+}
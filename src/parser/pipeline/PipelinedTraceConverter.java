@@ -0,0 +1,268 @@
+package parser.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+import parser.ITptpHandler;
+import parser.TptpAdapter;
+import parser.TraceFileScaner;
+import parser.TraceRecordParser;
+import parser.record.ActionRecord;
+import parser.record.RecordDecoder;
+
+/**
+ * 流水线方式的转换: 读取、解码、适配、写入四个阶段分别在独立的线程中运行，
+ * 阶段之间以有界的批队列连接。总耗时取决于最慢的阶段，而不是各阶段之和
+ *
+ * <pre>
+ * 读取(RawBatch) -&gt; 解码(RecordBatch) -&gt; 适配(EventBatch) -&gt; 写入(ITptpHandler)
+ * </pre>
+ */
+public class PipelinedTraceConverter {
+
+	/** 默认每批的记录数 */
+	public static final int DEFAULT_BATCH_SIZE = 4096;
+	/** 默认每个队列中的批数 */
+	public static final int DEFAULT_QUEUE_DEPTH = 4;
+
+	private static final Logger logger = Logger.getLogger(PipelinedTraceConverter.class.getCanonicalName());
+
+	private final File traceFile;
+	private final ITptpHandler handler;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int queueDepth = DEFAULT_QUEUE_DEPTH;
+
+	private Thread[] threads = new Thread[0];
+	private Throwable failure = null;
+
+	/**
+	 * @param f
+	 *            Android Trace 文件
+	 * @param handler
+	 *            TPTP Trace 记录的处理者，在写入线程中被调用
+	 */
+	public PipelinedTraceConverter(final File f, final ITptpHandler handler) {
+		traceFile = f;
+		this.handler = handler;
+	}
+
+	public void setBatchSize(final int size) {
+		if (size <= 0)
+			throw new IllegalArgumentException();
+		batchSize = size;
+	}
+
+	public void setQueueDepth(final int depth) {
+		if (depth <= 0)
+			throw new IllegalArgumentException();
+		queueDepth = depth;
+	}
+
+	/**
+	 * 流水线中的一个阶段。任何一个阶段出错，其余阶段都会被中断
+	 */
+	private abstract class Stage implements Runnable {
+
+		abstract void process() throws Exception;
+
+		public void run() {
+			try {
+				process();
+			} catch (final InterruptedException e) {
+				// 被其他阶段中断
+			} catch (final PipelineInterruptedException e) {
+				// 被其他阶段中断
+			} catch (final Throwable t) {
+				fail(t);
+			}
+		}
+	}
+
+	private synchronized void fail(final Throwable t) {
+		if (failure != null)
+			return;
+		failure = t;
+		for (int i = 0; i < threads.length; ++i)
+			threads[i].interrupt();
+	}
+
+	/** 执行转换，返回时所有事件都已交给 handler */
+	public void process() throws IOException {
+		final RawBatch[] raws = new RawBatch[queueDepth];
+		final RecordBatch[] records = new RecordBatch[queueDepth];
+		final EventBatch[] events = new EventBatch[queueDepth];
+		for (int i = 0; i < queueDepth; ++i) {
+			records[i] = new RecordBatch(batchSize);
+			events[i] = new EventBatch(batchSize);
+		}
+		final BatchQueue<RecordBatch> recordQueue = new BatchQueue<RecordBatch>(records);
+		final BatchQueue<EventBatch> eventQueue = new BatchQueue<EventBatch>(events);
+
+		final QueuedTptpHandler queued = new QueuedTptpHandler(eventQueue, handler);
+		final TptpAdapter adapter = new TptpAdapter(queued);
+		final TraceRecordParser parser = new TraceRecordParser(adapter);
+		final TraceFileScaner scaner = new TraceFileScaner(traceFile, parser);
+
+		// 写入阶段先启动，头部产生的事件也经由队列写入
+		final Thread writer = new Thread(new Stage() {
+			@Override
+			void process() throws InterruptedException {
+				while (true) {
+					final EventBatch b = eventQueue.take();
+					queued.replay(b);
+					final boolean last = b.last;
+					eventQueue.release(b);
+					if (last)
+						break;
+				}
+			}
+		}, "pipeline-writer");
+		synchronized (this) {
+			failure = null;
+			threads = new Thread[] { writer };
+		}
+		writer.start();
+
+		// 头部在当前线程中分析
+		final long dataStart;
+		final int recordSize;
+		final RecordDecoder recordDecoder;
+		try {
+			dataStart = scaner.processHeader();
+			recordSize = scaner.getRecordSize();
+			recordDecoder = parser.getRecordDecoder();
+		} catch (final RuntimeException e) {
+			fail(e);
+			join();
+			throw e;
+		} catch (final IOException e) {
+			fail(e);
+			join();
+			throw e;
+		}
+
+		for (int i = 0; i < queueDepth; ++i)
+			raws[i] = new RawBatch(batchSize, recordSize);
+		final BatchQueue<RawBatch> rawQueue = new BatchQueue<RawBatch>(raws);
+
+		final Thread reader = new Thread(new Stage() {
+			@Override
+			void process() throws IOException, InterruptedException {
+				final RandomAccessFile raf = new RandomAccessFile(traceFile, "r");
+				try {
+					final FileChannel fc = raf.getChannel();
+					final long totalLength = fc.size() - dataStart;
+					long pos = dataStart;
+					int lastPercent = 0;
+					while (true) {
+						final RawBatch b = rawQueue.acquire();
+						b.buffer.clear();
+						while (b.buffer.hasRemaining()) {
+							if (fc.read(b.buffer, pos + b.buffer.position()) < 0)
+								break;
+						}
+						b.size = b.buffer.position() / recordSize;
+						b.last = b.buffer.hasRemaining();
+						pos += b.buffer.position();
+						rawQueue.publish(b);
+						if (b.last)
+							break;
+
+						// log
+						if ((pos - dataStart) * 100 / totalLength - lastPercent >= 1) {
+							lastPercent = (int) ((pos - dataStart) * 100 / totalLength);
+							logger.info(String.format("processed %d%%", lastPercent));
+						}
+					}
+				} finally {
+					raf.close();
+				}
+			}
+		}, "pipeline-reader");
+
+		final Thread decoder = new Thread(new Stage() {
+			@Override
+			void process() throws InterruptedException {
+				final ActionRecord ar = new ActionRecord();
+				while (true) {
+					final RawBatch raw = rawQueue.take();
+					final RecordBatch rec = recordQueue.acquire();
+					for (int i = 0; i < raw.size; ++i) {
+						recordDecoder.decode(raw.buffer, i * recordSize, ar);
+						rec.threadId[i] = ar.getThreadId();
+						rec.methodAddr[i] = ar.getMethodAddr();
+						rec.methodAction[i] = ar.getMethodActionCode();
+						rec.deltaTime[i] = ar.getDeltaTime();
+						rec.cpuTime[i] = ar.getCpuTime();
+					}
+					rec.size = raw.size;
+					rec.last = raw.last;
+					rawQueue.release(raw);
+					recordQueue.publish(rec);
+					if (rec.last)
+						break;
+				}
+			}
+		}, "pipeline-decoder");
+
+		final Thread adapting = new Thread(new Stage() {
+			@Override
+			void process() throws InterruptedException {
+				while (true) {
+					final RecordBatch rec = recordQueue.take();
+					for (int i = 0; i < rec.size; ++i)
+						adapter.addMethodAction(rec.threadId[i], rec.methodAddr[i], rec.methodAction[i],
+								rec.deltaTime[i], rec.cpuTime[i]);
+					final boolean last = rec.last;
+					recordQueue.release(rec);
+					if (last) {
+						parser.end();
+						queued.finish();
+						break;
+					}
+				}
+			}
+		}, "pipeline-adapter");
+
+		synchronized (this) {
+			threads = new Thread[] { reader, decoder, adapting, writer };
+			if (failure != null)
+				writer.interrupt();
+		}
+		reader.start();
+		decoder.start();
+		adapting.start();
+		join();
+
+		final Throwable t = failure;
+		if (t instanceof IOException)
+			throw (IOException) t;
+		if (t instanceof RuntimeException)
+			throw (RuntimeException) t;
+		if (t instanceof Error)
+			throw (Error) t;
+		if (t != null)
+			throw new RuntimeException(t);
+		logger.info("processing done.");
+	}
+
+	private void join() {
+		final Thread[] ts;
+		synchronized (this) {
+			ts = threads;
+		}
+		for (int i = 0; i < ts.length; ++i) {
+			while (ts[i].isAlive()) {
+				try {
+					ts[i].join();
+				} catch (final InterruptedException e) {
+					fail(e);
+				}
+			}
+		}
+	}
+}
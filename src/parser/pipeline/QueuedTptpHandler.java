@@ -0,0 +1,250 @@
+package parser.pipeline;
+
+import parser.ITptpHandler;
+
+/**
+ * 将 TptpAdapter 产生的事件写入 EventBatch，交给写入阶段在另一个线程中回放到真正的 ITptpHandler
+ */
+final class QueuedTptpHandler implements ITptpHandler {
+
+	private final BatchQueue<EventBatch> queue;
+	private final ITptpHandler target;
+
+	private EventBatch current = null;
+
+	/**
+	 * @param target
+	 *            回放的目标，由写入阶段调用
+	 */
+	QueuedTptpHandler(final BatchQueue<EventBatch> queue, final ITptpHandler target) {
+		this.queue = queue;
+		this.target = target;
+	}
+
+	/** 取得当前批中的下一个位置，填写完成后须调用 afterWrite() */
+	private int next() {
+		try {
+			if (current == null)
+				current = queue.acquire();
+			return current.size++;
+		} catch (final InterruptedException e) {
+			throw new PipelineInterruptedException();
+		}
+	}
+
+	/** 当前批已满时发布 */
+	private void afterWrite() {
+		if (current.isFull()) {
+			try {
+				queue.publish(current);
+			} catch (final InterruptedException e) {
+				throw new PipelineInterruptedException();
+			}
+			current = null;
+		}
+	}
+
+	private void defer(final Runnable call) {
+		final int i = next();
+		current.kind[i] = EventBatch.CALL;
+		current.calls[i] = call;
+		afterWrite();
+	}
+
+	/** 发布最后一批 */
+	void finish() throws InterruptedException {
+		if (current == null)
+			current = queue.acquire();
+		current.last = true;
+		queue.publish(current);
+		current = null;
+	}
+
+	/** 写入阶段: 回放一批事件 */
+	void replay(final EventBatch b) {
+		final ITptpHandler h = target;
+		for (int i = 0; i < b.size; ++i) {
+			switch (b.kind[i]) {
+			case EventBatch.METHOD_ENTRY:
+				h.handleMethodEntry(b.tid[i], b.cid[i], b.mid[i], b.timeSec[i], b.timeNsec[i], b.ticket[i],
+						b.stackDepth[i], b.threadCpuTime[i]);
+				break;
+
+			case EventBatch.METHOD_EXIT:
+				h.handleMethodExit(b.tid[i], b.cid[i], b.mid[i], b.timeSec[i], b.timeNsec[i], b.ticket[i],
+						b.threadCpuTime[i]);
+				break;
+
+			default:
+				b.calls[i].run();
+				break;
+			}
+		}
+	}
+
+	public void handleMethodEntry(final int tid, final int cid, final long mid, final long timeUTCSec,
+			final long timeUTCNsec, final int ticket, final int stackDepth, final long threadCpuTime) {
+		final int i = next();
+		final EventBatch b = current;
+		b.kind[i] = EventBatch.METHOD_ENTRY;
+		b.tid[i] = tid;
+		b.cid[i] = cid;
+		b.mid[i] = mid;
+		b.timeSec[i] = timeUTCSec;
+		b.timeNsec[i] = timeUTCNsec;
+		b.ticket[i] = ticket;
+		b.stackDepth[i] = stackDepth;
+		b.threadCpuTime[i] = threadCpuTime;
+		afterWrite();
+	}
+
+	public void handleMethodExit(final int tid, final int cid, final long mid, final long timeUTCSec,
+			final long timeUTCNsec, final int ticket, final long threadCpuTime) {
+		final int i = next();
+		final EventBatch b = current;
+		b.kind[i] = EventBatch.METHOD_EXIT;
+		b.tid[i] = tid;
+		b.cid[i] = cid;
+		b.mid[i] = mid;
+		b.timeSec[i] = timeUTCSec;
+		b.timeNsec[i] = timeUTCNsec;
+		b.ticket[i] = ticket;
+		b.threadCpuTime[i] = threadCpuTime;
+		afterWrite();
+	}
+
+	public void handleStart() {
+		defer(new Runnable() {
+			public void run() {
+				target.handleStart();
+			}
+		});
+	}
+
+	public void handleEnd() {
+		defer(new Runnable() {
+			public void run() {
+				target.handleEnd();
+			}
+		});
+	}
+
+	public void handleNode(final String id, final String host, final String ip, final int timezone,
+			final long timeUTCSec, final long timeUTCNsec) {
+		defer(new Runnable() {
+			public void run() {
+				target.handleNode(id, host, ip, timezone, timeUTCSec, timeUTCNsec);
+			}
+		});
+	}
+
+	public void handleProcessCreate(final String uuid, final int pid, final String nodeId, final long timeUTCSec,
+			final long timeUTCNsec) {
+		defer(new Runnable() {
+			public void run() {
+				target.handleProcessCreate(uuid, pid, nodeId, timeUTCSec, timeUTCNsec);
+			}
+		});
+	}
+
+	public void handleAgentCreate(final String uuid, final String version, final String puuid, final String name,
+			final String type, final String parameters, final long timeUTCSec, final long timeUTCNsec) {
+		defer(new Runnable() {
+			public void run() {
+				target.handleAgentCreate(uuid, version, puuid, name, type, parameters, timeUTCSec, timeUTCNsec);
+			}
+		});
+	}
+
+	public void handleAgentDestroy(final String uuid, final long timeUTCSec, final long timeUTCNsec) {
+		defer(new Runnable() {
+			public void run() {
+				target.handleAgentDestroy(uuid, timeUTCSec, timeUTCNsec);
+			}
+		});
+	}
+
+	public void handleTraceStart(final String uuid, final String auuid, final long timeUTCSec, final long timeUTCNsec) {
+		defer(new Runnable() {
+			public void run() {
+				target.handleTraceStart(uuid, auuid, timeUTCSec, timeUTCNsec);
+			}
+		});
+	}
+
+	public void handleRuntimeInitDone(final int tid, final long timeUTCSec, final long timeUTCNsec) {
+		defer(new Runnable() {
+			public void run() {
+				target.handleRuntimeInitDone(tid, timeUTCSec, timeUTCNsec);
+			}
+		});
+	}
+
+	public void handleRuntimeShutdown(final long timeUTCSec, final long timeUTCNSec) {
+		defer(new Runnable() {
+			public void run() {
+				target.handleRuntimeShutdown(timeUTCSec, timeUTCNSec);
+			}
+		});
+	}
+
+	public void handleFilter(final String pattern, final String mode, final String genericPattern,
+			final String methodPattern, final String methodMode, final String methodGenericPattern) {
+		defer(new Runnable() {
+			public void run() {
+				target.handleFilter(pattern, mode, genericPattern, methodPattern, methodMode, methodGenericPattern);
+			}
+		});
+	}
+
+	public void handleOption(final String key, final String value) {
+		defer(new Runnable() {
+			public void run() {
+				target.handleOption(key, value);
+			}
+		});
+	}
+
+	public void handleThreadStart(final int tid, final long timeUTCSec, final long timeUTCNsec, final String name,
+			final String group, final String parent) {
+		defer(new Runnable() {
+			public void run() {
+				target.handleThreadStart(tid, timeUTCSec, timeUTCNsec, name, group, parent);
+			}
+		});
+	}
+
+	public void handleTraceEnd(final long timeUTCSec, final long timeUTCNsec) {
+		defer(new Runnable() {
+			public void run() {
+				target.handleTraceEnd(timeUTCSec, timeUTCNsec);
+			}
+		});
+	}
+
+	public void handleThreadEnd(final int tid, final long timeUTCSec, final long timeUTCNsec) {
+		defer(new Runnable() {
+			public void run() {
+				target.handleThreadEnd(tid, timeUTCSec, timeUTCNsec);
+			}
+		});
+	}
+
+	public void handleClassDef(final int cid, final String name, final String sourceFile, final long timeUTCSec,
+			final long timeUTCNsec) {
+		defer(new Runnable() {
+			public void run() {
+				target.handleClassDef(cid, name, sourceFile, timeUTCSec, timeUTCNsec);
+			}
+		});
+	}
+
+	public void handleMethodDef(final long mid, final String name, final String signature, final int startLine,
+			final int endLine, final int classId) {
+		defer(new Runnable() {
+			public void run() {
+				target.handleMethodDef(mid, name, signature, startLine, endLine, classId);
+			}
+		});
+	}
+}
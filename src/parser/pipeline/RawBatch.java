@@ -0,0 +1,26 @@
+package parser.pipeline;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 从文件中读出的一段原始方法记录
+ */
+final class RawBatch extends Batch {
+
+	final byte[] data;
+	final ByteBuffer buffer;
+	final int recordSize;
+
+	RawBatch(final int records, final int recordSize) {
+		this.recordSize = recordSize;
+		data = new byte[records * recordSize];
+		buffer = ByteBuffer.wrap(data);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	@Override
+	int capacity() {
+		return data.length / recordSize;
+	}
+}
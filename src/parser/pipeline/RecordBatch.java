@@ -0,0 +1,26 @@
+package parser.pipeline;
+
+/**
+ * 解码后的方法记录，以并列的原生类型数组保存
+ */
+final class RecordBatch extends Batch {
+
+	final int[] threadId;
+	final long[] methodAddr;
+	final int[] methodAction;
+	final long[] deltaTime;
+	final long[] cpuTime;
+
+	RecordBatch(final int capacity) {
+		threadId = new int[capacity];
+		methodAddr = new long[capacity];
+		methodAction = new int[capacity];
+		deltaTime = new long[capacity];
+		cpuTime = new long[capacity];
+	}
+
+	@Override
+	int capacity() {
+		return threadId.length;
+	}
+}
@@ -1,5 +1,7 @@
 package parser.record;
 
+import java.nio.ByteBuffer;
+
 /**
  * android trace 二进制记录
  *
@@ -18,31 +20,68 @@ public class ActionRecord {
 		RESERVED,
 	}
 
+	/** 动作码: method entry */
+	public static final int ACTION_ENTRY = 0;
+	/** 动作码: method exit */
+	public static final int ACTION_EXIT = 1;
+	/** 动作码: method "exited" when unrolled by exception handling */
+	public static final int ACTION_EXIT_EXCEPTION = 2;
+	/** 动作码: (reserved) */
+	public static final int ACTION_RESERVED = 3;
+
+	/** 记录中没有线程 CPU 时间 */
+	public static final long NO_CPU_TIME = -1;
+
+	// 以下字段由 RecordDecoder 填写
+
 	// thread id
-	private int threadId;
+	int threadId;
 	// method id/address
-	private long methodAddr;
+	long methodAddr;
 	// method action
-	private int methodAction;
+	int methodAction;
 	// time delta since start(in usec)
-	private long deltaTime;
+	long deltaTime;
+	// thread cpu time(in usec)
+	long cpuTime = NO_CPU_TIME;
+
+	/** wrap() 使用的版本 3 双时钟格式 */
+	private static final RecordDecoder DUAL_CLOCK = RecordDecoder.dualClock();
+
+	/**
+	 * 构造一个空记录，之后通过 wrap() 指向缓冲区中的记录。同一个对象可以反复重用，解析过程中不产生新对象
+	 */
+	public ActionRecord() {
+	}
 
 	public ActionRecord(byte[] buf) {
 		this(buf, 0);
 	}
 
 	public ActionRecord(byte[] buf, int off) {
-		threadId = (buf[off] & 0xFF) | ((buf[off + 1] & 0xFF) << 8);
-
-		long methodAddress = (buf[off + 2] & 0xFFL) | ((buf[off + 3] & 0xFFL) << 8) |
-				((buf[off + 4] & 0xFFL) << 16) | ((buf[off + 5] & 0xFFL) << 24);
-
-		methodAction = (int) (methodAddress & 0x03);
+		wrap(buf, off);
+	}
 
-		methodAddr = methodAddress & (~0x03L);
+	/**
+	 * 将记录重新指向 buf 中 off 位置的二进制记录(版本 3 双时钟格式，其它格式使用 RecordDecoder)
+	 *
+	 * @return this
+	 */
+	public ActionRecord wrap(byte[] buf, int off) {
+		DUAL_CLOCK.decode(buf, off, this);
+		return this;
+	}
 
-		deltaTime = (buf[off + 6] & 0xFFL) | ((buf[off + 7] & 0xFFL) << 8) |
-				((buf[off + 8] & 0xFFL) << 16) | ((buf[off + 9] & 0xFFL) << 24);
+	/**
+	 * 将记录重新指向 buf 中 off 位置的二进制记录(版本 3 双时钟格式，其它格式使用 RecordDecoder)
+	 *
+	 * @param buf
+	 *            须为小端字节序
+	 * @return this
+	 */
+	public ActionRecord wrap(ByteBuffer buf, int off) {
+		DUAL_CLOCK.decode(buf, off, this);
+		return this;
 	}
 
 	public int getThreadId() {
@@ -53,6 +92,13 @@ public class ActionRecord {
 		return methodAddr;
 	}
 
+	/**
+	 * @return 动作码，参见 ACTION_ENTRY 等常量
+	 */
+	public int getMethodActionCode() {
+		return methodAction;
+	}
+
 	public MethodAction getMethodAction() {
 		switch (methodAction) {
 		case 0:
@@ -76,6 +122,12 @@ public class ActionRecord {
 		return deltaTime;
 	}
 
+	/** 线程 CPU 时间(in usec)，没有则为 NO_CPU_TIME */
+	public long getCpuTime() {
+		return cpuTime;
+	}
+
+	/** 版本 3 双时钟记录的长度，其它格式参见 RecordDecoder.getRecordSize() */
 	public static int size() {
 		return 9 + 5;
 	}
@@ -1,5 +1,7 @@
 package parser.record;
 
+import java.nio.ByteBuffer;
+
 /**
  * android trace 二进制头部
  *
@@ -15,6 +17,8 @@ public class HeaderRecord {
 	private int offset;
 	// 起始时间
 	private long startDateTime; // in usec
+	// 方法记录长度
+	private int recordSize;
 
 	public HeaderRecord(byte[] buf) {
 		this(buf, 0);
@@ -34,6 +38,54 @@ public class HeaderRecord {
 				((buf[off + 10] & 0xFFL) << 16) | ((buf[off + 11] & 0xFFL) << 24) |
 				((buf[off + 12] & 0xFFL) << 32) | ((buf[off + 13] & 0xFFL) << 40) |
 				((buf[off + 14] & 0xFFL) << 48) | ((buf[off + 15] & 0xFFL) << 56);
+
+		recordSize = defaultRecordSize(version);
+	}
+
+	/**
+	 * @param buf
+	 *            须为小端字节序
+	 */
+	public HeaderRecord(ByteBuffer buf, int off) {
+		magic = buf.getInt(off);
+		if (magic != 0x574f4c53)
+			throw new RuntimeException();
+
+		version = buf.getShort(off + 4) & 0xFFFF;
+
+		offset = buf.getShort(off + 6) & 0xFFFF;
+
+		startDateTime = buf.getLong(off + 8);
+
+		recordSize = defaultRecordSize(version);
+	}
+
+	/** 版本 1、2 的记录长度是固定的，版本 3 由头部扩展部分给出 */
+	private static int defaultRecordSize(final int version) {
+		switch (version) {
+		case 1:
+			return 9;
+		case 2:
+			return 10;
+		default:
+			return 14;
+		}
+	}
+
+	/**
+	 * 读取版本 3 头部的扩展部分(紧跟在前 16 字节之后): 记录长度(u2)
+	 *
+	 * @param buf
+	 *            须为小端字节序
+	 */
+	public void readExtension(ByteBuffer buf, int off) {
+		if (version >= 3)
+			recordSize = buf.getShort(off) & 0xFFFF;
+	}
+
+	public void readExtension(byte[] buf, int off) {
+		if (version >= 3)
+			recordSize = (buf[off] & 0xFF) | ((buf[off + 1] & 0xFF) << 8);
 	}
 
 	public int getMagic() {
@@ -52,7 +104,18 @@ public class HeaderRecord {
 		return startDateTime;
 	}
 
+	/** 方法记录长度 */
+	public int getRecordSize() {
+		return recordSize;
+	}
+
+	/** 各版本共有部分的长度 */
 	public static int size() {
 		return 16;
 	}
+
+	/** 版本 3 扩展部分(记录长度)的长度 */
+	public static int extensionSize() {
+		return 2;
+	}
 }
@@ -0,0 +1,220 @@
+package parser.record;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 二进制方法记录的解码器，分析二进制头部时按文件版本、记录长度及时钟选定，之后每条记录只调用 decode()
+ *
+ * <ul>
+ * <li>版本 1: 线程 id(u1)、方法(u4)、时间(u4)，共 9 字节</li>
+ * <li>版本 2: 线程 id(u2)、方法(u4)、时间(u4)，共 10 字节</li>
+ * <li>版本 3: 记录长度由二进制头部给出。单时钟时与版本 2 相同；双时钟时为线程 id(u2)、方法(u4)、
+ * 线程 CPU 时间(u4)、墙上时间(u4)，共 14 字节。超出的部分忽略</li>
+ * </ul>
+ * 方法字的低两位为动作码。有墙上时间时以墙上时间作为记录的时间，线程 CPU 时间另外给出
+ */
+public abstract class RecordDecoder {
+
+	/**
+	 * 记录中的时钟，即文本头部中的 clock 选项
+	 */
+	public static enum Clock {
+		THREAD_CPU, WALL, DUAL,
+	}
+
+	/** 双时钟记录的最小长度 */
+	private static final int DUAL_CLOCK_RECORD_SIZE = 14;
+
+	private final int recordSize;
+
+	protected RecordDecoder(final int recordSize) {
+		this.recordSize = recordSize;
+	}
+
+	/** 每条记录的长度 */
+	public int getRecordSize() {
+		return recordSize;
+	}
+
+	/** 记录中是否有线程 CPU 时间 */
+	public abstract boolean hasCpuTime();
+
+	/**
+	 * 解码 buf 中 off 位置的记录
+	 *
+	 * @param buf
+	 *            须为小端字节序
+	 */
+	public abstract void decode(ByteBuffer buf, int off, ActionRecord r);
+
+	/**
+	 * 同 decode(ByteBuffer, int, ActionRecord)，直接从数组中按小端字节序读取
+	 */
+	public abstract void decode(byte[] buf, int off, ActionRecord r);
+
+	/** 小端 u2 */
+	private static int getU2(final byte[] buf, final int off) {
+		return (buf[off] & 0xFF) | ((buf[off + 1] & 0xFF) << 8);
+	}
+
+	/** 小端 u4 */
+	private static int getInt(final byte[] buf, final int off) {
+		return (buf[off] & 0xFF) | ((buf[off + 1] & 0xFF) << 8) | ((buf[off + 2] & 0xFF) << 16)
+				| (buf[off + 3] << 24);
+	}
+
+	/** 解析文本头部中 clock 选项的值，不认识则返回 null */
+	public static Clock parseClock(final String value) {
+		if (value.equals("thread-cpu"))
+			return Clock.THREAD_CPU;
+		if (value.equals("wall"))
+			return Clock.WALL;
+		if (value.equals("dual"))
+			return Clock.DUAL;
+		return null;
+	}
+
+	/**
+	 * 选择解码器
+	 *
+	 * @param recordSize
+	 *            二进制头部中的记录长度(HeaderRecord.getRecordSize())
+	 * @param clock
+	 *            文本头部中的时钟，未给出则为 null
+	 */
+	public static RecordDecoder forVersion(final int version, final int recordSize, final Clock clock) {
+		switch (version) {
+		case 1:
+			return new SingleClockV1(clock == Clock.THREAD_CPU);
+
+		case 2:
+			return new SingleClock(10, clock == Clock.THREAD_CPU);
+
+		case 3:
+			if (recordSize >= DUAL_CLOCK_RECORD_SIZE)
+				return new DualClock(recordSize);
+			if (clock == Clock.DUAL)
+				throw new IllegalArgumentException("record size " + recordSize + " is too small for dual clock");
+			if (recordSize < 10)
+				throw new IllegalArgumentException("invalid record size : " + recordSize);
+			return new SingleClock(recordSize, clock == Clock.THREAD_CPU);
+
+		default:
+			throw new IllegalArgumentException("unsupported version : " + version);
+		}
+	}
+
+	/** 版本 3 双时钟记录的解码器 */
+	public static RecordDecoder dualClock() {
+		return new DualClock(DUAL_CLOCK_RECORD_SIZE);
+	}
+
+	/**
+	 * 版本 1: 线程 id 为 u1
+	 */
+	private static final class SingleClockV1 extends RecordDecoder {
+		private final boolean cpuClock;
+
+		SingleClockV1(final boolean cpuClock) {
+			super(9);
+			this.cpuClock = cpuClock;
+		}
+
+		@Override
+		public boolean hasCpuTime() {
+			return cpuClock;
+		}
+
+		@Override
+		public void decode(final ByteBuffer buf, final int off, final ActionRecord r) {
+			r.threadId = buf.get(off) & 0xFF;
+			final int methodWord = buf.getInt(off + 1);
+			r.methodAction = methodWord & 0x03;
+			r.methodAddr = methodWord & 0xFFFFFFFCL;
+			r.deltaTime = buf.getInt(off + 5) & 0xFFFFFFFFL;
+			r.cpuTime = cpuClock ? r.deltaTime : ActionRecord.NO_CPU_TIME;
+		}
+
+		@Override
+		public void decode(final byte[] buf, final int off, final ActionRecord r) {
+			r.threadId = buf[off] & 0xFF;
+			final int methodWord = getInt(buf, off + 1);
+			r.methodAction = methodWord & 0x03;
+			r.methodAddr = methodWord & 0xFFFFFFFCL;
+			r.deltaTime = getInt(buf, off + 5) & 0xFFFFFFFFL;
+			r.cpuTime = cpuClock ? r.deltaTime : ActionRecord.NO_CPU_TIME;
+		}
+	}
+
+	/**
+	 * 版本 2 及单时钟的版本 3
+	 */
+	private static final class SingleClock extends RecordDecoder {
+		private final boolean cpuClock;
+
+		SingleClock(final int recordSize, final boolean cpuClock) {
+			super(recordSize);
+			this.cpuClock = cpuClock;
+		}
+
+		@Override
+		public boolean hasCpuTime() {
+			return cpuClock;
+		}
+
+		@Override
+		public void decode(final ByteBuffer buf, final int off, final ActionRecord r) {
+			r.threadId = buf.getShort(off) & 0xFFFF;
+			final int methodWord = buf.getInt(off + 2);
+			r.methodAction = methodWord & 0x03;
+			r.methodAddr = methodWord & 0xFFFFFFFCL;
+			r.deltaTime = buf.getInt(off + 6) & 0xFFFFFFFFL;
+			r.cpuTime = cpuClock ? r.deltaTime : ActionRecord.NO_CPU_TIME;
+		}
+
+		@Override
+		public void decode(final byte[] buf, final int off, final ActionRecord r) {
+			r.threadId = getU2(buf, off);
+			final int methodWord = getInt(buf, off + 2);
+			r.methodAction = methodWord & 0x03;
+			r.methodAddr = methodWord & 0xFFFFFFFCL;
+			r.deltaTime = getInt(buf, off + 6) & 0xFFFFFFFFL;
+			r.cpuTime = cpuClock ? r.deltaTime : ActionRecord.NO_CPU_TIME;
+		}
+	}
+
+	/**
+	 * 双时钟的版本 3: 线程 CPU 时间之后是墙上时间
+	 */
+	private static final class DualClock extends RecordDecoder {
+
+		DualClock(final int recordSize) {
+			super(recordSize);
+		}
+
+		@Override
+		public boolean hasCpuTime() {
+			return true;
+		}
+
+		@Override
+		public void decode(final ByteBuffer buf, final int off, final ActionRecord r) {
+			r.threadId = buf.getShort(off) & 0xFFFF;
+			final int methodWord = buf.getInt(off + 2);
+			r.methodAction = methodWord & 0x03;
+			r.methodAddr = methodWord & 0xFFFFFFFCL;
+			r.cpuTime = buf.getInt(off + 6) & 0xFFFFFFFFL;
+			r.deltaTime = buf.getInt(off + 10) & 0xFFFFFFFFL;
+		}
+
+		@Override
+		public void decode(final byte[] buf, final int off, final ActionRecord r) {
+			r.threadId = getU2(buf, off);
+			final int methodWord = getInt(buf, off + 2);
+			r.methodAction = methodWord & 0x03;
+			r.methodAddr = methodWord & 0xFFFFFFFCL;
+			r.cpuTime = getInt(buf, off + 6) & 0xFFFFFFFFL;
+			r.deltaTime = getInt(buf, off + 10) & 0xFFFFFFFFL;
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package parser.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 命令行参数解析
+ *
+ * 选项以 '-' 开头，分为不带值的开关和带一个值的选项，均可重复出现；其余参数为位置参数，"--" 之后的参数都是位置参数。
+ * 未定义的选项、缺少值的选项是错误，抛出 IllegalArgumentException
+ */
+public class ArgumentParser {
+
+	/**
+	 * 一个选项的定义
+	 */
+	private static final class Option {
+		final String name;
+		/** 值的名称，用于用法说明；开关为 null */
+		final String valueName;
+		final String help;
+
+		Option(final String name, final String valueName, final String help) {
+			this.name = name;
+			this.valueName = valueName;
+			this.help = help;
+		}
+	}
+
+	/**
+	 * 解析结果
+	 */
+	public static final class Arguments {
+		/** 按出现顺序的选项名及值，开关的值为 null */
+		private final List<String> names = new ArrayList<String>();
+		private final List<String> values = new ArrayList<String>();
+		private final List<String> positional = new ArrayList<String>();
+
+		Arguments() {
+		}
+
+		/** 选项是否出现过 */
+		public boolean has(final String name) {
+			return names.contains(name);
+		}
+
+		/** 选项最后一次出现时的值，未出现则为 def */
+		public String get(final String name, final String def) {
+			final int i = names.lastIndexOf(name);
+			return i < 0 ? def : values.get(i);
+		}
+
+		/** 同 get(String, String)，值须为整数 */
+		public int getInt(final String name, final int def) {
+			final String v = get(name, null);
+			if (v == null)
+				return def;
+			try {
+				return Integer.parseInt(v);
+			} catch (final NumberFormatException e) {
+				throw new IllegalArgumentException(name + " expects an integer : " + v);
+			}
+		}
+
+		/** 同 get(String, String)，值须为整数 */
+		public long getLong(final String name, final long def) {
+			final String v = get(name, null);
+			if (v == null)
+				return def;
+			try {
+				return Long.parseLong(v);
+			} catch (final NumberFormatException e) {
+				throw new IllegalArgumentException(name + " expects an integer : " + v);
+			}
+		}
+
+		/** 出现过的选项个数，与 getName()/getValue() 一起按出现顺序遍历选项 */
+		public int size() {
+			return names.size();
+		}
+
+		public String getName(final int i) {
+			return names.get(i);
+		}
+
+		public String getValue(final int i) {
+			return values.get(i);
+		}
+
+		/** 位置参数 */
+		public List<String> getPositional() {
+			return positional;
+		}
+	}
+
+	private final String command;
+	private final List<Option> options = new ArrayList<Option>();
+	private final Map<String, Option> optionsByName = new HashMap<String, Option>();
+
+	/**
+	 * @param command
+	 *            用法说明中的命令行，例如 "convert [options] sourcefile [destfile]"
+	 */
+	public ArgumentParser(final String command) {
+		this.command = command;
+	}
+
+	/** 定义不带值的开关 */
+	public ArgumentParser flag(final String name, final String help) {
+		return define(new Option(name, null, help));
+	}
+
+	/** 定义带一个值的选项 */
+	public ArgumentParser option(final String name, final String valueName, final String help) {
+		if (valueName == null)
+			throw new IllegalArgumentException();
+		return define(new Option(name, valueName, help));
+	}
+
+	private ArgumentParser define(final Option o) {
+		if (!o.name.startsWith("-") || optionsByName.containsKey(o.name))
+			throw new IllegalArgumentException("bad option : " + o.name);
+		options.add(o);
+		optionsByName.put(o.name, o);
+		return this;
+	}
+
+	public Arguments parse(final String[] args) {
+		final Arguments ret = new Arguments();
+		boolean optionsEnded = false;
+		for (int i = 0; i < args.length; ++i) {
+			final String a = args[i];
+			if (optionsEnded || !a.startsWith("-") || a.equals("-")) {
+				ret.positional.add(a);
+				continue;
+			}
+			if (a.equals("--")) {
+				optionsEnded = true;
+				continue;
+			}
+
+			final Option o = optionsByName.get(a);
+			if (o == null)
+				throw new IllegalArgumentException("unknown option : " + a);
+			String value = null;
+			if (o.valueName != null) {
+				if (i + 1 >= args.length)
+					throw new IllegalArgumentException("missing value of option : " + a);
+				value = args[++i];
+			}
+			ret.names.add(o.name);
+			ret.values.add(value);
+		}
+		return ret;
+	}
+
+	/** 用法说明 */
+	public String usage() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("usage: ").append(command).append('\n');
+		int width = 0;
+		for (final Option o : options)
+			width = Math.max(width, synopsis(o).length());
+		for (final Option o : options) {
+			final String s = synopsis(o);
+			sb.append("  ").append(s);
+			for (int i = s.length(); i < width + 2; ++i)
+				sb.append(' ');
+			sb.append(o.help).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private static String synopsis(final Option o) {
+		return o.valueName == null ? o.name : o.name + " <" + o.valueName + ">";
+	}
+}
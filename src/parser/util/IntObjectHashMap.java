@@ -0,0 +1,145 @@
+package parser.util;
+
+import java.util.Arrays;
+
+/**
+ * int 到对象的开放寻址哈希表(线性探测)，键不装箱，查找过程中不产生新对象
+ *
+ * @param <V>
+ *            值类型，值不能为 null
+ */
+public class IntObjectHashMap<V> {
+
+	private int[] keys;
+	private Object[] values;
+	private int mask;
+	private int size = 0;
+
+	public IntObjectHashMap() {
+		this(16);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            预计的元素个数
+	 */
+	public IntObjectHashMap(final int expectedSize) {
+		int cap = 16;
+		while (cap < expectedSize * 2)
+			cap <<= 1;
+		keys = new int[cap];
+		values = new Object[cap];
+		mask = cap - 1;
+	}
+
+	private static int hash(final int key) {
+		final int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(final int key) {
+		int i = hash(key) & mask;
+		Object v;
+		while ((v = values[i]) != null) {
+			if (keys[i] == key)
+				return (V) v;
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	public boolean containsKey(final int key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @return 原来的值，不存在则返回 null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(final int key, final V value) {
+		if (value == null)
+			throw new IllegalArgumentException("null value");
+
+		int i = hash(key) & mask;
+		Object v;
+		while ((v = values[i]) != null) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return (V) v;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > keys.length)
+			rehash(keys.length * 2);
+		return null;
+	}
+
+	/**
+	 * @return 被删除的值，不存在则返回 null
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(final int key) {
+		int i = hash(key) & mask;
+		Object v;
+		while ((v = values[i]) != null) {
+			if (keys[i] == key) {
+				shiftBack(i);
+				--size;
+				return (V) v;
+			}
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	/** 删除 i 位置的元素，并将后续探测链上的元素前移 */
+	private void shiftBack(int i) {
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (values[j] == null)
+				break;
+			final int home = hash(keys[j]) & mask;
+			// 若 home 不在 (i, j] 区间内，则 j 位置的元素可以移到 i
+			if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				i = j;
+			}
+		}
+		values[i] = null;
+	}
+
+	private void rehash(final int cap) {
+		final int[] oldKeys = keys;
+		final Object[] oldValues = values;
+		keys = new int[cap];
+		values = new Object[cap];
+		mask = cap - 1;
+		for (int i = 0; i < oldKeys.length; ++i) {
+			if (oldValues[i] == null)
+				continue;
+			int j = hash(oldKeys[i]) & mask;
+			while (values[j] != null)
+				j = (j + 1) & mask;
+			keys[j] = oldKeys[i];
+			values[j] = oldValues[i];
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+}
@@ -0,0 +1,153 @@
+package parser.util;
+
+import java.util.Arrays;
+
+/**
+ * long 到 int 的开放寻址哈希表(线性探测)，键和值都不装箱
+ *
+ * 值不能为负数，-1 表示不存在
+ */
+public class LongIntHashMap {
+
+	/** 不存在的键对应的值 */
+	public static final int NO_VALUE = -1;
+
+	private long[] keys;
+	private int[] values;
+	private int mask;
+	private int size = 0;
+
+	public LongIntHashMap() {
+		this(16);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            预计的元素个数
+	 */
+	public LongIntHashMap(final int expectedSize) {
+		int cap = 16;
+		while (cap < expectedSize * 2)
+			cap <<= 1;
+		keys = new long[cap];
+		values = newValues(cap);
+		mask = cap - 1;
+	}
+
+	private static int[] newValues(final int cap) {
+		final int[] ret = new int[cap];
+		Arrays.fill(ret, NO_VALUE);
+		return ret;
+	}
+
+	private static int hash(final long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * @return 不存在则返回 NO_VALUE
+	 */
+	public int get(final long key) {
+		int i = hash(key) & mask;
+		int v;
+		while ((v = values[i]) != NO_VALUE) {
+			if (keys[i] == key)
+				return v;
+			i = (i + 1) & mask;
+		}
+		return NO_VALUE;
+	}
+
+	public boolean containsKey(final long key) {
+		return get(key) != NO_VALUE;
+	}
+
+	/**
+	 * @return 原来的值，不存在则返回 NO_VALUE
+	 */
+	public int put(final long key, final int value) {
+		if (value < 0)
+			throw new IllegalArgumentException("negative value");
+
+		int i = hash(key) & mask;
+		int v;
+		while ((v = values[i]) != NO_VALUE) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return v;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > keys.length)
+			rehash(keys.length * 2);
+		return NO_VALUE;
+	}
+
+	/**
+	 * @return 被删除的值，不存在则返回 NO_VALUE
+	 */
+	public int remove(final long key) {
+		int i = hash(key) & mask;
+		int v;
+		while ((v = values[i]) != NO_VALUE) {
+			if (keys[i] == key) {
+				shiftBack(i);
+				--size;
+				return v;
+			}
+			i = (i + 1) & mask;
+		}
+		return NO_VALUE;
+	}
+
+	/** 删除 i 位置的元素，并将后续探测链上的元素前移 */
+	private void shiftBack(int i) {
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (values[j] == NO_VALUE)
+				break;
+			final int home = hash(keys[j]) & mask;
+			// 若 home 不在 (i, j] 区间内，则 j 位置的元素可以移到 i
+			if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				i = j;
+			}
+		}
+		values[i] = NO_VALUE;
+	}
+
+	private void rehash(final int cap) {
+		final long[] oldKeys = keys;
+		final int[] oldValues = values;
+		keys = new long[cap];
+		values = newValues(cap);
+		mask = cap - 1;
+		for (int i = 0; i < oldKeys.length; ++i) {
+			if (oldValues[i] == NO_VALUE)
+				continue;
+			int j = hash(oldKeys[i]) & mask;
+			while (values[j] != NO_VALUE)
+				j = (j + 1) & mask;
+			keys[j] = oldKeys[i];
+			values[j] = oldValues[i];
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(values, NO_VALUE);
+		size = 0;
+	}
+}